@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.input;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * The content of an attachment version found in a Confluence package.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public interface ConfluenceAttachmentContent
+{
+    /**
+     * @return the size of the content, in bytes
+     */
+    long getSize();
+
+    /**
+     * @return a new stream to read the content, to close after use
+     * @throws IOException when failing to open the content
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * @return the hexadecimal SHA-256 digest of the content, or null if it was not computed
+     */
+    default String getDigest()
+    {
+        return null;
+    }
+
+    /**
+     * @return the file containing only the content, or null if the content is not stored in a file of its own
+     */
+    default Path getPath()
+    {
+        return null;
+    }
+
+    /**
+     * Copy the content to a channel, without going through the Java heap when the content is stored in a file.
+     *
+     * @param target the channel where to copy the content
+     * @return the number of copied bytes
+     * @throws IOException when failing to copy the content
+     */
+    default long transferTo(WritableByteChannel target) throws IOException
+    {
+        try (ConfluenceAttachmentInputStream stream = new ConfluenceAttachmentInputStream(this)) {
+            return stream.transferTo(target);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.input;
+
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The stream given to the attachment events, which gives access to the attachment content it reads.
+ * <p>
+ * When the content is stored in a file, the stream reads it through a {@link FileChannel} and copying it to a file or
+ * a channel is delegated to the operating system, without going through the Java heap. Filters receiving the
+ * attachments can use {@link #transferTo(WritableByteChannel)}, or check {@link #getContent()} to get the size, the
+ * digest or the file of the content.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ConfluenceAttachmentInputStream extends FilterInputStream
+{
+    private final ConfluenceAttachmentContent content;
+
+    private final FileChannel channel;
+
+    /**
+     * @param content the content to read
+     * @throws IOException when failing to open the content
+     */
+    public ConfluenceAttachmentInputStream(ConfluenceAttachmentContent content) throws IOException
+    {
+        this(content, openChannel(content.getPath()));
+    }
+
+    private ConfluenceAttachmentInputStream(ConfluenceAttachmentContent content, FileChannel channel)
+        throws IOException
+    {
+        super(channel != null ? Channels.newInputStream(channel) : content.openStream());
+
+        this.content = content;
+        this.channel = channel;
+    }
+
+    private static FileChannel openChannel(Path path) throws IOException
+    {
+        return path != null ? FileChannel.open(path, StandardOpenOption.READ) : null;
+    }
+
+    /**
+     * @return the content read by this stream
+     */
+    public ConfluenceAttachmentContent getContent()
+    {
+        return this.content;
+    }
+
+    /**
+     * @return the channel reading the file containing the content, positioned after what was already read from the
+     *     stream, or null if the content is not stored in a file
+     */
+    public FileChannel getChannel()
+    {
+        return this.channel;
+    }
+
+    /**
+     * Copy the rest of the content to a channel.
+     *
+     * @param target the channel where to copy the content
+     * @return the number of copied bytes
+     * @throws IOException when failing to copy the content
+     */
+    public long transferTo(WritableByteChannel target) throws IOException
+    {
+        if (this.channel == null) {
+            return super.transferTo(Channels.newOutputStream(target));
+        }
+
+        long start = this.channel.position();
+        long size = this.channel.size();
+        long position = start;
+        while (position < size) {
+            long transferred = this.channel.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+        this.channel.position(position);
+
+        return position - start;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException
+    {
+        if (this.channel != null && out instanceof FileOutputStream) {
+            return transferTo(((FileOutputStream) out).getChannel());
+        }
+
+        return super.transferTo(out);
+    }
+}
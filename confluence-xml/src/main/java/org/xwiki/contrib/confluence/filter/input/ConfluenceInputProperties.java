@@ -51,6 +51,8 @@ public class ConfluenceInputProperties extends DefaultFilterStreamProperties
     private static final String XWIKI_ADMIN_GROUP_NAME = "XWikiAdminGroup";
     private static final String XWIKI_ALL_GROUP_NAME = "XWikiAllGroup";
     private static final String CLEANUP_SYNC = "SYNC";
+    private static final String OBJECT_STORE_LOG = "LOG";
+    private static final String BODY_COMPRESSION_DEFLATE = "DEFLATE";
 
     /**
      * @see #getSource()
@@ -244,6 +246,76 @@ public class ConfluenceInputProperties extends DefaultFilterStreamProperties
      */
     private boolean pageOrderEnabled = true;
 
+    /**
+     * @see #getObjectStore()
+     */
+    private String objectStore = OBJECT_STORE_LOG;
+
+    /**
+     * @see #getExtractionThreads()
+     */
+    private int extractionThreads;
+
+    /**
+     * @see #isExtractionEnabled()
+     */
+    private boolean extractionEnabled = true;
+
+    /**
+     * @see #getIndexingThreads()
+     */
+    private int indexingThreads;
+
+    /**
+     * @see #getParsingThreads()
+     */
+    private int parsingThreads;
+
+    /**
+     * @see #getParsingChunkSize()
+     */
+    private int parsingChunkSize;
+
+    /**
+     * @see #isSelectiveIndexing()
+     */
+    private boolean selectiveIndexing;
+
+    /**
+     * @see #getBodyCompression()
+     */
+    private String bodyCompression = BODY_COMPRESSION_DEFLATE;
+
+    /**
+     * @see #getIndexMemoryBudget()
+     */
+    private int indexMemoryBudget;
+
+    /**
+     * @see #isAttachmentDeduplication()
+     */
+    private boolean attachmentDeduplication;
+
+    /**
+     * @see #isIncrementalIndexing()
+     */
+    private boolean incrementalIndexing;
+
+    /**
+     * @see #getConversionThreads()
+     */
+    private int conversionThreads;
+
+    /**
+     * @see #getPrefetchedPages()
+     */
+    private int prefetchedPages;
+
+    /**
+     * @see #isAttachmentHistoryEnabled()
+     */
+    private boolean attachmentHistoryEnabled;
+
     /**
      * @return The source to load the wiki from
      */
@@ -1230,4 +1302,341 @@ public class ConfluenceInputProperties extends DefaultFilterStreamProperties
     {
         this.pageOrderEnabled = pageOrderEnabled;
     }
+
+    /**
+     * @return the way the objects indexed from the package are stored in the working directory
+     * @since 9.57.0
+     */
+    @PropertyName("Object store")
+    @PropertyDescription("The way the objects indexed from the Confluence package are stored in the working directory. "
+        + "LOG: append all the objects to a single file. "
+        + "DIRECTORY: store each object in its own file, spread in folders by hash (slower, but easier to inspect).")
+    public String getObjectStore()
+    {
+        return this.objectStore;
+    }
+
+    /**
+     * @param objectStore the way the objects indexed from the package are stored in the working directory
+     * @since 9.57.0
+     */
+    public void setObjectStore(String objectStore)
+    {
+        this.objectStore = objectStore == null ? OBJECT_STORE_LOG : objectStore.toUpperCase();
+    }
+
+    /**
+     * @return the number of threads to use to extract the package, 0 or less to use the number of available processors
+     * @since 9.57.0
+     */
+    @PropertyName("Extraction threads")
+    @PropertyDescription("The number of threads to use to extract the Confluence package when it's a zip file, and "
+        + "to digest its attachments when deduplicating them. 0 or less to use the number of available processors.")
+    public int getExtractionThreads()
+    {
+        return this.extractionThreads;
+    }
+
+    /**
+     * @param extractionThreads the number of threads to use to extract the package, 0 or less to use the number of
+     *     available processors
+     * @since 9.57.0
+     */
+    public void setExtractionThreads(int extractionThreads)
+    {
+        this.extractionThreads = extractionThreads;
+    }
+
+    /**
+     * @return true if the package should be extracted to a temporary directory before being read
+     * @since 9.57.0
+     */
+    @PropertyName("Extract the package")
+    @PropertyDescription("Extract the Confluence package to a temporary directory before reading it. When disabled, "
+        + "the content of a zip file source is read directly from the zip file, which avoids copying it on disk.")
+    public boolean isExtractionEnabled()
+    {
+        return this.extractionEnabled;
+    }
+
+    /**
+     * @param extractionEnabled true if the package should be extracted to a temporary directory before being read
+     * @since 9.57.0
+     */
+    public void setExtractionEnabled(boolean extractionEnabled)
+    {
+        this.extractionEnabled = extractionEnabled;
+    }
+
+    /**
+     * @return the number of threads to use to save the objects found in the package, 0 or less to use the number of
+     *     available processors
+     * @since 9.57.0
+     */
+    @PropertyName("Indexing threads")
+    @PropertyDescription("The number of threads to use to save the objects found in the Confluence package while it's "
+        + "being analyzed. 0 or less to use the number of available processors.")
+    public int getIndexingThreads()
+    {
+        return this.indexingThreads;
+    }
+
+    /**
+     * @param indexingThreads the number of threads to use to save the objects found in the package, 0 or less to use
+     *     the number of available processors
+     * @since 9.57.0
+     */
+    public void setIndexingThreads(int indexingThreads)
+    {
+        this.indexingThreads = indexingThreads;
+    }
+
+    /**
+     * @return the number of threads to use to parse the extracted entities.xml file, 0 or less to use the number of
+     *     available processors, 1 to parse it sequentially
+     * @since 9.57.0
+     */
+    @PropertyName("Parsing threads")
+    @PropertyDescription("The number of threads to use to parse the entities.xml file of the Confluence package once "
+        + "extracted. 0 or less to use the number of available processors, 1 to parse it sequentially.")
+    public int getParsingThreads()
+    {
+        return this.parsingThreads;
+    }
+
+    /**
+     * @param parsingThreads the number of threads to use to parse the extracted entities.xml file, 0 or less to use
+     *     the number of available processors, 1 to parse it sequentially
+     * @since 9.57.0
+     */
+    public void setParsingThreads(int parsingThreads)
+    {
+        this.parsingThreads = parsingThreads;
+    }
+
+    /**
+     * @return the approximate size of the parts of the extracted entities.xml file parsed by each thread, in bytes, 0
+     *     or less for the default of 4MB
+     * @since 9.57.0
+     */
+    @PropertyName("Parsing chunk size")
+    @PropertyDescription("The approximate size, in bytes, of the parts of the entities.xml file parsed by each parsing "
+        + "thread. The file is only parsed in parallel when it's at least twice as big. 0 or less for the default of "
+        + "4MB.")
+    public int getParsingChunkSize()
+    {
+        return this.parsingChunkSize;
+    }
+
+    /**
+     * @param parsingChunkSize the approximate size of the parts of the extracted entities.xml file parsed by each
+     *     thread, in bytes, 0 or less for the default of 4MB
+     * @since 9.57.0
+     */
+    public void setParsingChunkSize(int parsingChunkSize)
+    {
+        this.parsingChunkSize = parsingChunkSize;
+    }
+
+    /**
+     * @return true if only the objects related to the included pages should be indexed
+     * @since 9.57.0
+     */
+    @PropertyName("Selective indexing")
+    @PropertyDescription("When included pages are set, only index the objects related to these pages, their ancestors "
+        + "and the home pages of their spaces instead of the whole Confluence package. This is much faster when "
+        + "migrating a few pages from a big package, but links to pages which are not indexed cannot be resolved and "
+        + "the working directory cannot be reused by other migrations.")
+    public boolean isSelectiveIndexing()
+    {
+        return this.selectiveIndexing;
+    }
+
+    /**
+     * @param selectiveIndexing true if only the objects related to the included pages should be indexed
+     * @since 9.57.0
+     */
+    public void setSelectiveIndexing(boolean selectiveIndexing)
+    {
+        this.selectiveIndexing = selectiveIndexing;
+    }
+
+    /**
+     * @return the compression of the bodies of the pages and comments stored in the working directory
+     * @since 9.57.0
+     */
+    @PropertyName("Body compression")
+    @PropertyDescription("The compression of the bodies of the pages and comments, which are stored apart from the "
+        + "other properties in the working directory. DEFLATE: compress them. NONE: store them as is, which uses more "
+        + "disk space but saves a bit of time.")
+    public String getBodyCompression()
+    {
+        return this.bodyCompression;
+    }
+
+    /**
+     * @param bodyCompression the compression of the bodies of the pages and comments stored in the working directory
+     * @since 9.57.0
+     */
+    public void setBodyCompression(String bodyCompression)
+    {
+        this.bodyCompression = bodyCompression == null ? BODY_COMPRESSION_DEFLATE : bodyCompression.toUpperCase();
+    }
+
+    /**
+     * @return the memory the index of the page titles can use before being written to the working directory, in
+     *     megabytes, 0 or less to use an eighth of the maximum memory
+     * @since 9.57.0
+     */
+    @PropertyName("Index memory budget")
+    @PropertyDescription("The memory, in megabytes, the index of the page titles can use while indexing the package. "
+        + "Beyond this budget, the titles are written to sorted files in the working directory, which makes it "
+        + "possible to migrate packages with more pages than what fits in memory. 0 or less to use an eighth of the "
+        + "maximum memory.")
+    public int getIndexMemoryBudget()
+    {
+        return this.indexMemoryBudget;
+    }
+
+    /**
+     * @param indexMemoryBudget the memory the index of the page titles can use before being written to the working
+     *     directory, in megabytes, 0 or less to use an eighth of the maximum memory
+     * @since 9.57.0
+     */
+    public void setIndexMemoryBudget(int indexMemoryBudget)
+    {
+        this.indexMemoryBudget = indexMemoryBudget;
+    }
+
+    /**
+     * @return true if the attachments with the same content should be stored once and identified by their digest
+     * @since 9.57.0
+     */
+    @PropertyName("Deduplicate attachments")
+    @PropertyDescription("Compute the SHA-256 digest of each attachment after reading the package and keep each "
+        + "distinct content once in the extracted package. The digest is sent with each attachment so that identical "
+        + "contents can be recognized, and the duplicates found are logged. The disk space of the duplicates is only "
+        + "reclaimed when the package is extracted in a temporary directory: zip files read without extraction and "
+        + "folders provided as the source are never modified, their attachments are only digested.")
+    public boolean isAttachmentDeduplication()
+    {
+        return this.attachmentDeduplication;
+    }
+
+    /**
+     * @param attachmentDeduplication true if the attachments with the same content should be stored once and
+     *     identified by their digest
+     * @since 9.57.0
+     */
+    public void setAttachmentDeduplication(boolean attachmentDeduplication)
+    {
+        this.attachmentDeduplication = attachmentDeduplication;
+    }
+
+    /**
+     * @return true if the package should be compared with the previous export indexed in the working directory so
+     *     that only the pages which changed are sent
+     * @since 9.57.0
+     */
+    @PropertyName("Incremental indexing")
+    @PropertyDescription("Index the package again in the working directory even if it contains a previous export, "
+        + "compare the fingerprints of the objects of both exports and only send the pages which were added or "
+        + "changed since the previous export, along with the descendants of the pages which were moved or renamed. "
+        + "The previous export must also have been indexed with this option and a migration only becomes the "
+        + "previous export once all its pages were sent. Spaces, users and groups are always sent and deleted "
+        + "pages are only logged. The whole package is indexed again: only the indexes written by this filter are "
+        + "replaced in the working directory, the other files it contains are left untouched.")
+    public boolean isIncrementalIndexing()
+    {
+        return this.incrementalIndexing;
+    }
+
+    /**
+     * @param incrementalIndexing true if the package should be compared with the previous export indexed in the
+     *     working directory so that only the pages which changed are sent
+     * @since 9.57.0
+     */
+    public void setIncrementalIndexing(boolean incrementalIndexing)
+    {
+        this.incrementalIndexing = incrementalIndexing;
+    }
+
+    /**
+     * @return the number of threads to use to convert the content of the next pages while the current one is being
+     *     sent, 0 or less to convert the content of each page when sending it
+     * @since 9.57.0
+     */
+    @PropertyName("Conversion threads")
+    @PropertyDescription("The number of threads to use to convert the content of the next pages to XWiki 2.1 while "
+        + "the current page is being sent. 0 or less to convert the content of each page when sending it. Only used "
+        + "when the content is converted to XWiki 2.1 and the object id ranges are not used.")
+    public int getConversionThreads()
+    {
+        return this.conversionThreads;
+    }
+
+    /**
+     * @param conversionThreads the number of threads to use to convert the content of the next pages while the
+     *     current one is being sent, 0 or less to convert the content of each page when sending it
+     * @since 9.57.0
+     */
+    public void setConversionThreads(int conversionThreads)
+    {
+        this.conversionThreads = conversionThreads;
+    }
+
+    /**
+     * @return the number of pages, following the one being sent, of which the properties of the revisions,
+     *     attachments, comments and tags are loaded in advance, 0 or less to load them when sending each page
+     * @since 9.57.0
+     */
+    @PropertyName("Prefetched pages")
+    @PropertyDescription("The number of pages, following the one being sent, of which the properties of the "
+        + "revisions, attachments, comments and tags are loaded in advance from the working directory. 0 or less, "
+        + "the default, to load them when sending each page.")
+    public int getPrefetchedPages()
+    {
+        return this.prefetchedPages;
+    }
+
+    /**
+     * @param prefetchedPages the number of pages, following the one being sent, of which the properties of the
+     *     revisions, attachments, comments and tags are loaded in advance, 0 or less to load them when sending each
+     *     page
+     * @since 9.57.0
+     */
+    public void setPrefetchedPages(int prefetchedPages)
+    {
+        this.prefetchedPages = prefetchedPages;
+    }
+
+    /**
+     * Ignored when {@link #getObjectIdRanges()} is set, since the attachment versions would be checked against the
+     * ranges a second time.
+     *
+     * @return true if the previous versions of the attachments should be sent with the revisions of the page in which
+     *     they appeared, false to only send the current attachments with the current revision of the page
+     * @since 9.57.0
+     */
+    @PropertyName("Import attachment history")
+    @PropertyDescription("When the history is imported, send the previous versions of the attachments with the "
+        + "revisions of the page in which they appeared. A previous revision only contains the previous versions "
+        + "which were added or updated since the revision before it, and the current revision contains all the "
+        + "current attachments, so each version is sent once. When disabled, the attachments are only sent with the "
+        + "current revision of the page. Ignored when object id ranges are set.")
+    public boolean isAttachmentHistoryEnabled()
+    {
+        return this.attachmentHistoryEnabled;
+    }
+
+    /**
+     * @param attachmentHistoryEnabled true if the previous versions of the attachments should be sent with the
+     *     revisions of the page in which they appeared, false to only send the current attachments with the current
+     *     revision of the page
+     * @since 9.57.0
+     */
+    public void setAttachmentHistoryEnabled(boolean attachmentHistoryEnabled)
+    {
+        this.attachmentHistoryEnabled = attachmentHistoryEnabled;
+    }
 }
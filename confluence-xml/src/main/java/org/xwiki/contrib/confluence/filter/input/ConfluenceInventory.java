@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.input;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * What a Confluence package contains, as found by {@link ConfluenceXMLPackage#scanInventory}, to estimate the work
+ * needed to migrate it before indexing it.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ConfluenceInventory
+{
+    private final Map<String, Long> objects = new TreeMap<>();
+
+    private final Map<String, Space> spaces = new TreeMap<>();
+
+    private final List<Body> largestBodies = new ArrayList<>();
+
+    private final Map<String, Long> macros = new LinkedHashMap<>();
+
+    private long entitiesSize = -1;
+
+    private long attachmentCount;
+
+    private long attachmentSize;
+
+    /**
+     * The content of a space.
+     */
+    public static class Space
+    {
+        private long pages;
+
+        private long blogPosts;
+
+        private long revisions;
+
+        private long attachmentCount;
+
+        private long attachmentSize;
+
+        /**
+         * @return the number of current pages in the space
+         */
+        public long getPages()
+        {
+            return this.pages;
+        }
+
+        /**
+         * @param pages the number of current pages in the space
+         */
+        public void setPages(long pages)
+        {
+            this.pages = pages;
+        }
+
+        /**
+         * @return the number of current blog posts in the space
+         */
+        public long getBlogPosts()
+        {
+            return this.blogPosts;
+        }
+
+        /**
+         * @param blogPosts the number of current blog posts in the space
+         */
+        public void setBlogPosts(long blogPosts)
+        {
+            this.blogPosts = blogPosts;
+        }
+
+        /**
+         * @return the number of historical versions of the pages and blog posts of the space
+         */
+        public long getRevisions()
+        {
+            return this.revisions;
+        }
+
+        /**
+         * @param revisions the number of historical versions of the pages and blog posts of the space
+         */
+        public void setRevisions(long revisions)
+        {
+            this.revisions = revisions;
+        }
+
+        /**
+         * @return the number of attachment files, one per attachment version, of the space
+         */
+        public long getAttachmentCount()
+        {
+            return this.attachmentCount;
+        }
+
+        /**
+         * @param attachmentCount the number of attachment files, one per attachment version, of the space
+         */
+        public void setAttachmentCount(long attachmentCount)
+        {
+            this.attachmentCount = attachmentCount;
+        }
+
+        /**
+         * @return the size of the attachment files of the space, in bytes
+         */
+        public long getAttachmentSize()
+        {
+            return this.attachmentSize;
+        }
+
+        /**
+         * @param attachmentSize the size of the attachment files of the space, in bytes
+         */
+        public void setAttachmentSize(long attachmentSize)
+        {
+            this.attachmentSize = attachmentSize;
+        }
+    }
+
+    /**
+     * The body of a page, blog post or comment.
+     */
+    public static class Body
+    {
+        private final long contentId;
+
+        private final String space;
+
+        private final long size;
+
+        /**
+         * @param contentId the identifier of the content of the body
+         * @param space the key of the space of the content, or null if it's not a current page or blog post
+         * @param size the number of characters of the body
+         */
+        public Body(long contentId, String space, long size)
+        {
+            this.contentId = contentId;
+            this.space = space;
+            this.size = size;
+        }
+
+        /**
+         * @return the identifier of the content of the body
+         */
+        public long getContentId()
+        {
+            return this.contentId;
+        }
+
+        /**
+         * @return the key of the space of the content, or null if it's not a current page or blog post
+         */
+        public String getSpace()
+        {
+            return this.space;
+        }
+
+        /**
+         * @return the number of characters of the body
+         */
+        public long getSize()
+        {
+            return this.size;
+        }
+    }
+
+    /**
+     * @return the number of objects of each class found in the package index
+     */
+    public Map<String, Long> getObjects()
+    {
+        return this.objects;
+    }
+
+    /**
+     * @return the content of each space, by space key
+     */
+    public Map<String, Space> getSpaces()
+    {
+        return this.spaces;
+    }
+
+    /**
+     * @return the largest bodies, from the largest one
+     */
+    public List<Body> getLargestBodies()
+    {
+        return this.largestBodies;
+    }
+
+    /**
+     * @return the number of uses of the most used macros, from the most used one
+     */
+    public Map<String, Long> getMacros()
+    {
+        return this.macros;
+    }
+
+    /**
+     * @return the size of the package index, in bytes, or -1 if it's unknown
+     */
+    public long getEntitiesSize()
+    {
+        return this.entitiesSize;
+    }
+
+    /**
+     * @param entitiesSize the size of the package index, in bytes, or -1 if it's unknown
+     */
+    public void setEntitiesSize(long entitiesSize)
+    {
+        this.entitiesSize = entitiesSize;
+    }
+
+    /**
+     * @return the number of attachment files, one per attachment version, in the package
+     */
+    public long getAttachmentCount()
+    {
+        return this.attachmentCount;
+    }
+
+    /**
+     * @param attachmentCount the number of attachment files, one per attachment version, in the package
+     */
+    public void setAttachmentCount(long attachmentCount)
+    {
+        this.attachmentCount = attachmentCount;
+    }
+
+    /**
+     * @return the size of the attachment files in the package, in bytes
+     */
+    public long getAttachmentSize()
+    {
+        return this.attachmentSize;
+    }
+
+    /**
+     * @param attachmentSize the size of the attachment files in the package, in bytes
+     */
+    public void setAttachmentSize(long attachmentSize)
+    {
+        this.attachmentSize = attachmentSize;
+    }
+
+    /**
+     * Write the inventory as a JSON report.
+     *
+     * @param out the stream where to write the report, left open
+     * @throws IOException when failing to write the report
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        new ObjectMapper().writerWithDefaultPrettyPrinter().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .writeValue(out, this);
+    }
+}
@@ -20,14 +20,21 @@
 package org.xwiki.contrib.confluence.filter.input;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collection;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.builder.FileBasedConfigurationBuilder;
 import org.apache.commons.configuration2.builder.fluent.Parameters;
 import org.apache.commons.configuration2.convert.DisabledListDelimiterHandler;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.io.FileHandler;
+import org.apache.commons.configuration2.sync.ReadWriteSynchronizer;
+import org.xwiki.contrib.confluence.filter.internal.store.ConfluenceObjectStore;
 
 /**
  * @version $Id$
@@ -35,8 +42,24 @@ import org.apache.commons.configuration2.ex.ConfigurationException;
  */
 public class ConfluenceProperties extends PropertiesConfiguration
 {
+    private static final String ENCODING = "UTF-8";
+
+    // Rough estimation of the memory used by the properties, by each property and by each value, in bytes
+    private static final long PROPERTIES_WEIGHT = 64;
+
+    private static final long PROPERTY_WEIGHT = 64;
+
+    private static final long VALUE_WEIGHT = 32;
+
     private FileBasedConfigurationBuilder<ConfluenceProperties> builder;
 
+    private ConfluenceObjectStore store;
+
+    private String storeKey;
+
+    // Only modified while holding the write lock of the synchronizer
+    private volatile long weight = PROPERTIES_WEIGHT;
+
     /**
      * @param file the file to load/save
      * @return the new {@link ConfluenceProperties}
@@ -57,7 +80,7 @@ public class ConfluenceProperties extends PropertiesConfiguration
                     .properties()
                     .setFile(file)
                     .setURL(url)
-                    .setEncoding("UTF-8")
+                    .setEncoding(ENCODING)
                     .setIOFactory(new JupIOFactory(false)));
 
         ConfluenceProperties properties = builder.getConfiguration();
@@ -69,6 +92,120 @@ public class ConfluenceProperties extends PropertiesConfiguration
         return properties;
     }
 
+    /**
+     * @param store the store where the properties are saved
+     * @param key the key of the properties in the store
+     * @param content the serialized properties, or null for new properties
+     * @return the new {@link ConfluenceProperties}
+     * @throws ConfigurationException when failing to parse the serialized properties
+     * @since 9.57.0
+     */
+    public static ConfluenceProperties create(ConfluenceObjectStore store, String key, InputStream content)
+        throws ConfigurationException
+    {
+        ConfluenceProperties properties = new ConfluenceProperties();
+        properties.setIOFactory(new JupIOFactory(false));
+
+        // Stored properties can be written by a thread while another one is modifying them
+        properties.setSynchronizer(new ReadWriteSynchronizer());
+
+        // Disable interpolation
+        properties.setInterpolator(null);
+
+        if (content != null) {
+            new FileHandler(properties).load(content, ENCODING);
+        }
+
+        properties.store = store;
+        properties.storeKey = key;
+
+        return properties;
+    }
+
+    /**
+     * Serialize the properties using the same format as the one used for properties files.
+     *
+     * @param out the stream where to write the properties
+     * @throws ConfigurationException when failing to serialize the properties
+     * @since 9.57.0
+     */
+    public void write(OutputStream out) throws ConfigurationException
+    {
+        new FileHandler(this).save(out, ENCODING);
+    }
+
+    /**
+     * @param store the store where the properties should now be saved
+     * @param key the key of the properties in the store
+     * @since 9.57.0
+     */
+    public void setStore(ConfluenceObjectStore store, String key)
+    {
+        this.store = store;
+        this.storeKey = key;
+    }
+
+    /**
+     * @return a rough estimation of the memory used by the properties, in bytes, kept up to date as properties are
+     *     added and removed
+     * @since 9.57.0
+     */
+    public long getWeight()
+    {
+        return this.weight;
+    }
+
+    @Override
+    protected void addPropertyDirect(String key, Object value)
+    {
+        long added = getValueWeight(value);
+        if (getPropertyInternal(key) == null) {
+            added += getKeyWeight(key);
+        }
+
+        super.addPropertyDirect(key, value);
+
+        this.weight += added;
+    }
+
+    @Override
+    protected void clearPropertyDirect(String key)
+    {
+        Object value = getPropertyInternal(key);
+
+        super.clearPropertyDirect(key);
+
+        if (value != null) {
+            long removed = getKeyWeight(key);
+            if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    removed += getValueWeight(element);
+                }
+            } else {
+                removed += getValueWeight(value);
+            }
+            this.weight -= removed;
+        }
+    }
+
+    @Override
+    protected void clearInternal()
+    {
+        super.clearInternal();
+
+        this.weight = PROPERTIES_WEIGHT;
+    }
+
+    private static long getKeyWeight(String key)
+    {
+        return PROPERTY_WEIGHT + key.length() * 2L;
+    }
+
+    private static long getValueWeight(Object value)
+    {
+        return value instanceof String ? VALUE_WEIGHT + ((String) value).length() * 2L : VALUE_WEIGHT;
+    }
+
     /**
      * Disable the list delimiter support.
      */
@@ -82,6 +219,14 @@ public class ConfluenceProperties extends PropertiesConfiguration
      */
     public void save() throws ConfigurationException
     {
-        this.builder.save();
+        if (this.store != null) {
+            try {
+                this.store.save(this.storeKey, this);
+            } catch (IOException e) {
+                throw new ConfigurationException("Failed to save the properties [" + this.storeKey + "]", e);
+            }
+        } else {
+            this.builder.save();
+        }
     }
 }
@@ -20,40 +20,58 @@
 package org.xwiki.contrib.confluence.filter.input;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.net.URI;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 import javax.inject.Inject;
 import javax.xml.stream.FactoryConfigurationError;
@@ -66,16 +84,40 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.FileSystem;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.contrib.confluence.filter.internal.FileAttachmentContent;
+import org.xwiki.contrib.confluence.filter.internal.IndexingSelection;
+import org.xwiki.contrib.confluence.filter.internal.InventoryScanner;
+import org.xwiki.contrib.confluence.filter.internal.LongListMultimap;
+import org.xwiki.contrib.confluence.filter.internal.ObjectFingerprints;
+import org.xwiki.contrib.confluence.filter.internal.ObjectBoundaryScanner;
+import org.xwiki.contrib.confluence.filter.internal.PackageStateReader;
+import org.xwiki.contrib.confluence.filter.internal.PackageStateWriter;
+import org.xwiki.contrib.confluence.filter.internal.PartitionedExecutor;
+import org.xwiki.contrib.confluence.filter.internal.TitleIndex;
 import org.xwiki.contrib.confluence.filter.internal.WithoutControlCharactersReader;
+import org.xwiki.contrib.confluence.filter.internal.ZipAttachmentContent;
+import org.xwiki.contrib.confluence.filter.internal.ZipExtractor;
 import org.xwiki.contrib.confluence.filter.internal.input.ConfluenceCanceledException;
+import org.xwiki.contrib.confluence.filter.internal.store.AttachmentBlobStore;
+import org.xwiki.contrib.confluence.filter.internal.store.BodyStore;
+import org.xwiki.contrib.confluence.filter.internal.store.ConfluenceObjectStore;
+import org.xwiki.contrib.confluence.filter.internal.store.DirectoryObjectStore;
+import org.xwiki.contrib.confluence.filter.internal.store.LogObjectStore;
+import org.xwiki.contrib.confluence.filter.internal.store.ObjectLocationIndex;
+import org.xwiki.contrib.confluence.filter.internal.store.ReadAheadObjectStore;
+import org.xwiki.contrib.confluence.filter.internal.store.ShardedObjectStore;
+import org.xwiki.contrib.confluence.filter.internal.store.WriteBackObjectStore;
 import org.xwiki.environment.Environment;
 import org.xwiki.filter.FilterException;
 import org.xwiki.filter.input.FileInputSource;
@@ -265,6 +307,13 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public static final String KEY_PAGE_BODY = "body";
 
+    /**
+     * The property key to access the reference of the page body in the body store.
+     *
+     * @since 9.57.0
+     */
+    public static final String KEY_PAGE_BODY_REFERENCE = "bodyReference";
+
     /**
      * The property key to access the page body type.
      */
@@ -590,6 +639,29 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     private static final Pattern FIND_BROKEN_CDATA_PATTERN = Pattern.compile("]] ");
 
+    // Date formats are not thread safe and costly to create
+    private static final ThreadLocal<DateFormat> DATE_FORMATS =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat(DATE_FORMAT));
+
+    // Indexed dates keep the local date and time found in the package, whatever the time zone of the JVM indexing it
+    private static final ThreadLocal<DateFormat> INDEXED_DATE_FORMATS = ThreadLocal.withInitial(() -> {
+        DateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone(ZoneOffset.UTC));
+        return format;
+    });
+
+    // The dates stored as epoch milliseconds so that they don't need to be parsed each time they are read
+    private static final Set<String> DATE_KEYS = new HashSet<>(Arrays.asList(
+        KEY_PAGE_CREATION_DATE,
+        KEY_PAGE_REVISION_DATE,
+        KEY_ATTACHMENT_CREATION_DATE,
+        KEY_ATTACHMENT_REVISION_DATE,
+        KEY_GROUP_CREATION_DATE,
+        KEY_GROUP_REVISION_DATE,
+        KEY_USER_CREATION_DATE,
+        KEY_USER_REVISION_DATE
+    ));
+
     /**
      * Replacement to repair the CDATA.
      */
@@ -607,7 +679,78 @@ public class ConfluenceXMLPackage implements AutoCloseable
 
     private static final String FOLDER_SPACE_PERMISSIONS = KEY_SPACE_PERMISSIONS;
 
-    private static final String PROPERTIES_FILENAME = "properties.properties";
+    private static final String OBJECT_STORE_DIRECTORY = "DIRECTORY";
+
+    /**
+     * The file of the state folder indicating the layout of the object store.
+     */
+    private static final String STORE_LAYOUT_FILENAME = "store.txt";
+
+    /**
+     * The file of the state folder containing the folder of each object.
+     */
+    private static final String LOCATIONS_FILENAME = "locations";
+
+    /**
+     * The file of the state folder containing the fingerprints of the objects, when indexing incrementally.
+     */
+    private static final String FINGERPRINTS_FILENAME = "fingerprints.bin";
+
+    /**
+     * The file of the state folder containing the fingerprints of the last indexed export, until it is sent.
+     */
+    private static final String NEW_FINGERPRINTS_FILENAME = "fingerprints.new.bin";
+
+    /**
+     * The file of the state folder containing the page hierarchy and other indexes.
+     */
+    private static final String STATE_FILENAME = "state.bin";
+
+    /**
+     * The part of the maximum memory which can be used to cache objects while indexing the package.
+     */
+    private static final int CACHE_MEMORY_RATIO = 8;
+
+    /**
+     * The part of the maximum memory which can be used by the index of the page titles, by default.
+     */
+    private static final int TITLES_MEMORY_RATIO = 8;
+
+    /**
+     * The folder of the working directory where the page titles which don't fit in memory are written.
+     */
+    private static final String FOLDER_TITLES = "titles";
+
+    /**
+     * The folder of the working directory where the state of the package is saved.
+     */
+    private static final String FOLDER_STATE = "state";
+
+    /**
+     * The folder of the package containing the attachment contents.
+     */
+    private static final String FOLDER_ATTACHMENTS = "attachments";
+
+    /**
+     * The folder of the extracted package where the distinct attachment contents are moved when deduplicating them.
+     */
+    private static final String FOLDER_ATTACHMENT_BLOBS = "attachmentblobs";
+
+    /**
+     * The maximum number of objects waiting to be saved by each indexing thread.
+     */
+    private static final int INDEXING_QUEUE_SIZE = 1000;
+
+    /**
+     * The approximate size of the chunks of entities.xml parsed in parallel.
+     */
+    private static final long DEFAULT_PARSING_CHUNK_SIZE = 4L * 1024 * 1024;
+
+    private static final byte[] CHUNK_START = "<objects>".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CHUNK_END = "</objects>".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String FAILED_TO_INDEX = "Failed to index the Confluence package";
 
     private static final String SPACE_STATUS_ARCHIVED = "ARCHIVED";
 
@@ -660,6 +803,15 @@ public class ConfluenceXMLPackage implements AutoCloseable
         OBJECT_TYPE_SPACE_PERMISSION
     ));
 
+    // The objects telling how pages relate to each other and what belongs to them
+    private static final Collection<String> SELECTION_OBJECT_TYPES = new HashSet<>(Arrays.asList(
+        OBJECT_TYPE_BLOG_POST,
+        OBJECT_TYPE_COMMENT,
+        OBJECT_TYPE_CONTENT_PERMISSION_SET,
+        OBJECT_TYPE_PAGE,
+        OBJECT_TYPE_SPACE
+    ));
+
     private static final String[] PARENT_PROPERTIES = new String[] {
         KEY_CONTENT_PERMISSION_OWNING_SET,
         KEY_CONTENT_PERMISSION_SET_OWNING_CONTENT,
@@ -705,26 +857,66 @@ public class ConfluenceXMLPackage implements AutoCloseable
 
     private File tree;
 
+    // Swapped by setPrefetchCapacity while the prefetching threads read it
+    private volatile ConfluenceObjectStore store;
+
+    private ObjectLocationIndex locations;
+
+    private BodyStore bodies;
+
+    // The digest and location of the attachment contents, when deduplicating them
+    private AttachmentBlobStore attachmentBlobs;
+
+    // The fingerprints of the indexed objects, only while indexing incrementally
+    private ObjectFingerprints fingerprints;
+
+    // The fingerprints saved by the previous incremental indexing, only while indexing incrementally
+    private ObjectFingerprints previousFingerprints;
+
+    // The pages which changed since the previous export, null if the package was not indexed incrementally
+    private Set<Long> changedPages;
+
+    // The objects to index when only some pages are migrated, only while indexing
+    private IndexingSelection selection;
+
+    private ZipExtractor extractor;
+
+    private PartitionedExecutor indexer;
+
+    /**
+     * The package zip file, when it's read without being extracted.
+     */
+    private ZipFile zipFile;
+
+    private ConfluenceInputProperties inputProperties;
+
     // Maps a space id to all the pages in this space
-    private final Map<Long, List<Long>> pages = new LinkedHashMap<>();
+    private final LongListMultimap pages = new LongListMultimap();
 
     // Maps a space id to all the blog pages in this space
-    private final Map<Long, List<Long>> blogPages = new LinkedHashMap<>();
+    private final LongListMultimap blogPages = new LongListMultimap();
 
     // Maps a page id to its direct non-blog children
-    private final Map<Long, List<Long>> pageChildren = new LinkedHashMap<>();
+    private final LongListMultimap pageChildren = new LongListMultimap();
 
     // List of parent pages that have not been seen
-    private final Map<Long, Set<Long>> missingParents = new LinkedHashMap<>();
+    private final LongListMultimap missingParents = new LongListMultimap();
+
+    // Maps a space id to the parents of its pages, only while indexing
+    private final LongListMultimap parentReferences = new LongListMultimap();
+
+    // Maps the type of the parents and the field listing their children to the children found for each parent, only
+    // while indexing
+    private final Map<String, Relation> relations = new LinkedHashMap<>();
 
     // maps a space id to its home page
     private final Map<Long, Long> homePages = new LinkedHashMap<>();
 
-    private final Map<Long, List<Long>> orphans = new LinkedHashMap<>();
+    private final LongListMultimap orphans = new LongListMultimap();
 
     private final Map<String, Long> spacesByKey = new HashMap<>();
 
-    private final Map<Long, Map<String, Long>> pagesBySpaceAndTitle = new HashMap<>();
+    private final TitleIndex pagesBySpaceAndTitle = new TitleIndex();
 
     /**
      * @return the content permission sets of the given page properties.
@@ -753,7 +945,14 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public List<Long> getPageChildren(Long pageId)
     {
-        return pageChildren.getOrDefault(pageId, Collections.emptyList());
+        return getValues(this.pageChildren, pageId);
+    }
+
+    private static List<Long> getValues(LongListMultimap multimap, Long key)
+    {
+        List<Long> values = key != null ? multimap.get(key) : null;
+
+        return values != null ? values : Collections.emptyList();
     }
 
     /**
@@ -773,10 +972,10 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public List<Long> getOrphans(Long spaceId)
     {
-        List<Long> spaceOrphans = this.orphans.getOrDefault(spaceId, Collections.emptyList());
-        Collection<Long> spaceMissingParents = this.missingParents.get(spaceId);
+        List<Long> spaceOrphans = getValues(this.orphans, spaceId);
+        List<Long> spaceMissingParents = getValues(this.missingParents, spaceId);
 
-        if (spaceMissingParents == null || spaceMissingParents.isEmpty()) {
+        if (spaceMissingParents.isEmpty()) {
             return spaceOrphans;
         }
 
@@ -800,12 +999,117 @@ public class ConfluenceXMLPackage implements AutoCloseable
             return null;
         }
 
-        Map<String, Long> pagesByTitle = this.pagesBySpaceAndTitle.get(spaceId);
-        if (pagesByTitle == null) {
-            return null;
+        return this.pagesBySpaceAndTitle.get(spaceId, pageTitle);
+    }
+
+    /**
+     * @param pageId the identifier of a page or blog post
+     * @return false if the package was indexed incrementally and nothing changed in the page since the previous export
+     * @since 9.57.0
+     */
+    public boolean isPageChanged(long pageId)
+    {
+        return this.changedPages == null || this.changedPages.contains(pageId);
+    }
+
+    /**
+     * @return the pages and blog posts which were added or changed since the previous export, or null if the package
+     *     was not indexed incrementally
+     * @since 9.57.0
+     */
+    public Set<Long> getChangedPages()
+    {
+        return this.changedPages;
+    }
+
+    /**
+     * Make the export which was indexed incrementally the one the next incremental indexing is compared with. This
+     * should only be called once the changed pages were sent, so that they are sent again if the migration fails.
+     *
+     * @throws IOException when failing to save the fingerprints
+     * @since 9.57.0
+     */
+    public void saveFingerprints() throws IOException
+    {
+        if (this.tree != null) {
+            File state = new File(this.tree, FOLDER_STATE);
+            File fingerprintsFile = new File(state, NEW_FINGERPRINTS_FILENAME);
+            if (fingerprintsFile.exists()) {
+                Files.move(fingerprintsFile.toPath(), new File(state, FINGERPRINTS_FILENAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    /**
+     * Keep in memory the objects loaded by {@link #prefetchPage(long)} until they are read.
+     *
+     * @param capacity the maximum number of objects to keep in memory, 0 or less to stop keeping them
+     * @since 9.57.0
+     */
+    public void setPrefetchCapacity(int capacity)
+    {
+        if (this.store instanceof ReadAheadObjectStore) {
+            this.store = ((ReadAheadObjectStore) this.store).getStore();
+        }
+
+        if (capacity > 0 && this.store != null) {
+            this.store = new ReadAheadObjectStore(this.store, capacity);
+        }
+    }
+
+    /**
+     * Load the properties of a page, of its revisions and of their attachments, comments and tags so that they are
+     * already in memory when the page is sent. This is meant to be called from another thread than the one sending
+     * the pages, and does nothing unless {@link #setPrefetchCapacity(int)} was called.
+     *
+     * @param pageId the identifier of the page or blog post
+     * @throws ConfigurationException when failing to read the properties
+     * @since 9.57.0
+     */
+    public void prefetchPage(long pageId) throws ConfigurationException
+    {
+        ConfluenceObjectStore currentStore = this.store;
+        if (currentStore instanceof ReadAheadObjectStore) {
+            ReadAheadObjectStore readAhead = (ReadAheadObjectStore) currentStore;
+            String pageFolder = getPageFolder(pageId);
+            ConfluenceProperties pageProperties = readAhead.read(pageFolder);
+            if (pageProperties != null) {
+                List<Long> revisions = getLongList(pageProperties, KEY_PAGE_REVISIONS, Collections.emptyList());
+                prefetchContent(readAhead, pageId, pageFolder, pageProperties);
+
+                for (Long revisionId : revisions) {
+                    String revisionFolder = getPageFolder(revisionId);
+                    ConfluenceProperties revisionProperties = readAhead.read(revisionFolder);
+                    if (revisionProperties != null) {
+                        prefetchContent(readAhead, revisionId, revisionFolder, revisionProperties);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the content of a page then hand the page to the thread sending it, which becomes the only one using it.
+     */
+    private void prefetchContent(ReadAheadObjectStore readAhead, long pageId, String pageFolder,
+        ConfluenceProperties pageProperties) throws ConfigurationException
+    {
+        List<Long> comments = getPageComments(pageProperties);
+        List<Long> labellings = getLongList(pageProperties, KEY_PAGE_LABELLINGS, Collections.emptyList());
+        readAhead.keep(pageFolder, pageProperties);
+
+        for (Long attachmentId : getAttachments(pageId)) {
+            readAhead.load(getAttachmentFolder(pageId, attachmentId));
+        }
+
+        for (Long commentId : comments) {
+            readAhead.load(getObjectFolder(FOLDER_OBJECTS, commentId.toString()));
         }
 
-        return pagesByTitle.get(pageTitle);
+        for (Long tagId : labellings) {
+            readAhead.load(getObjectFolder(FOLDER_OBJECTS, tagId.toString()));
+        }
     }
 
     /**
@@ -819,6 +1123,15 @@ public class ConfluenceXMLPackage implements AutoCloseable
         return l == null ? new ArrayList<>() : l;
     }
 
+    /**
+     * @param inputProperties the properties of the filter stream reading this package
+     * @since 9.57.0
+     */
+    public void setInputProperties(ConfluenceInputProperties inputProperties)
+    {
+        this.inputProperties = inputProperties;
+    }
+
     /**
      * @param source the source where to find the package to parse
      * @param workingDirectory the directory to use to extract the conflence package for processing (can be null)
@@ -828,17 +1141,9 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public void read(InputSource source, String workingDirectory) throws IOException, FilterException
     {
-        if (source instanceof FileInputSource) {
-            fromFile(((FileInputSource) source).getFile());
-        } else if (source instanceof URLInputSource
-            && ((URLInputSource) source).getURL().getProtocol().equals("file")) {
-            URI uri;
-            try {
-                uri = ((URLInputSource) source).getURL().toURI();
-            } catch (Exception e) {
-                throw new FilterException("The passed file URL is invalid", e);
-            }
-            fromFile(new File(uri));
+        File sourceFile = getSourceFile(source);
+        if (sourceFile != null) {
+            fromFile(sourceFile);
         } else {
             try {
                 if (source instanceof InputStreamInputSource) {
@@ -852,163 +1157,527 @@ public class ConfluenceXMLPackage implements AutoCloseable
             }
         }
 
-        this.entities = new File(this.directory, FILE_ENTITIES);
-        this.descriptor = new File(this.directory, FILE_DESCRIPTOR);
+        if (this.zipFile == null) {
+            this.entities = new File(this.directory, FILE_ENTITIES);
+            this.descriptor = new File(this.directory, FILE_DESCRIPTOR);
+        }
 
         // Initialize
 
+        if (workingDirectory != null && this.inputProperties != null && this.inputProperties.isIncrementalIndexing()) {
+            prepareIncrementalIndexing(new File(workingDirectory));
+        }
+
         try {
             createTree(workingDirectory);
         } catch (Exception e) {
+            stopExtraction();
             throw new FilterException("Failed to analyze the package index", e);
         }
+
+        // Attachments might still be extracted in the background
+        joinExtraction();
+
+        if (this.inputProperties != null && this.inputProperties.isAttachmentDeduplication()) {
+            deduplicateAttachments();
+        }
     }
 
-    /**
-     * @param source the source where to find the package to parse
-     * @throws IOException when failing to access the package content
-     * @throws FilterException when any error happen during the reading of the package
-     */
-    public void read(InputSource source) throws IOException, FilterException
+    private void prepareIncrementalIndexing(File workingDirectory) throws IOException
     {
-        read(source, null);
+        File state = new File(workingDirectory, FOLDER_STATE);
+        File previous = new File(state, FINGERPRINTS_FILENAME);
+        if (previous.exists()) {
+            try {
+                this.previousFingerprints = ObjectFingerprints.read(previous);
+            } catch (IOException e) {
+                this.logger.warn(
+                    "Could not read the fingerprints of the previous export, all the pages will be sent: {}",
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        } else {
+            this.logger.info("No previous export was indexed incrementally in [{}], all the pages will be sent",
+                workingDirectory);
+        }
+
+        // The indexes are rebuilt from the new export, they depend on too many objects to be patched. The previous
+        // fingerprints are kept until the changes are sent, in case this migration does not complete. Only the files
+        // written by this package are deleted, the working directory may contain other files.
+        LogObjectStore.delete(workingDirectory);
+        ShardedObjectStore.delete(workingDirectory);
+        BodyStore.delete(workingDirectory);
+        FileUtils.deleteDirectory(new File(workingDirectory, FOLDER_TITLES));
+        deleteExcept(state, previous);
+
+        this.fingerprints = new ObjectFingerprints();
     }
 
-    private void saveState() throws IllegalAccessException, IOException
+    private static void deleteExcept(File directory, File kept) throws IOException
     {
-        File state = new File(this.tree, "state");
-        state.mkdir();
-        Files.write(getExtractedPackageVersionPath(state), getVersion().getBytes());
-        for (Field field : this.getClass().getDeclaredFields()) {
-            if (isStateField(field)) {
-                FileOutputStream fos = new FileOutputStream(new File(state, field.getName()));
-                ObjectOutputStream myObjectOutStream = new ObjectOutputStream(fos);
-                myObjectOutStream.writeObject(field.get(this));
-                fos.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.equals(kept)) {
+                    FileUtils.forceDelete(file);
+                }
             }
         }
     }
 
-    private void clearState()
+    private void compareFingerprints()
     {
-        for (Field field : this.getClass().getDeclaredFields()) {
-            if (isStateField(field)) {
-                Object f;
-                try {
-                    f = field.get(this);
-                } catch (IllegalAccessException e) {
-                    logger.error("Unexpected error when clearing the state of field [{}]", field.getName(), e);
-                    continue;
-                }
-                if (f instanceof Collection) {
-                    ((Collection) f).clear();
-                } else if (f instanceof Map) {
-                    ((Map) f).clear();
+        if (this.previousFingerprints != null) {
+            this.changedPages = new HashSet<>();
+            Set<Long> deletedPages = new HashSet<>();
+            this.fingerprints.compare(this.previousFingerprints, this.changedPages, deletedPages);
+
+            // The references of the descendants of moved or renamed pages change too
+            Deque<Long> movedPages = new ArrayDeque<>(this.fingerprints.getMovedPages(this.previousFingerprints));
+            while (!movedPages.isEmpty()) {
+                for (Long childId : getPageChildren(movedPages.pop())) {
+                    if (this.changedPages.add(childId)) {
+                        movedPages.push(childId);
+                    }
                 }
             }
+            this.previousFingerprints = null;
+
+            this.logger.info("[{}] pages were added or changed since the previous export", this.changedPages.size());
+            if (!deletedPages.isEmpty()) {
+                // Nothing in the filter events can tell that a document was removed
+                this.logger.warn("The following [{}] pages were deleted since the previous export and are not removed "
+                    + "by the migration: {}", deletedPages.size(), deletedPages);
+            }
         }
     }
 
-    private static boolean isStateField(Field field)
+    private static File getSourceFile(InputSource source) throws FilterException
     {
-        Class<?> type = field.getType();
-        return !Modifier.isStatic(field.getModifiers())
-            && (Map.class.isAssignableFrom(type) || Collection.class.isAssignableFrom(type));
+        if (source instanceof FileInputSource) {
+            return ((FileInputSource) source).getFile();
+        } else if (source instanceof URLInputSource
+            && ((URLInputSource) source).getURL().getProtocol().equals("file")) {
+            try {
+                return new File(((URLInputSource) source).getURL().toURI());
+            } catch (Exception e) {
+                throw new FilterException("The passed file URL is invalid", e);
+            }
+        }
+
+        return null;
     }
 
-    private String getVersion()
+    /**
+     * Quickly count what a package contains without indexing it, to estimate the work needed to migrate it. The package
+     * index is read once, skipping the content of most objects, and the attachment sizes are taken from the zip
+     * central directory when the package is a zip file. This package is left untouched.
+     *
+     * @param source the source where to find the package to scan
+     * @return the inventory of the package
+     * @throws IOException when failing to access the package content
+     * @throws FilterException when failing to parse the package index
+     * @since 9.57.0
+     */
+    public ConfluenceInventory scanInventory(InputSource source) throws IOException, FilterException
     {
-        String version = getClass().getPackage().getSpecificationVersion();
-        return version == null ? "" : version;
+        InventoryScanner scanner = new InventoryScanner();
+
+        try {
+            File sourceFile = getSourceFile(source);
+            if (sourceFile != null && sourceFile.isDirectory()) {
+                scanDirectory(sourceFile, scanner);
+            } else if (sourceFile != null) {
+                try (ZipFile zip = new ZipFile(sourceFile)) {
+                    scanZipFile(zip, scanner);
+                }
+            } else if (source instanceof InputStreamInputSource) {
+                try (InputStream stream = ((InputStreamInputSource) source).getInputStream()) {
+                    scanZipStream(stream, scanner);
+                } finally {
+                    source.close();
+                }
+            } else {
+                throw new FilterException(
+                    String.format("Unsupported input source of type [%s]", source.getClass().getName()));
+            }
+        } catch (XMLStreamException e) {
+            throw new FilterException("Failed to scan the package index", e);
+        }
+
+        return scanner.getInventory();
     }
 
-    private boolean restoreState(File tree)
+    private static void scanDirectory(File directory, InventoryScanner scanner) throws IOException, XMLStreamException
     {
-        if (!tree.exists()) {
-            return false;
+        File entitiesFile = new File(directory, FILE_ENTITIES);
+        scanner.setEntitiesSize(entitiesFile.length());
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(entitiesFile))) {
+            scanner.scanEntities(stream);
         }
 
-        File state = new File(tree, "state");
-        if (!state.exists()) {
-            return false;
+        File attachments = new File(directory, FOLDER_ATTACHMENTS);
+        if (attachments.isDirectory()) {
+            Path root = directory.toPath();
+            try (Stream<Path> paths = Files.walk(attachments.toPath())) {
+                Iterator<Path> files = paths.filter(Files::isRegularFile).iterator();
+                while (files.hasNext()) {
+                    Path path = files.next();
+                    scanner.addFile(root.relativize(path).toString().replace(File.separatorChar, '/'),
+                        Files.size(path));
+                }
+            }
         }
+    }
 
-        checkExtractedPackageVersion(tree, state);
-
-        for (Field field : this.getClass().getDeclaredFields()) {
-            if (isStateField(field) && !restoreStateField(field, state)) {
-                clearState();
-                return false;
+    private static void scanZipFile(ZipFile zip, InventoryScanner scanner) throws IOException, XMLStreamException
+    {
+        // The central directory gives the size of the attachments without reading them
+        for (ZipEntry entry : Collections.list(zip.entries())) {
+            if (!entry.isDirectory()) {
+                scanner.addFile(entry.getName(), entry.getSize());
             }
         }
 
-        this.tree = tree;
-
-        return true;
+        ZipEntry entitiesEntry = zip.getEntry(FILE_ENTITIES);
+        if (entitiesEntry == null) {
+            throw new FileNotFoundException(String.format("No entry [%s] in [%s]", FILE_ENTITIES, zip.getName()));
+        }
+        scanner.setEntitiesSize(entitiesEntry.getSize());
+        try (InputStream stream = new BufferedInputStream(zip.getInputStream(entitiesEntry))) {
+            scanner.scanEntities(stream);
+        }
     }
 
-    private boolean restoreStateField(Field field, File state)
+    private static void scanZipStream(InputStream stream, InventoryScanner scanner)
+        throws IOException, XMLStreamException
     {
-        String name = field.getName();
-        FileInputStream fis;
-        Object property;
-        try {
-            fis = new FileInputStream(new File(state, name));
-            ObjectInputStream objectInput = new ObjectInputStream(fis);
+        ZipArchiveInputStream zais = new ZipArchiveInputStream(stream);
+        for (ZipArchiveEntry zipEntry = zais.getNextZipEntry(); zipEntry != null; zipEntry = zais.getNextZipEntry()) {
+            if (zipEntry.isDirectory()) {
+                continue;
+            }
 
-            property = objectInput.readObject();
-            objectInput.close();
-            fis.close();
-        } catch (IOException | ClassNotFoundException e) {
-            logger.warn("Could not restore the package state: field [{}] is unreadable", name, e);
-            return false;
-        }
-        try {
-            Object f = field.get(this);
-            if (f instanceof Collection && property instanceof Collection) {
-                ((Collection) f).addAll((Collection) property);
-            } else if (f instanceof Map && property instanceof Map) {
-                ((Map) f).putAll((Map) property);
+            if (zipEntry.getName().equals(FILE_ENTITIES)) {
+                CountingInputStream entitiesStream = new CountingInputStream(CloseShieldInputStream.wrap(zais));
+                scanner.scanEntities(new BufferedInputStream(entitiesStream));
+                IOUtils.consume(entitiesStream);
+                scanner.setEntitiesSize(entitiesStream.getByteCount());
             } else {
-                logger.warn("Could not restore the package state: wrong type for field [{}]", name);
-                return false;
+                // The size is not always known before reading the entry from a stream
+                long size = zipEntry.getSize();
+                scanner.addFile(zipEntry.getName(), size >= 0 ? size : IOUtils.consume(zais));
             }
-        } catch (IllegalAccessException e) {
-            logger.warn("Could not restore the Confluence package state", e);
-            return false;
         }
-        return true;
     }
 
-    private void checkExtractedPackageVersion(File tree, File state)
+    private void deduplicateAttachments() throws FilterException
     {
-        logger.info("Restoring from extracted Confluence package found at [{}]", tree.getPath());
+        // Only touch the files of the package when it was extracted by us
+        this.attachmentBlobs = new AttachmentBlobStore(
+            this.temporaryDirectory ? new File(this.directory, FOLDER_ATTACHMENT_BLOBS) : null);
+
         try {
-            String version = Files.readString(getExtractedPackageVersionPath(state)).trim();
-            if (!getVersion().equals(version)) {
-                this.logger.warn(
-                    "The package was extracted by version [{}]. Current version is [{}]. "
-                        + RESTORING_FROM_ANOTHER_VERSION_UNSUPPORTED_WARNING, version, getVersion());
+            if (this.zipFile != null) {
+                String prefix = FOLDER_ATTACHMENTS + '/';
+                List<ZipEntry> entries = Collections.list(this.zipFile.entries()).stream()
+                    .filter(entry -> !entry.isDirectory() && entry.getName().startsWith(prefix))
+                    .collect(Collectors.toList());
+                addAttachmentBlobs(entries, this::addAttachmentBlob);
+            } else {
+                File attachments = new File(this.directory, FOLDER_ATTACHMENTS);
+                if (!attachments.isDirectory()) {
+                    return;
+                }
+                List<File> files;
+                try (Stream<Path> paths = Files.walk(attachments.toPath())) {
+                    files = paths.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
+                }
+                addAttachmentBlobs(files, this::addAttachmentBlob);
             }
         } catch (IOException e) {
-            this.logger.warn(
-                "Could not determine the version of the extracted package. "
-                + RESTORING_FROM_ANOTHER_VERSION_UNSUPPORTED_WARNING, e);
+            throw new FilterException("Failed to list the attachments of the package", e);
         }
+
+        this.logger.info("Found [{}] duplicate attachment contents among [{}] attachment files, [{}] bytes in total",
+            this.attachmentBlobs.getDuplicates(), this.attachmentBlobs.getCount(),
+            this.attachmentBlobs.getDuplicateSize());
     }
 
-    private static Path getExtractedPackageVersionPath(File state)
+    private <T> void addAttachmentBlobs(List<T> attachments, Consumer<T> add) throws FilterException
     {
-        return Paths.get(state.getPath() + "/version.txt");
+        // Reading the attachments is mostly I/O, like extracting them
+        ExecutorService hashers = Executors.newFixedThreadPool(getExtractionThreads(), new BasicThreadFactory.Builder()
+            .namingPattern("Confluence attachment deduplication %d").daemon(true).build());
+
+        try {
+            List<Future<?>> added = new ArrayList<>(attachments.size());
+            for (T attachment : attachments) {
+                added.add(hashers.submit(() -> add.accept(attachment)));
+            }
+            for (Future<?> future : added) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new FilterException("Failed to deduplicate the attachments of the package", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException("Interrupted while deduplicating the attachments of the package", e);
+        } finally {
+            hashers.shutdownNow();
+        }
     }
 
-    /**
-     * @param workingDirectoryPath the path to the working directory to restore the state from
-     * @return whether restoring succeeded
-     */
-    public boolean restoreState(String workingDirectoryPath)
+    private void addAttachmentBlob(ZipEntry entry)
     {
-        return restoreState(new File(workingDirectoryPath));
+        try (InputStream stream = this.zipFile.getInputStream(entry)) {
+            this.attachmentBlobs.add(entry.getName(), stream, entry.getSize());
+        } catch (IOException e) {
+            this.logger.warn("Failed to compute the digest of attachment [{}]: {}", entry.getName(),
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private void addAttachmentBlob(File file)
+    {
+        String path = getPackagePath(file);
+        try {
+            this.attachmentBlobs.add(path, file);
+        } catch (IOException e) {
+            this.logger.warn("Failed to deduplicate attachment [{}]: {}", path, ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private String getPackagePath(File file)
+    {
+        return this.directory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private boolean isAttachmentFile(File file)
+    {
+        return file.exists()
+            || (this.attachmentBlobs != null && this.attachmentBlobs.getDigest(getPackagePath(file)) != null);
+    }
+
+    /**
+     * @param source the source where to find the package to parse
+     * @throws IOException when failing to access the package content
+     * @throws FilterException when any error happen during the reading of the package
+     */
+    public void read(InputSource source) throws IOException, FilterException
+    {
+        read(source, null);
+    }
+
+    private void saveState() throws IOException
+    {
+        this.store.flush();
+
+        File state = new File(this.tree, FOLDER_STATE);
+        state.mkdir();
+        Files.write(getExtractedPackageVersionPath(state), getVersion().getBytes());
+        Files.writeString(new File(state, STORE_LAYOUT_FILENAME).toPath(), getStoreLayout());
+        this.locations.write(new File(state, LOCATIONS_FILENAME));
+        if (this.fingerprints != null) {
+            // Only compared with by the next incremental indexing once the changes are sent
+            this.fingerprints.write(new File(state, NEW_FINGERPRINTS_FILENAME));
+        }
+
+        try (PackageStateWriter writer = new PackageStateWriter(new File(state, STATE_FILENAME))) {
+            writer.writeLongCollectionMap(this.pages.asMap());
+            writer.writeLongCollectionMap(this.blogPages.asMap());
+            writer.writeLongCollectionMap(this.pageChildren.asMap());
+            writer.writeLongCollectionMap(this.orphans.asMap());
+            writer.writeLongCollectionMap(this.missingParents.asMap());
+            writer.writeLongMap(this.homePages);
+            writer.writeStringLongMap(this.spacesByKey);
+            // The titles spilled to the disk are already in the segments of the titles folder
+            this.pagesBySpaceAndTitle.finish();
+            writer.writeLongStringLongMap(this.pagesBySpaceAndTitle.getHeap());
+            writer.commit();
+        }
+    }
+
+    private boolean readState(File state)
+    {
+        try {
+            PackageStateReader reader = new PackageStateReader(new File(state, STATE_FILENAME));
+            reader.readLongListMultimap(this.pages);
+            reader.readLongListMultimap(this.blogPages);
+            reader.readLongListMultimap(this.pageChildren);
+            reader.readLongListMultimap(this.orphans);
+            reader.readLongListMultimap(this.missingParents);
+            reader.readLongMap(this.homePages);
+            reader.readStringLongMap(this.spacesByKey);
+            Map<Long, Map<String, Long>> titles = new HashMap<>();
+            reader.readLongStringLongMap(titles, HashMap::new);
+            restoreTitles(titles);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not restore the package state", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the fields saved in the package state, by name, which is also the name of the file of each field in the
+     *     state saved before the binary format was introduced
+     */
+    private Map<String, Object> getStateFields()
+    {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("pages", this.pages);
+        fields.put("blogPages", this.blogPages);
+        fields.put("pageChildren", this.pageChildren);
+        fields.put("missingParents", this.missingParents);
+        fields.put("homePages", this.homePages);
+        fields.put("orphans", this.orphans);
+        fields.put("spacesByKey", this.spacesByKey);
+        fields.put("pagesBySpaceAndTitle", this.pagesBySpaceAndTitle);
+
+        return fields;
+    }
+
+    private void clearState()
+    {
+        for (Object f : getStateFields().values()) {
+            if (f instanceof Map) {
+                ((Map) f).clear();
+            } else if (f instanceof LongListMultimap) {
+                ((LongListMultimap) f).clear();
+            } else if (f instanceof TitleIndex) {
+                ((TitleIndex) f).clear();
+            }
+        }
+    }
+
+    private void restoreTitles(Map<Long, Map<String, Long>> titles)
+    {
+        for (Map.Entry<Long, Map<String, Long>> space : titles.entrySet()) {
+            for (Map.Entry<String, Long> title : space.getValue().entrySet()) {
+                this.pagesBySpaceAndTitle.put(space.getKey(), title.getKey(), title.getValue());
+            }
+        }
+    }
+
+    private String getVersion()
+    {
+        String version = getClass().getPackage().getSpecificationVersion();
+        return version == null ? "" : version;
+    }
+
+    private boolean restoreState(File tree)
+    {
+        if (!tree.exists()) {
+            return false;
+        }
+
+        File state = new File(tree, FOLDER_STATE);
+        if (!state.exists()) {
+            return false;
+        }
+
+        checkExtractedPackageVersion(tree, state);
+
+        if (new File(state, STATE_FILENAME).exists()) {
+            if (!readState(state)) {
+                clearState();
+                return false;
+            }
+        } else {
+            // State saved before the binary format was introduced, with one serialized file per field
+            for (Map.Entry<String, Object> field : getStateFields().entrySet()) {
+                if (!restoreStateField(field.getKey(), field.getValue(), state)) {
+                    clearState();
+                    return false;
+                }
+            }
+        }
+
+        try {
+            // Reuse the store the package was extracted with, whatever the current configuration
+            this.store = openStore(tree, state);
+            this.locations = openLocations(state);
+            this.bodies = new BodyStore(tree, getBodyCompression());
+            this.pagesBySpaceAndTitle.open(new File(tree, FOLDER_TITLES));
+        } catch (IOException e) {
+            logger.warn("Could not restore the package state: the object store is unreadable", e);
+            clearState();
+            return false;
+        }
+
+        this.tree = tree;
+
+        return true;
+    }
+
+    private boolean restoreStateField(String name, Object f, File state)
+    {
+        FileInputStream fis;
+        Object property;
+        try {
+            fis = new FileInputStream(new File(state, name));
+            ObjectInputStream objectInput = new ObjectInputStream(fis);
+
+            property = objectInput.readObject();
+            objectInput.close();
+            fis.close();
+        } catch (IOException | ClassNotFoundException e) {
+            logger.warn("Could not restore the package state: field [{}] is unreadable", name, e);
+            return false;
+        }
+        if (f instanceof Map && property instanceof Map) {
+            ((Map) f).putAll((Map) property);
+        } else if (f instanceof LongListMultimap && property instanceof Map) {
+            restoreMultimap((LongListMultimap) f, (Map<Long, Collection<Long>>) property);
+        } else if (f instanceof TitleIndex && property instanceof Map) {
+            restoreTitles((Map<Long, Map<String, Long>>) property);
+        } else {
+            logger.warn("Could not restore the package state: wrong type for field [{}]", name);
+            return false;
+        }
+        return true;
+    }
+
+    private static void restoreMultimap(LongListMultimap multimap, Map<Long, Collection<Long>> map)
+    {
+        for (Map.Entry<Long, Collection<Long>> entry : map.entrySet()) {
+            multimap.putKey(entry.getKey());
+            for (Long value : entry.getValue()) {
+                multimap.add(entry.getKey(), value);
+            }
+        }
+    }
+
+    private void checkExtractedPackageVersion(File tree, File state)
+    {
+        logger.info("Restoring from extracted Confluence package found at [{}]", tree.getPath());
+        try {
+            String version = Files.readString(getExtractedPackageVersionPath(state)).trim();
+            if (!getVersion().equals(version)) {
+                this.logger.warn(
+                    "The package was extracted by version [{}]. Current version is [{}]. "
+                        + RESTORING_FROM_ANOTHER_VERSION_UNSUPPORTED_WARNING, version, getVersion());
+            }
+        } catch (IOException e) {
+            this.logger.warn(
+                "Could not determine the version of the extracted package. "
+                + RESTORING_FROM_ANOTHER_VERSION_UNSUPPORTED_WARNING, e);
+        }
+    }
+
+    private static Path getExtractedPackageVersionPath(File state)
+    {
+        return Paths.get(state.getPath() + "/version.txt");
+    }
+
+    /**
+     * @param workingDirectoryPath the path to the working directory to restore the state from
+     * @return whether restoring succeeded
+     */
+    public boolean restoreState(String workingDirectoryPath)
+    {
+        return restoreState(new File(workingDirectoryPath));
     }
 
     private void fromFile(File file) throws FilterException
@@ -1016,14 +1685,74 @@ public class ConfluenceXMLPackage implements AutoCloseable
         if (file.isDirectory()) {
             this.directory = file;
         } else {
-            try (FileInputStream stream = new FileInputStream(file)) {
-                fromStream(stream);
+            try {
+                if (this.inputProperties == null || this.inputProperties.isExtractionEnabled()) {
+                    fromZipFile(file);
+                } else {
+                    this.zipFile = new ZipFile(file);
+                }
+            } catch (ZipException e) {
+                this.logger.warn("Failed to read the central directory of [{}], extracting it sequentially: {}", file,
+                    ExceptionUtils.getRootCauseMessage(e));
+                stopExtraction();
+                FileUtils.deleteQuietly(this.directory);
+                try (FileInputStream stream = new FileInputStream(file)) {
+                    fromStream(stream);
+                } catch (IOException e2) {
+                    throw new FilterException(String.format("Failed to read Confluence package in file [%s]", file),
+                        e2);
+                }
             } catch (IOException e) {
                 throw new FilterException(String.format("Failed to read Confluence package in file [%s]", file), e);
             }
         }
     }
 
+    private void fromZipFile(File file) throws IOException
+    {
+        createTemporaryDirectory();
+
+        // Extract the index first so that it can be analyzed while the attachments are being extracted
+        this.extractor = new ZipExtractor(file, this.directory, getExtractionThreads());
+        this.extractor.start(FILE_ENTITIES, FILE_DESCRIPTOR);
+    }
+
+    private void joinExtraction() throws FilterException
+    {
+        if (this.extractor != null) {
+            try {
+                this.extractor.join();
+            } catch (IOException e) {
+                throw new FilterException("Failed to extract the Confluence package", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FilterException("Interrupted while extracting the Confluence package", e);
+            } finally {
+                stopExtraction();
+            }
+        }
+    }
+
+    private void stopExtraction()
+    {
+        if (this.extractor != null) {
+            try {
+                this.extractor.close();
+            } catch (IOException e) {
+                this.logger.warn("Failed to close the Confluence package zip file: {}",
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+            this.extractor = null;
+        }
+    }
+
+    private void createTemporaryDirectory() throws IOException
+    {
+        this.directory =
+            Files.createTempDirectory(this.environment.getTemporaryDirectory().toPath(), "confluencexml").toFile();
+        this.temporaryDirectory = true;
+    }
+
     private void fromStream(InputStreamInputSource source) throws IOException
     {
         try (InputStream stream = source.getInputStream()) {
@@ -1034,16 +1763,13 @@ public class ConfluenceXMLPackage implements AutoCloseable
     private void fromStream(InputStream stream) throws IOException
     {
         // Get temporary folder
-        this.directory =
-            Files.createTempDirectory(this.environment.getTemporaryDirectory().toPath(), "confluencexml").toFile();
-        this.temporaryDirectory = true;
+        createTemporaryDirectory();
 
         // Extract the zip
         ZipArchiveInputStream zais = new ZipArchiveInputStream(stream);
         for (ZipArchiveEntry zipEntry = zais.getNextZipEntry(); zipEntry != null; zipEntry = zais.getNextZipEntry()) {
             if (!zipEntry.isDirectory()) {
-                String path = zipEntry.getName();
-                File file = new File(this.directory, path);
+                File file = ZipExtractor.getEntryFile(this.directory, zipEntry.getName());
 
                 FileUtils.copyInputStreamToFile(CloseShieldInputStream.wrap(zais), file);
             }
@@ -1054,15 +1780,33 @@ public class ConfluenceXMLPackage implements AutoCloseable
      * @param properties the properties from where to extract the date
      * @param key the key associated with the date
      * @return the date associated with the passed key in the passed properties or null
-     * @throws ParseException when failing to parse the date
+     * @throws ParseException when failing to parse the date, or when an indexed date is not a valid number
      */
     public Date getDate(ConfluenceProperties properties, String key) throws ParseException
     {
         String str = properties.getString(key);
 
-        DateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        if (str == null || str.isEmpty()) {
+            return null;
+        }
+
+        // Well known dates are indexed as the epoch milliseconds of their local date and time in UTC, and read in the
+        // current time zone like the formatted dates
+        if (DATE_KEYS.contains(key) && NumberUtils.isDigits(str)) {
+            long time;
+            try {
+                time = Long.parseLong(str);
+            } catch (NumberFormatException e) {
+                ParseException parseException = new ParseException("Invalid indexed date [" + str + "]", 0);
+                parseException.initCause(e);
+                throw parseException;
+            }
+
+            LocalDateTime localDate = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC);
+            return Date.from(localDate.atZone(ZoneId.systemDefault()).toInstant());
+        }
 
-        return (str == null || str.isEmpty()) ? null : format.parse(str);
+        return DATE_FORMATS.get().parse(str);
     }
 
     /**
@@ -1231,7 +1975,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public Map<Long, List<Long>> getPages()
     {
-        return this.pages;
+        return this.pages.asMap();
     }
 
     /**
@@ -1240,7 +1984,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public Map<Long, List<Long>> getBlogPages()
     {
-        return this.blogPages;
+        return this.blogPages.asMap();
     }
 
     private void createTree(String workingDirectory)
@@ -1253,24 +1997,187 @@ public class ConfluenceXMLPackage implements AutoCloseable
             : new File(workingDirectory);
         this.tree.mkdir();
 
+        // Objects are often saved again each time one of their children is found, so avoid writing them every time
+        WriteBackObjectStore cache =
+            new WriteBackObjectStore(createStore(), Runtime.getRuntime().maxMemory() / CACHE_MEMORY_RATIO);
+        this.store = cache;
+        this.bodies = new BodyStore(this.tree, getBodyCompression());
+        this.pagesBySpaceAndTitle.setSpillFolder(new File(this.tree, FOLDER_TITLES), getIndexMemoryBudget());
+
         getJobStatus();
 
-        try (CountingInputStream s = new CountingInputStream(new BufferedInputStream(new FileInputStream(entities)))) {
+        // Objects are parsed by the current thread and saved by the indexing threads
+        this.indexer =
+            new PartitionedExecutor("Confluence package indexing", getIndexingThreads(), INDEXING_QUEUE_SIZE);
+
+        try {
+            this.selection = createSelection();
+            if (this.selection != null && this.fingerprints != null) {
+                // Objects which are not indexed would look deleted
+                this.logger.warn("Incremental indexing is not supported with selective indexing, ignoring it");
+                this.fingerprints = null;
+                this.previousFingerprints = null;
+            }
+
+            IndexingProgress indexingProgress = new IndexingProgress(getEntitiesSize());
+
+            List<Long> chunks = getEntitiesChunks();
+            if (chunks.size() > 2) {
+                parseEntities(chunks, indexingProgress);
+            } else {
+                parseEntities(indexingProgress);
+            }
+
+            indexingProgress.end();
+
+            resolveMissingParents();
+            saveRelations();
+
+            joinIndexer();
+            this.relations.clear();
+            cache.flush();
+            this.bodies.flush();
+            this.store = cache.getStore();
+            this.locations = ObjectLocationIndex.create(this.store);
+
+            if (this.fingerprints != null) {
+                compareFingerprints();
+            }
+
+            if (this.selection == null) {
+                try {
+                    saveState();
+                } catch (IOException e) {
+                    logger.warn("Unable to save the package state, restoring for later migrations won't work", e);
+                }
+            } else {
+                // Other migrations may need the objects which were not indexed
+                logger.info("Not saving the package state since only the objects of the included pages were indexed");
+            }
+            progress.popLevelProgress(this);
+        } finally {
+            this.indexer.close();
+            this.indexer = null;
+            this.selection = null;
+            this.fingerprints = null;
+            this.previousFingerprints = null;
+        }
+    }
+
+    /**
+     * Find the pages and spaces the included pages need with a quick pass over the entities, skipping the body
+     * contents, attachments and other objects which don't tell how pages relate to each other.
+     *
+     * @return the objects to index, or null if all of them should be indexed
+     */
+    private IndexingSelection createSelection()
+        throws IOException, XMLStreamException, FilterException, ConfluenceCanceledException
+    {
+        if (this.inputProperties == null || !this.inputProperties.isSelectiveIndexing()
+            || this.inputProperties.getIncludedPages() == null || this.inputProperties.getIncludedPages().isEmpty()) {
+            return null;
+        }
+
+        IndexingSelection indexingSelection = new IndexingSelection(this.inputProperties.getIncludedPages());
+
+        try (InputStream s = new BufferedInputStream(openEntities())) {
             XMLStreamReader xmlReader = XML_INPUT_FACTORY.createXMLStreamReader(new WithoutControlCharactersReader(s));
 
             xmlReader.nextTag();
 
-            long size = entities.length();
-            int steps = 100;
-            progress.pushLevelProgress(steps, this);
-            boolean inStep = false;
-            long stepSize = size / steps;
-            long nextStepPos = stepSize;
             for (xmlReader.nextTag(); xmlReader.isStartElement(); xmlReader.nextTag()) {
-                if (!inStep) {
-                    progress.startStep(this);
-                    inStep = true;
+                if (this.jobStatus != null && this.jobStatus.isCanceled()) {
+                    throw new ConfluenceCanceledException();
                 }
+
+                String type = xmlReader.getLocalName().equals("object")
+                    ? xmlReader.getAttributeValue(null, ATTRIBUTE_CLASS) : null;
+
+                if (type != null && SELECTION_OBJECT_TYPES.contains(type)) {
+                    ParsedObject object = parseObject(xmlReader);
+                    addToSelection(indexingSelection, object.type, object.properties, object.id);
+                } else {
+                    StAXUtils.skipElement(xmlReader);
+                }
+            }
+        }
+
+        indexingSelection.resolve();
+
+        return indexingSelection;
+    }
+
+    private void addToSelection(IndexingSelection indexingSelection, String type, ConfluenceProperties properties,
+        long id)
+    {
+        Long ownerId = null;
+        switch (type) {
+            case OBJECT_TYPE_PAGE:
+            case OBJECT_TYPE_BLOG_POST:
+                // Historical versions belong to the current page
+                ownerId = properties.getLong(KEY_PAGE_ORIGINAL_VERSION, null);
+                if (ownerId == null && properties.containsKey(KEY_PAGE_SPACE)) {
+                    indexingSelection.addPage(id, properties.getLong(KEY_PAGE_SPACE),
+                        properties.getLong(KEY_PAGE_PARENT, null));
+                }
+                break;
+            case OBJECT_TYPE_SPACE:
+                indexingSelection.addSpace(id, properties.getLong(KEY_SPACE_HOMEPAGE, null));
+                break;
+            case OBJECT_TYPE_COMMENT:
+                ownerId = properties.getLong(KEY_COMMENT_CONTAINERCONTENT, null);
+                break;
+            case OBJECT_TYPE_CONTENT_PERMISSION_SET:
+                ownerId = properties.getLong(KEY_CONTENT_PERMISSION_SET_OWNING_CONTENT, null);
+                break;
+            default:
+                break;
+        }
+
+        if (ownerId != null) {
+            indexingSelection.addOwnedContent(id, ownerId);
+        }
+    }
+
+    private boolean isSelected(ParsedObject object)
+    {
+        ConfluenceProperties properties = object.properties;
+
+        switch (object.type) {
+            case OBJECT_TYPE_PAGE:
+            case OBJECT_TYPE_BLOG_POST:
+            case OBJECT_TYPE_COMMENT:
+            case OBJECT_TYPE_CONTENT_PERMISSION_SET:
+                return this.selection.isContentSelected(object.id);
+            case OBJECT_TYPE_SPACE:
+                return this.selection.isSpaceSelected(object.id);
+            case OBJECT_TYPE_SPACE_PERMISSION:
+                return this.selection.isSpaceSelected(properties.getLong(KEY_SPACE_PERMISSION_SPACE, null));
+            case OBJECT_TYPE_BODY_CONTENT:
+                return this.selection.isContentSelected(properties.getLong(KEY_BODY_CONTENT_CONTENT, null));
+            case OBJECT_TYPE_CONTENT_PERMISSION:
+                return this.selection.isContentSelected(properties.getLong(KEY_CONTENT_PERMISSION_OWNING_SET, null));
+            case OBJECT_TYPE_ATTACHMENT:
+                return this.selection.isContentSelected(getAttachmentPageId(properties));
+            case OBJECT_TYPE_LABELLING:
+                return this.selection.isContentSelected(properties.getLong(KEY_LABELLING_CONTENT, null));
+            default:
+                // Users, groups and everything else are kept
+                return true;
+        }
+    }
+
+    private void parseEntities(IndexingProgress indexingProgress)
+        throws IOException, XMLStreamException, FilterException, ConfluenceCanceledException
+    {
+        try (CountingInputStream s = new CountingInputStream(new BufferedInputStream(openEntities()))) {
+            XMLStreamReader xmlReader = XML_INPUT_FACTORY.createXMLStreamReader(new WithoutControlCharactersReader(s));
+
+            xmlReader.nextTag();
+
+            for (xmlReader.nextTag(); xmlReader.isStartElement(); xmlReader.nextTag()) {
+                indexingProgress.start();
+
                 String elementName = xmlReader.getLocalName();
 
                 if (elementName.equals("object")) {
@@ -1278,22 +2185,243 @@ public class ConfluenceXMLPackage implements AutoCloseable
                 } else {
                     StAXUtils.skipElement(xmlReader);
                 }
-                long pos = s.getByteCount();
-                if (pos >= nextStepPos) {
-                    progress.endStep(this);
-                    nextStepPos += stepSize;
-                    inStep = false;
-                }
+
+                indexingProgress.update(s.getByteCount());
             }
-            if (inStep) {
-                progress.endStep(this);
+        }
+    }
+
+    /**
+     * Parse chunks of the entities in parallel but index the found objects in the order of the file so that the
+     * result is the same as with a sequential parsing.
+     */
+    private void parseEntities(List<Long> chunks, IndexingProgress indexingProgress)
+        throws FilterException, ConfluenceCanceledException
+    {
+        int threads = getParsingThreads();
+        ExecutorService parsers = Executors.newFixedThreadPool(threads,
+            new BasicThreadFactory.Builder().namingPattern("Confluence package parsing %d").daemon(true).build());
+
+        try {
+            Deque<Future<List<ParsedObject>>> parsed = new ArrayDeque<>();
+            int submitted = 0;
+            for (int i = 1; i < chunks.size(); i++) {
+                // Parse a few chunks ahead but not too many to not keep too much in memory
+                for (; submitted < chunks.size() - 1 && parsed.size() < threads * 2; submitted++) {
+                    long start = chunks.get(submitted);
+                    long end = chunks.get(submitted + 1);
+                    parsed.add(parsers.submit(() -> parseEntities(start, end)));
+                }
+
+                indexingProgress.start();
+
+                for (ParsedObject object : getParsedObjects(parsed.remove())) {
+                    indexObject(object);
+                }
+
+                indexingProgress.update(chunks.get(i));
             }
-            try {
-                saveState();
-            } catch (IllegalAccessException | IOException e) {
-                logger.warn("Unable to save the package state, restoring for later migrations won't work", e);
+        } finally {
+            parsers.shutdownNow();
+        }
+    }
+
+    private List<ParsedObject> parseEntities(long start, long end)
+        throws IOException, XMLStreamException, FilterException
+    {
+        List<ParsedObject> objects = new ArrayList<>();
+
+        try (FileInputStream stream = new FileInputStream(this.entities)) {
+            stream.getChannel().position(start);
+
+            // Make the chunk a valid XML document
+            InputStream chunk = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(CHUNK_START),
+                new BoundedInputStream(new BufferedInputStream(stream), end - start),
+                new ByteArrayInputStream(CHUNK_END))));
+
+            XMLStreamReader xmlReader =
+                XML_INPUT_FACTORY.createXMLStreamReader(new WithoutControlCharactersReader(chunk));
+
+            xmlReader.nextTag();
+
+            for (xmlReader.nextTag(); xmlReader.isStartElement(); xmlReader.nextTag()) {
+                if (xmlReader.getLocalName().equals("object")) {
+                    ParsedObject object = parseObject(xmlReader);
+                    if (object != null) {
+                        objects.add(object);
+                    }
+                } else {
+                    StAXUtils.skipElement(xmlReader);
+                }
             }
-            progress.popLevelProgress(this);
+        }
+
+        return objects;
+    }
+
+    private List<ParsedObject> getParsedObjects(Future<List<ParsedObject>> future) throws FilterException
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new FilterException("Failed to parse the entities", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException("Interrupted while parsing the entities", e);
+        }
+    }
+
+    /**
+     * @return the offsets of the chunks of entities which can be parsed in parallel, empty if the entities should be
+     *     parsed sequentially
+     */
+    private List<Long> getEntitiesChunks()
+    {
+        // Only an extracted entities.xml file can be read from several places at the same time
+        long chunkSize = getParsingChunkSize();
+        if (this.zipFile != null || getParsingThreads() <= 1 || this.entities.length() < chunkSize * 2) {
+            return Collections.emptyList();
+        }
+
+        try (ObjectBoundaryScanner scanner = new ObjectBoundaryScanner(this.entities)) {
+            return scanner.split(chunkSize);
+        } catch (IOException e) {
+            logger.warn("Failed to split the entities, parsing them sequentially: {}",
+                ExceptionUtils.getRootCauseMessage(e));
+
+            return Collections.emptyList();
+        }
+    }
+
+    private String getBodyCompression()
+    {
+        return this.inputProperties != null ? this.inputProperties.getBodyCompression()
+            : BodyStore.COMPRESSION_DEFLATE;
+    }
+
+    private int getExtractionThreads()
+    {
+        int threads = this.inputProperties != null ? this.inputProperties.getExtractionThreads() : 0;
+
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private int getParsingThreads()
+    {
+        int threads = this.inputProperties != null ? this.inputProperties.getParsingThreads() : 0;
+
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private long getParsingChunkSize()
+    {
+        int chunkSize = this.inputProperties != null ? this.inputProperties.getParsingChunkSize() : 0;
+
+        return chunkSize > 0 ? chunkSize : DEFAULT_PARSING_CHUNK_SIZE;
+    }
+
+    private long getIndexMemoryBudget()
+    {
+        int budget = this.inputProperties != null ? this.inputProperties.getIndexMemoryBudget() : 0;
+
+        return budget > 0 ? budget * 1024L * 1024L : Runtime.getRuntime().maxMemory() / TITLES_MEMORY_RATIO;
+    }
+
+    private int getIndexingThreads()
+    {
+        int threads = this.inputProperties != null ? this.inputProperties.getIndexingThreads() : 0;
+
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private void index(Object id, PartitionedExecutor.Task task) throws FilterException
+    {
+        try {
+            this.indexer.execute(id, task);
+        } catch (ExecutionException e) {
+            throw new FilterException(FAILED_TO_INDEX, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException(FAILED_TO_INDEX, e);
+        }
+    }
+
+    private void joinIndexer() throws FilterException
+    {
+        try {
+            this.indexer.join();
+        } catch (ExecutionException e) {
+            throw new FilterException(FAILED_TO_INDEX, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException(FAILED_TO_INDEX, e);
+        }
+    }
+
+    private InputStream openEntities() throws IOException
+    {
+        if (this.zipFile != null) {
+            return this.zipFile.getInputStream(getZipEntry(FILE_ENTITIES));
+        }
+
+        return new FileInputStream(this.entities);
+    }
+
+    private long getEntitiesSize() throws IOException
+    {
+        return this.zipFile != null ? getZipEntry(FILE_ENTITIES).getSize() : this.entities.length();
+    }
+
+    private ZipEntry getZipEntry(String name) throws FileNotFoundException
+    {
+        ZipEntry entry = this.zipFile.getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException(String.format("No entry [%s] in [%s]", name, this.zipFile.getName()));
+        }
+
+        return entry;
+    }
+
+    private ConfluenceObjectStore createStore() throws IOException
+    {
+        if (this.inputProperties != null && OBJECT_STORE_DIRECTORY.equals(this.inputProperties.getObjectStore())) {
+            return new ShardedObjectStore(this.tree);
+        }
+
+        return new LogObjectStore(this.tree);
+    }
+
+    private ObjectLocationIndex openLocations(File state) throws IOException
+    {
+        File file = new File(state, LOCATIONS_FILENAME);
+        ObjectLocationIndex index = file.exists() ? ObjectLocationIndex.read(file) : null;
+
+        // Working directory created before the locations were saved
+        return index != null ? index : ObjectLocationIndex.create(this.store);
+    }
+
+    private String getStoreLayout()
+    {
+        return this.store instanceof ShardedObjectStore ? ShardedObjectStore.LAYOUT : LogObjectStore.LAYOUT;
+    }
+
+    private ConfluenceObjectStore openStore(File tree, File state) throws IOException
+    {
+        File layoutFile = new File(state, STORE_LAYOUT_FILENAME);
+        if (!layoutFile.exists()) {
+            // Working directory created before the layout of the store was recorded
+            return LogObjectStore.exists(tree) ? new LogObjectStore(tree) : new DirectoryObjectStore(tree);
+        }
+
+        String layout = Files.readString(layoutFile.toPath()).trim();
+        switch (layout) {
+            case LogObjectStore.LAYOUT:
+                return new LogObjectStore(tree);
+            case ShardedObjectStore.LAYOUT:
+                return new ShardedObjectStore(tree);
+            default:
+                throw new IOException(String.format("Unsupported object store layout [%s]", layout));
         }
     }
 
@@ -1309,68 +2437,157 @@ public class ConfluenceXMLPackage implements AutoCloseable
     }
 
     private void readObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException, ConfluenceCanceledException
+        throws XMLStreamException, FilterException, ConfluenceCanceledException
     {
-        if (this.jobStatus != null && this.jobStatus.isCanceled()) {
-            throw new ConfluenceCanceledException();
+        ParsedObject object = parseObject(xmlReader);
+
+        if (object != null) {
+            indexObject(object);
         }
+    }
 
+    private ParsedObject parseObject(XMLStreamReader xmlReader) throws XMLStreamException, FilterException
+    {
         String type = xmlReader.getAttributeValue(null, ATTRIBUTE_CLASS);
 
         if (type == null) {
+            return null;
+        }
+
+        ConfluenceProperties properties = new ConfluenceProperties();
+
+        if (type.equals(OBJECT_TYPE_CONFLUENCE_USER_IMPL)) {
+            return new ParsedObject(type, properties, readImplObjectProperties(xmlReader, properties));
+        }
+
+        if (type.equals(OBJECT_TYPE_BODY_CONTENT)) {
+            properties.disableListDelimiter();
+        }
+
+        return new ParsedObject(type, properties, readObjectProperties(xmlReader, properties));
+    }
+
+    private void indexObject(ParsedObject object) throws FilterException, ConfluenceCanceledException
+    {
+        if (this.jobStatus != null && this.jobStatus.isCanceled()) {
+            throw new ConfluenceCanceledException();
+        }
+
+        if (this.selection != null && !isSelected(object)) {
             return;
         }
 
-        switch (type) {
+        if (this.fingerprints != null && object.key == null) {
+            addFingerprint(object);
+        }
+
+        ConfluenceProperties properties = object.properties;
+        long id = object.id;
+
+        switch (object.type) {
             case OBJECT_TYPE_PAGE:
-                readPageObject(xmlReader);
+                indexPageObject(properties, id, false);
                 break;
             case OBJECT_TYPE_SPACE:
-                readSpaceObject(xmlReader);
+                indexSpaceObject(properties, id);
                 break;
             case OBJECT_TYPE_INTERNAL_USER:
-                readInternalUserObject(xmlReader);
+                index(id, () -> saveObjectProperties(FOLDER_INTERNALUSER, properties, id));
                 break;
             case OBJECT_TYPE_CONFLUENCE_USER_IMPL:
-                readUserImplObject(xmlReader);
+                index(object.key, () -> saveObjectProperties(FOLDER_USERIMPL, properties, object.key));
                 break;
             case OBJECT_TYPE_INTERNAL_GROUP:
-                readGroupObject(xmlReader);
+                index(id, () -> saveObjectProperties(FOLDER_GROUP, properties, id));
                 break;
             case OBJECT_TYPE_HIBERNATE_MEMBERSHIP:
-                readMembershipObject(xmlReader);
+                indexMembershipObject(properties);
                 break;
             case OBJECT_TYPE_BODY_CONTENT:
-                readBodyContentObject(xmlReader);
+                indexBodyContentObject(properties);
                 break;
             case OBJECT_TYPE_SPACE_PERMISSION:
-                readSpacePermissionObject(xmlReader);
+                indexSpacePermissionObject(properties, id);
                 break;
             case OBJECT_TYPE_CONTENT_PERMISSION:
-                readContentPermissionObject(xmlReader);
+                indexContentPermissionObject(properties, id);
                 break;
             case OBJECT_TYPE_CONTENT_PERMISSION_SET:
-                readContentPermissionSetObject(xmlReader);
+                indexContentPermissionSetObject(properties, id);
                 break;
             case OBJECT_TYPE_ATTACHMENT:
-                readAttachmentObject(xmlReader);
+                indexAttachmentObject(properties, id);
                 break;
             case OBJECT_TYPE_COMMENT:
-                readCommentObject(xmlReader);
+                indexCommentObject(properties, id);
                 break;
             case OBJECT_TYPE_BLOG_POST:
-                readBlogPostObject(xmlReader);
+                indexPageObject(properties, id, true);
                 break;
             case OBJECT_TYPE_LABELLING:
-                readLabellingObject(xmlReader);
+                indexLabellingObject(properties, id);
                 break;
             default:
-                ConfluenceProperties properties = new ConfluenceProperties();
+                index(id, () -> saveObjectProperties(properties, id));
+                break;
+        }
+    }
 
-                long id = readObjectProperties(xmlReader, properties);
+    private void addFingerprint(ParsedObject object)
+    {
+        ConfluenceProperties properties = object.properties;
 
-                saveObjectProperties(properties, id);
+        // Only the objects which are part of pages are tracked, the other ones are always sent
+        String namespace = object.type;
+        String ownerNamespace = ObjectFingerprints.CONTENT;
+        Long ownerId;
+        switch (object.type) {
+            case OBJECT_TYPE_PAGE:
+            case OBJECT_TYPE_BLOG_POST:
+                namespace = ObjectFingerprints.CONTENT;
+                // Historical versions belong to the current page
+                ownerId = properties.getLong(KEY_PAGE_ORIGINAL_VERSION, null);
+                break;
+            case OBJECT_TYPE_COMMENT:
+                namespace = ObjectFingerprints.CONTENT;
+                ownerId = properties.getLong(KEY_COMMENT_CONTAINERCONTENT, null);
+                break;
+            case OBJECT_TYPE_ATTACHMENT:
+                namespace = ObjectFingerprints.CONTENT;
+                ownerId = getAttachmentPageId(properties);
+                break;
+            case OBJECT_TYPE_BODY_CONTENT:
+                ownerId = properties.getLong(KEY_BODY_CONTENT_CONTENT, null);
+                break;
+            case OBJECT_TYPE_LABELLING:
+                ownerId = properties.getLong(KEY_LABELLING_CONTENT, null);
+                break;
+            case OBJECT_TYPE_CONTENT_PERMISSION_SET:
+                ownerId = properties.getLong(KEY_CONTENT_PERMISSION_SET_OWNING_CONTENT, null);
+                break;
+            case OBJECT_TYPE_CONTENT_PERMISSION:
+                ownerNamespace = OBJECT_TYPE_CONTENT_PERMISSION_SET;
+                ownerId = properties.getLong(KEY_CONTENT_PERMISSION_OWNING_SET, null);
                 break;
+            default:
+                return;
+        }
+
+        List<Object> values = new ArrayList<>();
+        for (Iterator<String> it = properties.getKeys(); it.hasNext();) {
+            String key = it.next();
+            values.add(key);
+            values.add(properties.getProperty(key));
+        }
+
+        this.fingerprints.put(namespace, object.id, ObjectFingerprints.fingerprint(values),
+            ownerId != null ? ownerNamespace : null, ownerId != null ? ownerId : 0);
+
+        if (ownerId == null && (object.type.equals(OBJECT_TYPE_PAGE) || object.type.equals(OBJECT_TYPE_BLOG_POST))) {
+            // The references of the descendants of the page depend on it
+            this.fingerprints.putLocation(object.id, ObjectFingerprints.fingerprint(Arrays.asList(
+                properties.getProperty(KEY_PAGE_TITLE), properties.getProperty(KEY_PAGE_PARENT),
+                properties.getProperty(KEY_PAGE_SPACE))));
         }
     }
 
@@ -1409,6 +2626,8 @@ public class ConfluenceXMLPackage implements AutoCloseable
                 setPropertyClass(properties, attributeName, className);
                 if ("collection".equals(localName)) {
                     properties.setProperty(attributeName, readListProperty(xmlReader));
+                } else if (DATE_KEYS.contains(attributeName)) {
+                    properties.setProperty(attributeName, readDateProperty(xmlReader));
                 } else {
                     properties.setProperty(attributeName, readProperty(xmlReader));
                 }
@@ -1422,53 +2641,75 @@ public class ConfluenceXMLPackage implements AutoCloseable
         return id;
     }
 
-    private void readAttachmentObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, FilterException, ConfigurationException
+    private void indexAttachmentObject(ConfluenceProperties properties, long attachmentId) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long attachmentId = readObjectProperties(xmlReader, properties);
-
         Long pageId = getAttachmentPageId(properties);
 
         if (pageId != null) {
-            saveAttachmentProperties(properties, pageId, attachmentId);
+            index(attachmentId, () -> saveAttachmentProperties(properties, pageId, attachmentId));
         }
     }
 
-    private void readCommentObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, FilterException, ConfigurationException
+    private void indexCommentObject(ConfluenceProperties properties, long commentId) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long commentId = readObjectProperties(xmlReader, properties);
-
-        saveObjectProperties(properties, commentId);
+        index(commentId, () -> saveObjectProperties(properties, commentId));
 
         saveInParent(properties, KEY_COMMENT_CONTAINERCONTENT, OBJECT_TYPE_PAGE, KEY_PAGE_COMMENTS, commentId);
     }
 
     private void saveInParent(ConfluenceProperties childProperties, String parentInChildField, String parentType,
-        String childrenInParentField, long childId) throws ConfigurationException
+        String childrenInParentField, long childId) throws FilterException
     {
         Long parentId = childProperties.getLong(parentInChildField, null);
         if (parentId != null) {
-            ConfluenceProperties parentProperties = getParentObjectByType(parentType, parentId);
-            if (parentProperties == null) {
-                return;
-            }
-            List<Long> childIds = getLongList(parentProperties, childrenInParentField);
-            if (childIds == null) {
-                childIds = new ArrayList<>();
-            }
-            if (!childIds.contains(childId)) {
-                childIds.add(childId);
-                parentProperties.setProperty(childrenInParentField, childIds);
-                parentProperties.save();
+            addRelation(parentId, parentType, childrenInParentField, childId);
+        }
+    }
+
+    private void addRelation(long parentId, String parentType, String childrenInParentField, long childId)
+    {
+        // The children are only written in their parent once all of them are known. The same field can list
+        // children in parents of different types, which are not stored in the same place.
+        this.relations
+            .computeIfAbsent(parentType + '/' + childrenInParentField,
+                k -> new Relation(parentType, childrenInParentField))
+            .children.add(parentId, childId);
+    }
+
+    /**
+     * Write the children found while indexing in their parent, once for each parent.
+     */
+    private void saveRelations() throws FilterException
+    {
+        for (Relation relation : this.relations.values()) {
+            for (Map.Entry<Long, List<Long>> children : relation.children.asMap().entrySet()) {
+                Long parentId = children.getKey();
+                List<Long> childIds = children.getValue();
+                index(parentId,
+                    () -> saveInParent(parentId, relation.parentType, relation.childrenInParentField, childIds));
             }
         }
     }
 
+    private void saveInParent(Long parentId, String parentType, String childrenInParentField, List<Long> childIds)
+        throws ConfigurationException
+    {
+        ConfluenceProperties parentProperties = getParentObjectByType(parentType, parentId);
+        if (parentProperties == null) {
+            return;
+        }
+
+        // Keep the children already listed by the parent itself first, and each child only once
+        Set<Long> allChildIds = new LinkedHashSet<>(getLongList(parentProperties, childrenInParentField,
+            Collections.emptyList()));
+        int size = allChildIds.size();
+        allChildIds.addAll(childIds);
+        if (allChildIds.size() != size) {
+            parentProperties.setProperty(childrenInParentField, new ArrayList<>(allChildIds));
+            parentProperties.save();
+        }
+    }
+
     private ConfluenceProperties getParentObjectByType(String type, Long id) throws ConfigurationException
     {
         switch (type) {
@@ -1500,36 +2741,36 @@ public class ConfluenceXMLPackage implements AutoCloseable
         return pageId;
     }
 
-    private void readSpaceObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, FilterException, ConfigurationException
+    private void indexSpaceObject(ConfluenceProperties properties, long spaceId) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long spaceId = readObjectProperties(xmlReader, properties);
-
-        saveSpaceProperties(properties, spaceId);
+        index(spaceId, () -> saveSpaceProperties(properties, spaceId));
 
         Long homePageId = properties.getLong(KEY_SPACE_HOMEPAGE, null);
         if (homePageId != null) {
             Long formerHome = homePages.get(spaceId);
             if (!homePageId.equals(formerHome)) {
-                ConfluenceProperties homePageProperties = getPageProperties(homePageId, true);
-                homePageProperties.setProperty(KEY_PAGE_HOMEPAGE, true);
-                savePageProperties(homePageProperties, homePageId);
+                index(homePageId, () -> {
+                    ConfluenceProperties homePageProperties = getPageProperties(homePageId, true);
+                    homePageProperties.setProperty(KEY_PAGE_HOMEPAGE, true);
+                    homePageProperties.save();
+                });
                 if (formerHome != null) {
-                    ConfluenceProperties formerHomePageProperties = getPageProperties(formerHome, false);
-                    if (formerHomePageProperties != null) {
-                        formerHomePageProperties.clearProperty(KEY_PAGE_HOMEPAGE);
-                        formerHomePageProperties.save();
-                        orphans.computeIfAbsent(spaceId, k -> new ArrayList<>()).add(formerHome);
-                    }
+                    index(formerHome, () -> {
+                        ConfluenceProperties formerHomePageProperties = getPageProperties(formerHome, false);
+                        if (formerHomePageProperties != null) {
+                            formerHomePageProperties.clearProperty(KEY_PAGE_HOMEPAGE);
+                            formerHomePageProperties.save();
+                        }
+                    });
+                    // The former home page was saved when it became the home page
+                    this.orphans.add(spaceId, formerHome);
                 }
                 setHomePage(spaceId, homePageId);
             }
         }
 
         // Register space by id
-        this.pages.computeIfAbsent(spaceId, k -> new LinkedList<>());
+        this.pages.putKey(spaceId);
 
         // Register space by key
         String spaceKey = properties.getString("key");
@@ -1538,44 +2779,31 @@ public class ConfluenceXMLPackage implements AutoCloseable
         }
     }
 
-    private void readSpacePermissionObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
+    private void indexSpacePermissionObject(ConfluenceProperties properties, long permissionId) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long permissionId = readObjectProperties(xmlReader, properties);
-
         Long spaceId = properties.getLong(KEY_PAGE_SPACE, null);
         if (spaceId != null) {
-            saveSpacePermissionProperties(properties, spaceId, permissionId);
+            index(permissionId, () -> saveSpacePermissionProperties(properties, spaceId, permissionId));
             saveInParent(properties, KEY_SPACE_PERMISSION_SPACE, OBJECT_TYPE_SPACE,
                 KEY_SPACE_PERMISSIONS, permissionId);
         }
     }
 
-    private void readContentPermissionObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, FilterException, ConfigurationException
+    private void indexContentPermissionObject(ConfluenceProperties properties, long permissionId) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long permissionId = readObjectProperties(xmlReader, properties);
-
         Long contentPermissionSetId = properties.getLong(KEY_CONTENT_PERMISSION_OWNING_SET, null);
         if (contentPermissionSetId != null) {
-            saveContentPermissionProperties(properties, contentPermissionSetId, permissionId);
+            index(permissionId,
+                () -> saveContentPermissionProperties(properties, contentPermissionSetId, permissionId));
             saveInParent(properties, KEY_CONTENT_PERMISSION_OWNING_SET, OBJECT_TYPE_CONTENT_PERMISSION_SET,
                 KEY_CONTENT_PERMISSION_SET_CONTENT_PERMISSIONS, permissionId);
         }
     }
 
-    private void readContentPermissionSetObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, FilterException, ConfigurationException
+    private void indexContentPermissionSetObject(ConfluenceProperties properties, long permissionSetId)
+        throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long permissionSetId = readObjectProperties(xmlReader, properties);
-
-        saveContentPermissionSetProperties(properties, permissionSetId);
+        index(permissionSetId, () -> saveContentPermissionSetProperties(properties, permissionSetId));
 
         Long owningContentId = properties.getLong(KEY_CONTENT_PERMISSION_SET_OWNING_CONTENT, null);
         if (owningContentId != null) {
@@ -1584,40 +2812,50 @@ public class ConfluenceXMLPackage implements AutoCloseable
         }
     }
 
-    private void readBodyContentObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
+    private void indexBodyContentObject(ConfluenceProperties properties) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-        properties.disableListDelimiter();
-
-        readObjectProperties(xmlReader, properties);
-
         // We save properties of the body content object in the corresponding page object.
         Long parentId = properties.getLong(KEY_BODY_CONTENT_CONTENT, null);
         if (parentId != null) {
-            String className = getPropertyClass(properties);
-            if (className == null) {
-                // Nothing to lose at this point... should not happen.
-                className = OBJECT_TYPE_PAGE;
-            }
-            ConfluenceProperties parent = getParentObjectByType(className, parentId);
-            if (parent == null) {
-                return;
-            }
+            index(parentId, () -> saveBodyContent(properties, parentId));
+        }
+    }
+
+    private void saveBodyContent(ConfluenceProperties properties, Long parentId) throws ConfigurationException
+    {
+        String className = getPropertyClass(properties);
+        if (className == null) {
+            // Nothing to lose at this point... should not happen.
+            className = OBJECT_TYPE_PAGE;
+        }
+        ConfluenceProperties parent = getParentObjectByType(className, parentId);
+        if (parent == null) {
+            return;
+        }
 
-            // This property messes with code that finds parents of objects, so we remove it.
-            // There is no way we need it, we already have the id of the content in the id property.
-            properties.clearProperty(KEY_BODY_CONTENT_CONTENT);
+        // This property messes with code that finds parents of objects, so we remove it.
+        // There is no way we need it, we already have the id of the content in the id property.
+        properties.clearProperty(KEY_BODY_CONTENT_CONTENT);
 
-            // We replace the id of the body content object with the page id, as it is this one which is correct for the
-            // page property object in which we save the body content.
-            // We could have cleared it and let this property be set when reading the page object, but we've seen cases
-            // where the page object is missing from the Vonfluence export (!!).
-            properties.setProperty(KEY_ID, parentId);
+        // We replace the id of the body content object with the page id, as it is this one which is correct for the
+        // page property object in which we save the body content.
+        // We could have cleared it and let this property be set when reading the page object, but we've seen cases
+        // where the page object is missing from the Vonfluence export (!!).
+        properties.setProperty(KEY_ID, parentId);
 
-            parent.copy(properties);
-            parent.save();
+        // Bodies are only needed when converting the content, so don't make every reader of the parent parse them
+        String body = properties.getString(KEY_PAGE_BODY, null);
+        if (body != null) {
+            try {
+                properties.setProperty(KEY_PAGE_BODY_REFERENCE, this.bodies.append(body));
+                properties.clearProperty(KEY_PAGE_BODY);
+            } catch (IOException e) {
+                throw new ConfigurationException("Failed to store the body of the object [" + parentId + "]", e);
+            }
         }
+
+        parent.copy(properties);
+        parent.save();
     }
 
     private static String getPropertyClass(ConfluenceProperties properties)
@@ -1628,27 +2866,10 @@ public class ConfluenceXMLPackage implements AutoCloseable
     private static void setPropertyClass(ConfluenceProperties properties, String attributeName, String className)
     {
         properties.setProperty(attributeName + PROPERTY_CLASS_SUFFIX, className);
-    }
-
-    private void readPageObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
-    {
-        readPageObject(xmlReader, false);
-    }
-
-    private void readBlogPostObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
-    {
-        readPageObject(xmlReader, true);
-    }
-
-    private void readPageObject(XMLStreamReader xmlReader, boolean isBlog)
-        throws XMLStreamException, ConfigurationException, FilterException
-    {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long pageId = readObjectProperties(xmlReader, properties);
+    }
 
+    private void indexPageObject(ConfluenceProperties properties, long pageId, boolean isBlog) throws FilterException
+    {
         // Skip deleted, archived or draft pages
         // Note that some draft pages don't have spaces and this causes issues.
         String contentStatus = properties.getString(ConfluenceXMLPackage.KEY_PAGE_CONTENT_STATUS);
@@ -1660,11 +2881,6 @@ public class ConfluenceXMLPackage implements AutoCloseable
         Long originalVersion = properties.getLong(KEY_PAGE_ORIGINAL_VERSION, null);
         if (originalVersion == null) {
             Long spaceId = properties.getLong(KEY_PAGE_SPACE, null);
-            Set<Long> missingParentsForSpace = missingParents.get(spaceId);
-            if (missingParentsForSpace != null) {
-                missingParentsForSpace.remove(pageId);
-            }
-
             if (spaceId == null) {
                 this.logger.error("Could not find space of page [{}]. Importing it may fail.", pageId);
             } else {
@@ -1677,120 +2893,119 @@ public class ConfluenceXMLPackage implements AutoCloseable
                             properties.setProperty(KEY_PAGE_HOMEPAGE, true);
                             setHomePage(spaceId, pageId);
                         } else if (!homePage.equals(pageId)) {
-                            orphans.computeIfAbsent(spaceId, k -> new ArrayList<>()).add(pageId);
+                            this.orphans.add(spaceId, pageId);
                         }
                     } else {
-                        pageChildren.computeIfAbsent(parent, k -> new ArrayList<>()).add(pageId);
-                        if (!this.pages.getOrDefault(spaceId, Collections.emptyList()).contains(parent)) {
-                            missingParents.computeIfAbsent(spaceId, k -> new LinkedHashSet<>()).add(parent);
-                        }
+                        this.pageChildren.add(parent, pageId);
+                        // Whether the parent exists is only known once all the pages are indexed
+                        this.parentReferences.add(spaceId, parent);
                     }
                 }
-                (isBlog ? this.blogPages : this.pages).computeIfAbsent(spaceId, k -> new LinkedList<>()).add(pageId);
+                (isBlog ? this.blogPages : this.pages).add(spaceId, pageId);
                 String title = properties.getString(KEY_PAGE_TITLE, null);
                 if (title != null) {
-                    pagesBySpaceAndTitle.computeIfAbsent(spaceId, k -> new HashMap<>()).put(title, pageId);
+                    pagesBySpaceAndTitle.put(spaceId, title, pageId);
                 }
             }
         } else {
             saveInParent(properties, KEY_PAGE_ORIGINAL_VERSION, OBJECT_TYPE_PAGE, KEY_PAGE_REVISIONS, pageId);
         }
 
-        savePageProperties(properties, pageId);
+        index(pageId, () -> savePageProperties(properties, pageId));
     }
 
-    private void setHomePage(Long spaceId, long pageId)
+    /**
+     * Find the parents which are not pages of the space of their children, in the order in which they were first
+     * referenced.
+     */
+    private void resolveMissingParents()
     {
-        homePages.put(spaceId, pageId);
-        Collection<Long> spaceOrphans = orphans.get(spaceId);
-        if (spaceOrphans != null) {
-            spaceOrphans.remove(pageId);
+        for (Map.Entry<Long, List<Long>> entry : this.parentReferences.asMap().entrySet()) {
+            long spaceId = entry.getKey();
+
+            Set<Long> spacePages = new HashSet<>(getValues(this.pages, spaceId));
+            spacePages.addAll(getValues(this.blogPages, spaceId));
+
+            for (Long parent : entry.getValue()) {
+                if (spacePages.add(parent)) {
+                    // Adding the missing parent to the set also makes sure it's listed only once
+                    this.missingParents.add(spaceId, parent);
+                }
+            }
         }
+
+        this.parentReferences.clear();
     }
 
-    private void readLabellingObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, FilterException, ConfigurationException
+    private void setHomePage(Long spaceId, long pageId)
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
+        homePages.put(spaceId, pageId);
+        this.orphans.remove(spaceId, pageId);
+    }
 
-        long labellingId = readObjectProperties(xmlReader, properties);
-        saveObjectProperties(properties, labellingId);
+    private void indexLabellingObject(ConfluenceProperties properties, long labellingId) throws FilterException
+    {
+        index(labellingId, () -> saveObjectProperties(properties, labellingId));
 
         // Since confluence 8.0, the labellings are not part of the Page Object anymore.
         Long pageId = properties.getLong(KEY_LABELLING_CONTENT, null);
 
         if (pageId != null) {
-            ConfluenceProperties pageProperties = getPageProperties(pageId, true);
-
-            if (!pageProperties.getList(KEY_PAGE_LABELLINGS).contains(labellingId)) {
-                pageProperties.addProperty(KEY_PAGE_LABELLINGS, labellingId);
-                pageProperties.save();
-            }
+            addRelation(pageId, OBJECT_TYPE_PAGE, KEY_PAGE_LABELLINGS, labellingId);
         }
     }
 
-    private void readInternalUserObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
+    private void indexMembershipObject(ConfluenceProperties properties) throws FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        long pageId = readObjectProperties(xmlReader, properties);
+        Long parentGroup = properties.getLong("parentGroup", null);
 
-        saveObjectProperties(FOLDER_INTERNALUSER, properties, pageId);
+        if (parentGroup != null) {
+            index(parentGroup, () -> saveMembership(properties, parentGroup));
+        }
     }
 
-    private void readUserImplObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
+    private void saveMembership(ConfluenceProperties properties, Long parentGroup) throws ConfigurationException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
+        ConfluenceProperties groupProperties = getGroupProperties(parentGroup);
 
-        String key = readImplObjectProperties(xmlReader, properties);
+        Long userMember = properties.getLong("userMember", null);
 
-        saveObjectProperties(FOLDER_USERIMPL, properties, key);
-    }
+        if (userMember != null) {
+            List<Long> users =
+                new ArrayList<>(getLongList(groupProperties, KEY_GROUP_MEMBERUSERS, Collections.emptyList()));
+            users.add(userMember);
+            groupProperties.setProperty(KEY_GROUP_MEMBERUSERS, users);
+        }
 
-    private void readGroupObject(XMLStreamReader xmlReader)
-        throws XMLStreamException, ConfigurationException, FilterException
-    {
-        ConfluenceProperties properties = new ConfluenceProperties();
+        Long groupMember = properties.getLong("groupMember", null);
 
-        long pageId = readObjectProperties(xmlReader, properties);
+        if (groupMember != null) {
+            List<Long> groups = new ArrayList<>(
+                getLongList(groupProperties, KEY_GROUP_MEMBERGROUPS, Collections.emptyList()));
+            groups.add(groupMember);
+            groupProperties.setProperty(KEY_GROUP_MEMBERGROUPS, groups);
+        }
 
-        saveObjectProperties(FOLDER_GROUP, properties, pageId);
+        groupProperties.save();
     }
 
-    private void readMembershipObject(XMLStreamReader xmlReader)
-        throws ConfigurationException, XMLStreamException, FilterException
+    private Object readDateProperty(XMLStreamReader xmlReader) throws XMLStreamException, FilterException
     {
-        ConfluenceProperties properties = new ConfluenceProperties();
-
-        readObjectProperties(xmlReader, properties);
-
-        Long parentGroup = properties.getLong("parentGroup", null);
-
-        if (parentGroup != null) {
-            ConfluenceProperties groupProperties = getGroupProperties(parentGroup);
-
-            Long userMember = properties.getLong("userMember", null);
-
-            if (userMember != null) {
-                List<Long> users =
-                    new ArrayList<>(getLongList(groupProperties, KEY_GROUP_MEMBERUSERS, Collections.emptyList()));
-                users.add(userMember);
-                groupProperties.setProperty(KEY_GROUP_MEMBERUSERS, users);
-            }
-
-            Long groupMember = properties.getLong("groupMember", null);
+        Object value = readProperty(xmlReader);
 
-            if (groupMember != null) {
-                List<Long> groups = new ArrayList<>(
-                    getLongList(groupProperties, KEY_GROUP_MEMBERGROUPS, Collections.emptyList()));
-                groups.add(groupMember);
-                groupProperties.setProperty(KEY_GROUP_MEMBERGROUPS, groups);
+        if (value instanceof String && !((String) value).isEmpty()) {
+            try {
+                long time = INDEXED_DATE_FORMATS.get().parse((String) value).getTime();
+                // getDate() only recognizes positive numbers
+                if (time >= 0) {
+                    return time;
+                }
+            } catch (ParseException e) {
+                // Keep the value as is, getDate() will report the problem if anything needs this date
             }
-
-            saveObjectProperties(FOLDER_GROUP, groupProperties, parentGroup);
         }
+
+        return value;
     }
 
     private Object readProperty(XMLStreamReader xmlReader) throws XMLStreamException, FilterException
@@ -1894,78 +3109,39 @@ public class ConfluenceXMLPackage implements AutoCloseable
         return set;
     }
 
-    private File getSpacesFolder()
-    {
-        return new File(this.tree, "spaces");
-    }
-
-    private File getContentPermissionSetsFolder()
-    {
-        return new File(this.tree, "contentPermissionSets");
-    }
-
-    private File getSpaceFolder(long spaceId)
-    {
-        return new File(getSpacesFolder(), String.valueOf(spaceId));
-    }
-
-    private File getPagesFolder()
-    {
-        return new File(this.tree, "pages");
-    }
-
-    private File getObjectsFolder(String folderName)
-    {
-        return new File(this.tree, folderName);
-    }
-
-    private File getInternalUserFolder()
-    {
-        return getObjectsFolder(FOLDER_INTERNALUSER);
-    }
-
-    private File getUserImplFolder()
+    private static String getPath(String parent, String child)
     {
-        return getObjectsFolder(FOLDER_USERIMPL);
+        return parent.isEmpty() ? child : parent + '/' + child;
     }
 
-    private File getGroupsFolder()
+    private String getSpacesFolder()
     {
-        return getObjectsFolder(FOLDER_GROUP);
+        return "spaces";
     }
 
-    private File getPageFolder(long pageId)
+    private String getContentPermissionSetsFolder()
     {
-        return new File(getPagesFolder(), String.valueOf(pageId));
+        return "contentPermissionSets";
     }
 
-    private File getObjectFolder(String folderName, String objectId)
+    private String getSpaceFolder(long spaceId)
     {
-        return new File(getObjectsFolder(folderName), escapeWindowsFolderName(objectId));
+        return getPath(getSpacesFolder(), String.valueOf(spaceId));
     }
 
-    private File getObjectFolder(File folder, String objectId)
+    private String getPagesFolder()
     {
-        return new File(folder, escapeWindowsFolderName(objectId));
+        return "pages";
     }
 
-    private File getPagePropertiesFile(long pageId)
+    private String getPageFolder(long pageId)
     {
-        File folder = getPageFolder(pageId);
-
-        return new File(folder, PROPERTIES_FILENAME);
-    }
-
-    private File getObjectPropertiesFile(String folderName, String propertyId)
-    {
-        File folder = getObjectFolder(folderName, propertyId);
-
-        return new File(folder, PROPERTIES_FILENAME);
+        return getPath(getPagesFolder(), String.valueOf(pageId));
     }
 
-    private File getObjectPropertiesFile(File folder, String propertyId)
+    private String getObjectFolder(String folder, String objectId)
     {
-        return new File(getObjectFolder(folder, propertyId), PROPERTIES_FILENAME);
+        return getPath(folder, escapeWindowsFolderName(objectId));
     }
 
     /**
@@ -1974,93 +3150,61 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public Collection<Long> getAttachments(long pageId)
     {
-        File folder = getAttachmentsFolder(pageId);
+        return getLongChildren(getAttachmentsFolder(pageId));
+    }
 
-        Collection<Long> attachments;
-        if (folder.exists()) {
-            String[] attachmentFolders = folder.list();
+    private Collection<Long> getLongChildren(String folder)
+    {
+        Collection<String> children = this.store.list(folder);
 
-            attachments = new TreeSet<>();
-            for (String attachmentIdString : attachmentFolders) {
-                if (NumberUtils.isCreatable(attachmentIdString)) {
-                    attachments.add(Long.valueOf(attachmentIdString));
+        Collection<Long> ids;
+        if (!children.isEmpty()) {
+            ids = new TreeSet<>();
+            for (String idString : children) {
+                if (NumberUtils.isCreatable(idString)) {
+                    ids.add(Long.valueOf(idString));
                 }
             }
         } else {
-            attachments = Collections.emptyList();
+            ids = Collections.emptyList();
         }
 
-        return attachments;
-    }
-
-    private File getAttachmentsFolder(long pageId)
-    {
-        return new File(getPageFolder(pageId), "attachments");
-    }
-
-    private File getSpacePermissionFolder(long spaceId)
-    {
-        return new File(getSpaceFolder(spaceId), FOLDER_SPACE_PERMISSIONS);
-    }
-
-    private File getContentPermissionSetFolder(long permissionSetId)
-    {
-        return new File(getContentPermissionSetsFolder(), String.valueOf(permissionSetId));
-    }
-
-    private File getContentPermissionFolder(long permissionSetId)
-    {
-        return new File(getContentPermissionSetFolder(permissionSetId), String.valueOf(permissionSetId));
-    }
-
-    private File getAttachmentFolder(long pageId, long attachmentId)
-    {
-        return new File(getAttachmentsFolder(pageId), String.valueOf(attachmentId));
+        return ids;
     }
 
-    private File getSpacePermissionFolder(long spaceId, long permissionId)
+    private String getAttachmentsFolder(long pageId)
     {
-        return new File(getSpacePermissionFolder(spaceId), String.valueOf(permissionId));
+        return getPath(getPageFolder(pageId), "attachments");
     }
 
-    private File getContentPermissionFolder(long permissionSetId, long permissionId)
+    private String getSpacePermissionFolder(long spaceId)
     {
-        return new File(getContentPermissionFolder(permissionSetId), String.valueOf(permissionId));
+        return getPath(getSpaceFolder(spaceId), FOLDER_SPACE_PERMISSIONS);
     }
 
-    private File getAttachmentPropertiesFile(long pageId, long attachmentId)
+    private String getContentPermissionSetFolder(long permissionSetId)
     {
-        File folder = getAttachmentFolder(pageId, attachmentId);
-
-        return new File(folder, PROPERTIES_FILENAME);
+        return getPath(getContentPermissionSetsFolder(), String.valueOf(permissionSetId));
     }
 
-    private File getSpacePermissionPropertiesFile(long spaceId, long permissionId)
+    private String getContentPermissionFolder(long permissionSetId)
     {
-        File folder = getSpacePermissionFolder(spaceId, permissionId);
-
-        return new File(folder, PROPERTIES_FILENAME);
+        return getPath(getContentPermissionSetFolder(permissionSetId), String.valueOf(permissionSetId));
     }
 
-    private File getContentPermissionSetPropertiesFile(long permissionSetId)
+    private String getAttachmentFolder(long pageId, long attachmentId)
     {
-        File folder = getContentPermissionSetFolder(permissionSetId);
-
-        return new File(folder, PROPERTIES_FILENAME);
+        return getPath(getAttachmentsFolder(pageId), String.valueOf(attachmentId));
     }
 
-    private File getContentPermissionPropertiesFile(long permissionSetId, long permissionId)
+    private String getSpacePermissionFolder(long spaceId, long permissionId)
     {
-        File folder = getContentPermissionFolder(permissionSetId, permissionId);
-
-        return new File(folder, PROPERTIES_FILENAME);
+        return getPath(getSpacePermissionFolder(spaceId), String.valueOf(permissionId));
     }
 
-    private File getSpacePropertiesFile(long spaceId)
+    private String getContentPermissionFolder(long permissionSetId, long permissionId)
     {
-        File folder = getSpaceFolder(spaceId);
-
-        return new File(folder, PROPERTIES_FILENAME);
+        return getPath(getContentPermissionFolder(permissionSetId), String.valueOf(permissionId));
     }
 
     /**
@@ -2071,9 +3215,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public ConfluenceProperties getPageProperties(long pageId, boolean create) throws ConfigurationException
     {
-        File file = getPagePropertiesFile(pageId);
-
-        return create || file.exists() ? ConfluenceProperties.create(file) : null;
+        return this.store.get(getPageFolder(pageId), create);
     }
 
     /**
@@ -2115,22 +3257,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
             return null;
         }
 
-        return getObjectProperties(getObjectPropertiesFile(folder, objectId), create);
-    }
-
-    private ConfluenceProperties getObjectProperties(File folder, String objectId)
-        throws ConfigurationException
-    {
-        if (objectId == null) {
-            return null;
-        }
-
-        return getObjectProperties(getObjectPropertiesFile(folder, objectId), false);
-    }
-
-    private ConfluenceProperties getObjectProperties(File propertiesFile, boolean create) throws ConfigurationException
-    {
-        return (create || propertiesFile.exists()) ? ConfluenceProperties.create(propertiesFile) : null;
+        return this.store.get(getObjectFolder(folder, objectId), create);
     }
 
     /**
@@ -2180,9 +3307,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
             return null;
         }
 
-        String idStr = id.toString();
-
-        Long parent = getObjectParent(idStr);
+        Long parent = getObjectParent(id);
         if (parent == null) {
             return new ArrayList<>();
         }
@@ -2195,7 +3320,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
         return ancestors;
     }
 
-    private Long getObjectParent(String id) throws ConfigurationException
+    private Long getObjectParent(long id) throws ConfigurationException
     {
         ConfluenceProperties properties = getConfluenceProperties(id);
         if (properties == null) {
@@ -2212,57 +3337,14 @@ public class ConfluenceXMLPackage implements AutoCloseable
         return null;
     }
 
-    private ConfluenceProperties getConfluenceProperties(String id) throws ConfigurationException
+    private ConfluenceProperties getConfluenceProperties(long id) throws ConfigurationException
     {
-        File objectFolder = findObjectFolder(id);
+        String objectFolder = this.locations.get(id);
         if (objectFolder == null) {
             return null;
         }
 
-        return getObjectProperties(objectFolder, id);
-    }
-
-    private File findObjectFolder(String id)
-    {
-        return findObjectFolder(this.tree, id);
-    }
-
-    /**
-     * @param folder the folder inside which to search.
-     * @param id the Confluence object id.
-     * @return the sub-folder of the object in this folder.
-     * @since 9.35.0
-     */
-    private File findObjectFolder(File folder, String id)
-    {
-        if (!folder.isDirectory()) {
-            return null;
-        }
-
-        String[] list = folder.list();
-        if (list.length == 0) {
-            return null;
-        }
-
-        char firstChar = list[0].charAt(0);
-        if (firstChar >= '0' && firstChar <= '9') {
-            // we assume the folder contains objects.
-            for (String child : list) {
-                if (id.equals(child)) {
-                    return folder;
-                }
-            }
-        }
-
-        // the folder contains sub-folders
-        for (String child : list) {
-            File p = findObjectFolder(new File(folder, child), id);
-            if (p != null) {
-                return p;
-            }
-        }
-
-        return null;
+        return getObjectProperties(objectFolder, String.valueOf(id), false);
     }
 
     /**
@@ -2296,23 +3378,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public Collection<Long> getInternalUsers()
     {
-        File folder = getInternalUserFolder();
-
-        Collection<Long> users;
-        if (folder.exists()) {
-            String[] userFolders = folder.list();
-
-            users = new TreeSet<>();
-            for (String userIdString : userFolders) {
-                if (NumberUtils.isCreatable(userIdString)) {
-                    users.add(Long.valueOf(userIdString));
-                }
-            }
-        } else {
-            users = Collections.emptyList();
-        }
-
-        return users;
+        return getLongChildren(FOLDER_INTERNALUSER);
     }
 
     /**
@@ -2320,17 +3386,9 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public Collection<String> getUsersImpl()
     {
-        File folder = getUserImplFolder();
-
-        Collection<String> users;
-        if (folder.exists()) {
-            users = new TreeSet<>();
-            users.addAll(Arrays.asList(folder.list()));
-        } else {
-            users = Collections.emptyList();
-        }
+        Collection<String> children = this.store.list(FOLDER_USERIMPL);
 
-        return users;
+        return children.isEmpty() ? Collections.emptyList() : new TreeSet<>(children);
     }
 
     /**
@@ -2338,23 +3396,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public Collection<Long> getGroups()
     {
-        File folder = getGroupsFolder();
-
-        Collection<Long> groups;
-        if (folder.exists()) {
-            String[] groupFolders = folder.list();
-
-            groups = new TreeSet<>();
-            for (String groupIdString : groupFolders) {
-                if (NumberUtils.isCreatable(groupIdString)) {
-                    groups.add(Long.valueOf(groupIdString));
-                }
-            }
-        } else {
-            groups = Collections.emptyList();
-        }
-
-        return groups;
+        return getLongChildren(FOLDER_GROUP);
     }
 
     /**
@@ -2375,9 +3417,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public ConfluenceProperties getAttachmentProperties(long pageId, long attachmentId) throws ConfigurationException
     {
-        File file = getAttachmentPropertiesFile(pageId, attachmentId);
-
-        return ConfluenceProperties.create(file);
+        return this.store.get(getAttachmentFolder(pageId, attachmentId), true);
     }
 
     /**
@@ -2390,9 +3430,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
     public ConfluenceProperties getSpacePermissionProperties(long spaceId, long permissionId)
         throws ConfigurationException
     {
-        File file = getSpacePermissionPropertiesFile(spaceId, permissionId);
-
-        return ConfluenceProperties.create(file);
+        return this.store.get(getSpacePermissionFolder(spaceId, permissionId), true);
     }
 
     /**
@@ -2405,9 +3443,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
     public ConfluenceProperties getContentPermissionProperties(long permissionSetId, long permissionId)
             throws ConfigurationException
     {
-        File file = getContentPermissionPropertiesFile(permissionSetId, permissionId);
-
-        return ConfluenceProperties.create(file);
+        return this.store.get(getContentPermissionFolder(permissionSetId, permissionId), true);
     }
 
     /**
@@ -2418,9 +3454,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
     public ConfluenceProperties getContentPermissionSetProperties(long permissionSetId)
             throws ConfigurationException
     {
-        File file = getContentPermissionSetPropertiesFile(permissionSetId);
-
-        return ConfluenceProperties.create(file);
+        return this.store.get(getContentPermissionSetFolder(permissionSetId), true);
     }
 
     /**
@@ -2430,9 +3464,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public ConfluenceProperties getSpaceProperties(long spaceId) throws ConfigurationException
     {
-        File file = getSpacePropertiesFile(spaceId);
-
-        return ConfluenceProperties.create(file);
+        return this.store.get(getSpaceFolder(spaceId), true);
     }
 
     private void savePageProperties(ConfluenceProperties properties, long pageId) throws ConfigurationException
@@ -2519,7 +3551,7 @@ public class ConfluenceXMLPackage implements AutoCloseable
     }
 
     /**
-     * @return the main file of the Confluence package
+     * @return the main file of the Confluence package, null when the package is read directly from a zip file
      */
     public File getEntities()
     {
@@ -2527,7 +3559,8 @@ public class ConfluenceXMLPackage implements AutoCloseable
     }
 
     /**
-     * @return the file containing information about the Confluence instance
+     * @return the file containing information about the Confluence instance, null when the package is read directly
+     *     from a zip file
      */
     public File getDescriptor()
     {
@@ -2542,11 +3575,18 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public String getDescriptorField(String field)
     {
-        if (this.descriptor == null) {
+        InputStream stream;
+        try {
+            stream = openDescriptor();
+        } catch (IOException e) {
             return null;
         }
 
-        try (Scanner scanner = new Scanner(this.descriptor)) {
+        if (stream == null) {
+            return null;
+        }
+
+        try (Scanner scanner = new Scanner(stream, StandardCharsets.UTF_8)) {
             String lineStart = field + '=';
             while (scanner.hasNextLine()) {
                 String line = scanner.nextLine();
@@ -2554,12 +3594,21 @@ public class ConfluenceXMLPackage implements AutoCloseable
                     return line.substring(lineStart.length()).trim();
                 }
             }
-        } catch (FileNotFoundException e) {
-            // ignore
         }
         return null;
     }
 
+    private InputStream openDescriptor() throws IOException
+    {
+        if (this.zipFile != null) {
+            ZipEntry entry = this.zipFile.getEntry(FILE_DESCRIPTOR);
+
+            return entry != null ? this.zipFile.getInputStream(entry) : null;
+        }
+
+        return this.descriptor != null ? new FileInputStream(this.descriptor) : null;
+    }
+
     /**
      * @param pageId the identifier of the page were the attachment is located
      * @param attachmentId the identifier of the attachment
@@ -2569,27 +3618,74 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public File getAttachmentFile(long pageId, long attachmentId, long version) throws FileNotFoundException
     {
-        File attachmentsFolder = new File(this.directory, "attachments");
+        File file = findAttachmentFile(pageId, attachmentId, version);
+
+        // The content might have been moved when deduplicating the attachments
+        File blob = this.attachmentBlobs != null ? this.attachmentBlobs.getFile(getPackagePath(file)) : null;
+
+        return blob != null ? blob : file;
+    }
+
+    private File findAttachmentFile(long pageId, long attachmentId, long version) throws FileNotFoundException
+    {
+        File attachmentsFolder = new File(this.directory, FOLDER_ATTACHMENTS);
         File attachmentsPageFolder = new File(attachmentsFolder, String.valueOf(pageId));
         File attachmentFolder = new File(attachmentsPageFolder, String.valueOf(attachmentId));
 
         // In old version the file name is the version
         File file = new File(attachmentFolder, String.valueOf(version));
 
-        if (file.exists()) {
+        if (isAttachmentFile(file)) {
             return file;
         }
 
         // In recent version the name is always 1
         file = new File(attachmentFolder, "1");
 
-        if (file.exists()) {
+        if (isAttachmentFile(file)) {
             return file;
         }
 
         throw new FileNotFoundException(file.getAbsolutePath());
     }
 
+    /**
+     * @param pageId the identifier of the page were the attachment is located
+     * @param attachmentId the identifier of the attachment
+     * @param version the version of the attachment
+     * @return the content of the attachment
+     * @throws FileNotFoundException when failing to find the attachment content
+     * @since 9.57.0
+     */
+    public ConfluenceAttachmentContent getAttachmentContent(long pageId, long attachmentId, long version)
+        throws FileNotFoundException
+    {
+        if (this.zipFile == null) {
+            if (this.attachmentBlobs == null) {
+                return new FileAttachmentContent(getAttachmentFile(pageId, attachmentId, version));
+            }
+
+            String path = getPackagePath(findAttachmentFile(pageId, attachmentId, version));
+            File blob = this.attachmentBlobs.getFile(path);
+
+            return new FileAttachmentContent(blob != null ? blob : new File(this.directory, path),
+                this.attachmentBlobs.getDigest(path));
+        }
+
+        String attachmentFolder = FOLDER_ATTACHMENTS + '/' + pageId + '/' + attachmentId + '/';
+
+        // In old version the file name is the version
+        ZipEntry entry = this.zipFile.getEntry(attachmentFolder + version);
+
+        if (entry == null) {
+            // In recent version the name is always 1
+            entry = getZipEntry(attachmentFolder + '1');
+        }
+
+        return new ZipAttachmentContent(this.zipFile, entry,
+            this.attachmentBlobs != null ? this.attachmentBlobs.getDigest(entry.getName()) : null);
+    }
+
     /**
      * Free any temporary resource used by the package.
      * 
@@ -2599,6 +3695,26 @@ public class ConfluenceXMLPackage implements AutoCloseable
     public void close() throws IOException
     {
         logger.info("Closing the Confluence package.");
+        stopExtraction();
+
+        if (this.zipFile != null) {
+            this.zipFile.close();
+            this.zipFile = null;
+        }
+
+        if (this.store != null) {
+            this.store.close();
+            this.store = null;
+            this.locations = null;
+        }
+
+        if (this.bodies != null) {
+            this.bodies.close();
+            this.bodies = null;
+        }
+
+        this.attachmentBlobs = null;
+
         if (this.tree != null) {
             FileUtils.deleteDirectory(this.tree);
         }
@@ -2720,7 +3836,60 @@ public class ConfluenceXMLPackage implements AutoCloseable
      */
     public String getCommentText(ConfluenceProperties commentProperties)
     {
-        return commentProperties.getString(KEY_PAGE_BODY);
+        try {
+            return getBody(commentProperties);
+        } catch (IOException e) {
+            logger.error("Unable to read the body of the comment [{}]", commentProperties.getString(KEY_ID, null), e);
+
+            return null;
+        }
+    }
+
+    /**
+     * @param properties the properties of a page, a blog post or a comment
+     * @return true if the content has a body
+     * @since 9.57.0
+     */
+    public boolean hasBody(ConfluenceProperties properties)
+    {
+        return properties.containsKey(KEY_PAGE_BODY) || properties.containsKey(KEY_PAGE_BODY_REFERENCE);
+    }
+
+    /**
+     * The body is loaded only when it's read, and is not kept in memory.
+     *
+     * @param properties the properties of a page, a blog post or a comment
+     * @return the body of the content, or null if it does not have any
+     * @throws IOException when failing to read the body
+     * @since 9.57.0
+     */
+    public Reader getBodyReader(ConfluenceProperties properties) throws IOException
+    {
+        // Working directories indexed before the bodies were stored apart contain the body itself
+        String body = properties.getString(KEY_PAGE_BODY, null);
+        if (body != null) {
+            return new StringReader(body);
+        }
+
+        Long reference = getLong(properties, KEY_PAGE_BODY_REFERENCE, null);
+        if (reference == null || this.bodies == null) {
+            return null;
+        }
+
+        return this.bodies.open(reference);
+    }
+
+    /**
+     * @param properties the properties of a page, a blog post or a comment
+     * @return the body of the content, or null if it does not have any
+     * @throws IOException when failing to read the body
+     * @since 9.57.0
+     */
+    public String getBody(ConfluenceProperties properties) throws IOException
+    {
+        try (Reader reader = getBodyReader(properties)) {
+            return reader != null ? IOUtils.toString(reader) : null;
+        }
     }
 
     /**
@@ -2770,4 +3939,93 @@ public class ConfluenceXMLPackage implements AutoCloseable
             return def;
         }
     }
+
+    /**
+     * Report the indexing progress based on the position in the entities.
+     */
+    private final class IndexingProgress
+    {
+        private static final int STEPS = 100;
+
+        private final long stepSize;
+
+        private long nextStepPos;
+
+        private boolean inStep;
+
+        IndexingProgress(long size)
+        {
+            progress.pushLevelProgress(STEPS, ConfluenceXMLPackage.this);
+
+            this.stepSize = Math.max(1, size / STEPS);
+            this.nextStepPos = this.stepSize;
+        }
+
+        void start()
+        {
+            if (!this.inStep) {
+                progress.startStep(ConfluenceXMLPackage.this);
+                this.inStep = true;
+            }
+        }
+
+        void update(long pos)
+        {
+            if (pos >= this.nextStepPos) {
+                progress.endStep(ConfluenceXMLPackage.this);
+                this.inStep = false;
+                this.nextStepPos = (pos / this.stepSize + 1) * this.stepSize;
+            }
+        }
+
+        void end()
+        {
+            if (this.inStep) {
+                progress.endStep(ConfluenceXMLPackage.this);
+            }
+        }
+    }
+
+    private static final class Relation
+    {
+        private final String parentType;
+
+        private final String childrenInParentField;
+
+        // Append only, the duplicates are removed when saving the children in their parent
+        private final LongListMultimap children = new LongListMultimap();
+
+        private Relation(String parentType, String childrenInParentField)
+        {
+            this.parentType = parentType;
+            this.childrenInParentField = childrenInParentField;
+        }
+    }
+
+    private static final class ParsedObject
+    {
+        private final String type;
+
+        private final ConfluenceProperties properties;
+
+        private final long id;
+
+        private final String key;
+
+        private ParsedObject(String type, ConfluenceProperties properties, long id)
+        {
+            this.type = type;
+            this.properties = properties;
+            this.id = id;
+            this.key = null;
+        }
+
+        private ParsedObject(String type, ConfluenceProperties properties, String key)
+        {
+            this.type = type;
+            this.properties = properties;
+            this.id = -1;
+            this.key = key;
+        }
+    }
 }
@@ -51,4 +51,12 @@ public interface ConfluenceFilter extends WikiFarmFilter, WikiFilter, WikiSpaceF
      * @since 9.30.0
      */
     Marker LOG_MACROS_FOUND = MarkerFactory.getMarker("filter.confluence.macros");
+
+    /**
+     * The parameter of the attachment events containing the hexadecimal SHA-256 digest of the attachment content, when
+     * the attachments are deduplicated. Attachments with the same digest have the same content.
+     *
+     * @since 9.57.0
+     */
+    String PARAMETER_ATTACHMENT_DIGEST = "confluence_attachment_digest";
 }
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import org.xwiki.contrib.confluence.filter.input.ConfluenceAttachmentContent;
+
+/**
+ * Attachment content located in an extracted Confluence package.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class FileAttachmentContent implements ConfluenceAttachmentContent
+{
+    private final File file;
+
+    private final String digest;
+
+    /**
+     * @param file the file containing the attachment content
+     */
+    public FileAttachmentContent(File file)
+    {
+        this(file, null);
+    }
+
+    /**
+     * @param file the file containing the attachment content
+     * @param digest the digest of the content, or null if it's unknown
+     */
+    public FileAttachmentContent(File file, String digest)
+    {
+        this.file = file;
+        this.digest = digest;
+    }
+
+    /**
+     * @return the file containing the attachment content
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return this.file.length();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException
+    {
+        return new FileInputStream(this.file);
+    }
+
+    @Override
+    public Path getPath()
+    {
+        return this.file.toPath();
+    }
+
+    @Override
+    public String getDigest()
+    {
+        return this.digest;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The objects of a package to index when only some of its pages are migrated.
+ * <p>
+ * The pages, the spaces and the contents owned by other contents are registered during a first pass over the
+ * entities. {@link #resolve()} then selects the included pages, their ancestors, their spaces and the home pages of
+ * these spaces, and the contents belonging to a selected page, directly or through their owners, are selected too.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class IndexingSelection
+{
+    private static final long NONE = Long.MIN_VALUE;
+
+    // Owner chains are short (a comment body belongs to a comment version, which belongs to a comment, which belongs to
+    // a page version, which belongs to a page), this only protects against cycles in broken packages
+    private static final int MAX_OWNER_DEPTH = 16;
+
+    private final Collection<Long> includedPages;
+
+    private final LongLongMap pageParents = new LongLongMap();
+
+    private final LongLongMap pageSpaces = new LongLongMap();
+
+    private final LongLongMap owners = new LongLongMap();
+
+    private final LongLongMap homePages = new LongLongMap();
+
+    private final Set<Long> pages = new HashSet<>();
+
+    private final Set<Long> spaces = new HashSet<>();
+
+    /**
+     * @param includedPages the identifiers of the pages to migrate
+     */
+    public IndexingSelection(Collection<Long> includedPages)
+    {
+        this.includedPages = includedPages;
+    }
+
+    /**
+     * @param pageId the identifier of a current page or blog post
+     * @param spaceId the identifier of the space of the page
+     * @param parentId the identifier of the parent of the page, or null if it does not have any
+     */
+    public void addPage(long pageId, long spaceId, Long parentId)
+    {
+        this.pageSpaces.put(pageId, spaceId);
+        this.pageParents.put(pageId, parentId != null ? parentId : NONE);
+    }
+
+    /**
+     * @param contentId the identifier of a content belonging to another one, like a page version or a comment
+     * @param ownerId the identifier of the content it belongs to
+     */
+    public void addOwnedContent(long contentId, long ownerId)
+    {
+        this.owners.put(contentId, ownerId);
+    }
+
+    /**
+     * @param spaceId the identifier of the space
+     * @param homePageId the identifier of the home page of the space, or null if it does not have any
+     */
+    public void addSpace(long spaceId, Long homePageId)
+    {
+        if (homePageId != null) {
+            this.homePages.put(spaceId, homePageId);
+        }
+    }
+
+    /**
+     * Select the pages and spaces to index, once all of them are registered.
+     */
+    public void resolve()
+    {
+        for (Long pageId : this.includedPages) {
+            // Ancestors are needed to know where the included pages go
+            long id = pageId;
+            while (id != NONE && this.pageSpaces.containsKey(id) && this.pages.add(id)) {
+                this.spaces.add(this.pageSpaces.get(id, NONE));
+                id = this.pageParents.get(id, NONE);
+            }
+        }
+
+        for (Long spaceId : this.spaces) {
+            long homePageId = this.homePages.get(spaceId, NONE);
+            if (homePageId != NONE) {
+                this.pages.add(homePageId);
+            }
+        }
+
+        // The spaces of the pages are still needed to know which contents are pages
+        this.pageParents.clear();
+        this.homePages.clear();
+    }
+
+    /**
+     * @param spaceId the identifier of the space
+     * @return true if the space contains selected pages
+     */
+    public boolean isSpaceSelected(Long spaceId)
+    {
+        return spaceId != null && this.spaces.contains(spaceId);
+    }
+
+    /**
+     * Contents which are not known to belong to a page are kept since nothing tells they are not needed.
+     *
+     * @param contentId the identifier of the content
+     * @return true if the content should be indexed
+     */
+    public boolean isContentSelected(Long contentId)
+    {
+        if (contentId == null) {
+            return true;
+        }
+
+        long id = contentId;
+        for (int i = 0; i < MAX_OWNER_DEPTH; i++) {
+            if (this.pages.contains(id)) {
+                return true;
+            }
+            long owner = this.owners.get(id, NONE);
+            if (owner == NONE) {
+                // A content without owner is either a page which is not selected or something else
+                return !this.pageSpaces.containsKey(id);
+            }
+            id = owner;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xwiki.contrib.confluence.filter.input.ConfluenceInventory;
+import org.xwiki.xml.stax.StAXUtils;
+
+/**
+ * Count what a Confluence package contains with a single pass over its index, only reading the few properties it
+ * needs and skipping everything else.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class InventoryScanner
+{
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final int LARGEST_BODIES = 20;
+
+    private static final int TOP_MACROS = 50;
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final Pattern MACRO = Pattern.compile("<ac:(?:structured-)?macro\\b[^>]*?\\bac:name=\"([^\"]+)\"");
+
+    private static final String ATTACHMENTS_PREFIX = "attachments/";
+
+    private static final String TYPE_PAGE = "Page";
+
+    private static final String TYPE_BLOG_POST = "BlogPost";
+
+    private static final String ID = "id";
+
+    private static final String KEY = "key";
+
+    private static final String SPACE = "space";
+
+    private static final String ORIGINAL_VERSION = "originalVersion";
+
+    private static final String CONTENT = "content";
+
+    private static final String BODY = "body";
+
+    private static final Set<String> PAGE_PROPERTIES = Set.of(SPACE, ORIGINAL_VERSION);
+
+    private static final Set<String> SPACE_PROPERTIES = Set.of(KEY);
+
+    private static final Set<String> BODY_PROPERTIES = Set.of(CONTENT, BODY);
+
+    private final Map<String, Long> objects = new HashMap<>();
+
+    private final Map<Long, String> spaceKeys = new HashMap<>();
+
+    private final LongLongMap pageSpaces = new LongLongMap();
+
+    private final LongLongMap spacePages = new LongLongMap();
+
+    private final LongLongMap spaceBlogPosts = new LongLongMap();
+
+    private final LongLongMap pageRevisions = new LongLongMap();
+
+    private final LongLongMap pageAttachmentCounts = new LongLongMap();
+
+    private final LongLongMap pageAttachmentSizes = new LongLongMap();
+
+    // The largest bodies found so far, as (size, content id), the smallest one first
+    private final PriorityQueue<long[]> largestBodies = new PriorityQueue<>(Comparator.comparingLong(b -> b[0]));
+
+    private final Map<String, Long> macros = new HashMap<>();
+
+    private long entitiesSize = -1;
+
+    private long attachmentCount;
+
+    private long attachmentSize;
+
+    /**
+     * @param stream the content of the entities.xml file of the package
+     * @throws XMLStreamException when failing to parse the index
+     */
+    public void scanEntities(InputStream stream) throws XMLStreamException
+    {
+        XMLStreamReader xmlReader = XML_INPUT_FACTORY.createXMLStreamReader(new WithoutControlCharactersReader(stream));
+
+        xmlReader.nextTag();
+
+        for (xmlReader.nextTag(); xmlReader.isStartElement(); xmlReader.nextTag()) {
+            String type = xmlReader.getLocalName().equals("object") ? xmlReader.getAttributeValue(null, "class") : null;
+            if (type == null) {
+                StAXUtils.skipElement(xmlReader);
+                continue;
+            }
+
+            this.objects.merge(type, 1L, Long::sum);
+
+            switch (type) {
+                case TYPE_PAGE:
+                case TYPE_BLOG_POST:
+                    scanPage(readProperties(xmlReader, PAGE_PROPERTIES), type);
+                    break;
+                case "Space":
+                    scanSpace(readProperties(xmlReader, SPACE_PROPERTIES));
+                    break;
+                case "BodyContent":
+                    scanBody(readProperties(xmlReader, BODY_PROPERTIES));
+                    break;
+                default:
+                    StAXUtils.skipElement(xmlReader);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param entitiesSize the size of the entities.xml file, in bytes
+     */
+    public void setEntitiesSize(long entitiesSize)
+    {
+        this.entitiesSize = entitiesSize;
+    }
+
+    /**
+     * @param path the path of a file of the package
+     * @param size the size of the file, in bytes
+     */
+    public void addFile(String path, long size)
+    {
+        if (!path.startsWith(ATTACHMENTS_PREFIX)) {
+            return;
+        }
+
+        this.attachmentCount++;
+        this.attachmentSize += size;
+
+        // attachments/<page id>/<attachment id>/<version>
+        String[] elements = path.split("/");
+        if (elements.length == 4) {
+            try {
+                long pageId = Long.parseLong(elements[1]);
+                this.pageAttachmentCounts.add(pageId, 1);
+                this.pageAttachmentSizes.add(pageId, size);
+            } catch (NumberFormatException e) {
+                // Not an attachment of a page
+            }
+        }
+    }
+
+    /**
+     * @return the inventory of everything scanned so far
+     */
+    public ConfluenceInventory getInventory()
+    {
+        ConfluenceInventory inventory = new ConfluenceInventory();
+
+        inventory.getObjects().putAll(this.objects);
+        inventory.setEntitiesSize(this.entitiesSize);
+        inventory.setAttachmentCount(this.attachmentCount);
+        inventory.setAttachmentSize(this.attachmentSize);
+
+        this.spacePages.forEach((spaceId, count) -> getSpace(inventory, spaceId).setPages(count));
+        this.spaceBlogPosts.forEach((spaceId, count) -> getSpace(inventory, spaceId).setBlogPosts(count));
+        this.pageRevisions.forEach((pageId, count) -> {
+            ConfluenceInventory.Space space = getPageSpace(inventory, pageId);
+            if (space != null) {
+                space.setRevisions(space.getRevisions() + count);
+            }
+        });
+        this.pageAttachmentCounts.forEach((pageId, count) -> {
+            ConfluenceInventory.Space space = getPageSpace(inventory, pageId);
+            if (space != null) {
+                space.setAttachmentCount(space.getAttachmentCount() + count);
+                space.setAttachmentSize(space.getAttachmentSize() + this.pageAttachmentSizes.get(pageId, 0));
+            }
+        });
+
+        List<long[]> bodies = new ArrayList<>(this.largestBodies);
+        bodies.sort(Comparator.comparingLong((long[] b) -> b[0]).reversed());
+        for (long[] body : bodies) {
+            long spaceId = this.pageSpaces.get(body[1], NONE);
+            inventory.getLargestBodies().add(
+                new ConfluenceInventory.Body(body[1], spaceId != NONE ? getSpaceKey(spaceId) : null, body[0]));
+        }
+
+        this.macros.entrySet().stream()
+            .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+            .limit(TOP_MACROS).forEach(e -> inventory.getMacros().put(e.getKey(), e.getValue()));
+
+        return inventory;
+    }
+
+    private void scanPage(Map<String, String> properties, String type)
+    {
+        Long pageId = toLong(properties.get(ID));
+        Long originalId = toLong(properties.get(ORIGINAL_VERSION));
+        Long spaceId = toLong(properties.get(SPACE));
+        if (pageId == null) {
+            return;
+        }
+
+        if (originalId != null) {
+            this.pageRevisions.add(originalId, 1);
+        } else if (spaceId != null) {
+            this.pageSpaces.put(pageId, spaceId);
+            (type.equals(TYPE_PAGE) ? this.spacePages : this.spaceBlogPosts).add(spaceId, 1);
+        }
+    }
+
+    private void scanSpace(Map<String, String> properties)
+    {
+        Long spaceId = toLong(properties.get(ID));
+        String key = properties.get(KEY);
+        if (spaceId != null && key != null) {
+            this.spaceKeys.put(spaceId, key);
+        }
+    }
+
+    private void scanBody(Map<String, String> properties)
+    {
+        String body = properties.get(BODY);
+        if (body == null) {
+            return;
+        }
+
+        Long contentId = toLong(properties.get(CONTENT));
+        if (contentId != null) {
+            this.largestBodies.add(new long[] { body.length(), contentId });
+            if (this.largestBodies.size() > LARGEST_BODIES) {
+                this.largestBodies.poll();
+            }
+        }
+
+        Matcher matcher = MACRO.matcher(body);
+        while (matcher.find()) {
+            this.macros.merge(matcher.group(1), 1L, Long::sum);
+        }
+    }
+
+    private ConfluenceInventory.Space getPageSpace(ConfluenceInventory inventory, long pageId)
+    {
+        long spaceId = this.pageSpaces.get(pageId, NONE);
+
+        return spaceId != NONE ? getSpace(inventory, spaceId) : null;
+    }
+
+    private ConfluenceInventory.Space getSpace(ConfluenceInventory inventory, long spaceId)
+    {
+        return inventory.getSpaces().computeIfAbsent(getSpaceKey(spaceId), k -> new ConfluenceInventory.Space());
+    }
+
+    private String getSpaceKey(long spaceId)
+    {
+        // Fall back to the identifier for spaces which are not in the package
+        return this.spaceKeys.getOrDefault(spaceId, String.valueOf(spaceId));
+    }
+
+    private static Long toLong(String value)
+    {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> readProperties(XMLStreamReader xmlReader, Set<String> names)
+        throws XMLStreamException
+    {
+        Map<String, String> properties = new HashMap<>();
+
+        for (xmlReader.nextTag(); xmlReader.isStartElement(); xmlReader.nextTag()) {
+            String elementName = xmlReader.getLocalName();
+            String name = xmlReader.getAttributeValue(null, "name");
+            if (elementName.equals(ID)) {
+                properties.put(ID, xmlReader.getElementText());
+            } else if (elementName.equals("property") && names.contains(name)) {
+                properties.put(name, readValue(xmlReader));
+            } else {
+                StAXUtils.skipElement(xmlReader);
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * @return the text of the current element, or the identifier of the object it references
+     */
+    private static String readValue(XMLStreamReader xmlReader) throws XMLStreamException
+    {
+        StringBuilder text = new StringBuilder();
+        String reference = null;
+        for (int event = xmlReader.next(); event != XMLStreamConstants.END_ELEMENT; event = xmlReader.next()) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (reference == null && xmlReader.getLocalName().equals(ID)) {
+                    reference = xmlReader.getElementText();
+                } else {
+                    StAXUtils.skipElement(xmlReader);
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                text.append(xmlReader.getText());
+            }
+        }
+
+        return reference != null ? reference : text.toString();
+    }
+}
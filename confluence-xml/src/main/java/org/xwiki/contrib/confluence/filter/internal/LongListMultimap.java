@@ -0,0 +1,459 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map associating primitive long keys with lists of primitive long values, keeping the insertion order of the keys.
+ * <p>
+ * Each key costs a few bytes in an open addressing table and the values of each key are stored in a growable
+ * {@code long[]}, which is an order of magnitude more compact than a {@code Map<Long, List<Long>>}. Standard
+ * collections are exposed as read-only views through {@link #get(long)} and {@link #asMap()}, the only modification
+ * allowed through these views being the removal of keys.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class LongListMultimap
+{
+    private static final long[] EMPTY = new long[0];
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The keys, by order of insertion.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    /**
+     * The values of each key, by order of insertion of the key. Null when the key was removed.
+     */
+    private long[][] values = new long[INITIAL_CAPACITY][];
+
+    private int[] sizes = new int[INITIAL_CAPACITY];
+
+    /**
+     * The number of slots used in {@link #keys}, including the removed ones.
+     */
+    private int count;
+
+    private int size;
+
+    /**
+     * Open addressing table of positions in {@link #keys} plus one, 0 marking a free slot.
+     */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private final Map<Long, List<Long>> map = new MapView();
+
+    /**
+     * @return the number of keys
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @param key the key
+     * @return true if the key is present, possibly with no value
+     */
+    public boolean containsKey(long key)
+    {
+        return getPosition(key) != -1;
+    }
+
+    /**
+     * Add a key with no value if it's not already present.
+     *
+     * @param key the key
+     */
+    public void putKey(long key)
+    {
+        getOrCreatePosition(key);
+    }
+
+    /**
+     * Replace the values of a key.
+     *
+     * @param key the key
+     * @param keyValues the new values of the key, the array is used as is
+     */
+    public void put(long key, long[] keyValues)
+    {
+        int position = getOrCreatePosition(key);
+        this.values[position] = keyValues;
+        this.sizes[position] = keyValues.length;
+    }
+
+    /**
+     * Add a value at the end of the values of a key, adding the key if needed.
+     *
+     * @param key the key
+     * @param value the value to add
+     */
+    public void add(long key, long value)
+    {
+        int position = getOrCreatePosition(key);
+
+        long[] keyValues = this.values[position];
+        int keySize = this.sizes[position];
+        if (keySize == keyValues.length) {
+            keyValues = Arrays.copyOf(keyValues, Math.max(2, keySize + (keySize >> 1) + 1));
+            this.values[position] = keyValues;
+        }
+        keyValues[keySize] = value;
+        this.sizes[position] = keySize + 1;
+    }
+
+    /**
+     * Add a value at the end of the values of a key, unless the key already has this value.
+     *
+     * @param key the key
+     * @param value the value to add
+     * @return true if the value was added
+     */
+    public boolean addIfAbsent(long key, long value)
+    {
+        if (contains(key, value)) {
+            return false;
+        }
+
+        add(key, value);
+
+        return true;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value
+     * @return true if the key has this value
+     */
+    public boolean contains(long key, long value)
+    {
+        return indexOf(getPosition(key), value) != -1;
+    }
+
+    /**
+     * Remove the first occurrence of a value from the values of a key.
+     *
+     * @param key the key
+     * @param value the value to remove
+     * @return true if the value was found
+     */
+    public boolean remove(long key, long value)
+    {
+        int position = getPosition(key);
+        int index = indexOf(position, value);
+        if (index == -1) {
+            return false;
+        }
+
+        long[] keyValues = this.values[position];
+        int keySize = this.sizes[position] - 1;
+        System.arraycopy(keyValues, index + 1, keyValues, index, keySize - index);
+        this.sizes[position] = keySize;
+
+        return true;
+    }
+
+    /**
+     * @param key the key to remove, with its values
+     * @return true if the key was present
+     */
+    public boolean removeKey(long key)
+    {
+        int position = getPosition(key);
+        if (position == -1) {
+            return false;
+        }
+
+        removePosition(position);
+
+        return true;
+    }
+
+    /**
+     * @param key the key
+     * @return a read-only view of the values of the key, or null if the key is not present
+     */
+    public List<Long> get(long key)
+    {
+        int position = getPosition(key);
+
+        return position != -1 ? new ValuesView(position) : null;
+    }
+
+    /**
+     * @return a view of this multimap, supporting only the removal of keys
+     */
+    public Map<Long, List<Long>> asMap()
+    {
+        return this.map;
+    }
+
+    /**
+     * Remove all the keys.
+     */
+    public void clear()
+    {
+        Arrays.fill(this.values, 0, this.count, null);
+        Arrays.fill(this.table, 0);
+        this.count = 0;
+        this.size = 0;
+    }
+
+    private int indexOf(int position, long value)
+    {
+        if (position != -1) {
+            long[] keyValues = this.values[position];
+            for (int i = 0; i < this.sizes[position]; i++) {
+                if (keyValues[i] == value) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private int getPosition(long key)
+    {
+        int position = this.table[getSlot(key)] - 1;
+
+        return position != -1 && this.values[position] != null ? position : -1;
+    }
+
+    private int getOrCreatePosition(long key)
+    {
+        int slot = getSlot(key);
+        int position = this.table[slot] - 1;
+        if (position != -1 && this.values[position] != null) {
+            return position;
+        }
+
+        if (this.count == this.keys.length) {
+            int capacity = this.keys.length * 2;
+            this.keys = Arrays.copyOf(this.keys, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.sizes = Arrays.copyOf(this.sizes, capacity);
+        }
+
+        // A removed key is added again at the end
+        position = this.count++;
+        this.keys[position] = key;
+        this.values[position] = EMPTY;
+        this.sizes[position] = 0;
+        this.size++;
+
+        if (this.count * 2 > this.table.length) {
+            rehash();
+        } else {
+            this.table[slot] = position + 1;
+        }
+
+        return position;
+    }
+
+    private void removePosition(int position)
+    {
+        this.values[position] = null;
+        this.sizes[position] = 0;
+        this.size--;
+    }
+
+    private int getSlot(long key)
+    {
+        int mask = this.table.length - 1;
+        int slot = hash(key) & mask;
+        for (int position = this.table[slot] - 1; position != -1 && this.keys[position] != key;
+            position = this.table[slot] - 1) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void rehash()
+    {
+        // Positions never change so that views stay valid, removed keys are just not indexed anymore
+        this.table = new int[this.table.length * 2];
+        for (int position = 0; position < this.count; position++) {
+            if (this.values[position] != null) {
+                this.table[getSlot(this.keys[position])] = position + 1;
+            }
+        }
+    }
+
+    private static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private final class ValuesView extends AbstractList<Long>
+    {
+        private final int position;
+
+        ValuesView(int position)
+        {
+            this.position = position;
+        }
+
+        @Override
+        public Long get(int index)
+        {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+
+            return values[this.position][index];
+        }
+
+        @Override
+        public int size()
+        {
+            return values[this.position] != null ? sizes[this.position] : 0;
+        }
+    }
+
+    private final class MapView extends AbstractMap<Long, List<Long>>
+    {
+        private final Set<Entry<Long, List<Long>>> entries = new AbstractSet<Entry<Long, List<Long>>>()
+        {
+            @Override
+            public Iterator<Entry<Long, List<Long>>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return LongListMultimap.this.size;
+            }
+        };
+
+        @Override
+        public Set<Entry<Long, List<Long>>> entrySet()
+        {
+            return this.entries;
+        }
+
+        @Override
+        public int size()
+        {
+            return LongListMultimap.this.size;
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return key instanceof Long && LongListMultimap.this.containsKey((Long) key);
+        }
+
+        @Override
+        public List<Long> get(Object key)
+        {
+            return key instanceof Long ? LongListMultimap.this.get((Long) key) : null;
+        }
+
+        @Override
+        public List<Long> remove(Object key)
+        {
+            if (key instanceof Long) {
+                List<Long> removed = LongListMultimap.this.get((Long) key);
+                if (removed != null) {
+                    // The view would be empty once the key is removed
+                    removed = new ArrayList<>(removed);
+                    removeKey((Long) key);
+                }
+
+                return removed;
+            }
+
+            return null;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Long, List<Long>>>
+    {
+        private int next;
+
+        private int current = -1;
+
+        EntryIterator()
+        {
+            this.next = findNext(0);
+        }
+
+        private int findNext(int from)
+        {
+            int position = from;
+            while (position < count && values[position] == null) {
+                position++;
+            }
+
+            return position;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return this.next < count;
+        }
+
+        @Override
+        public Map.Entry<Long, List<Long>> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            this.current = this.next;
+            this.next = findNext(this.next + 1);
+
+            return new AbstractMap.SimpleImmutableEntry<>(keys[this.current], new ValuesView(this.current));
+        }
+
+        @Override
+        public void remove()
+        {
+            if (this.current == -1 || values[this.current] == null) {
+                throw new IllegalStateException();
+            }
+
+            removePosition(this.current);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+/**
+ * Map of primitive long keys to primitive long values.
+ * <p>
+ * Entries are kept in an open addressing table so that millions of them can be held without boxing.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class LongLongMap
+{
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    private long[] values = new long[INITIAL_CAPACITY];
+
+    private boolean[] used = new boolean[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * Receive the entries of the map.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer
+    {
+        /**
+         * @param key the key of the entry
+         * @param value the value of the entry
+         */
+        void accept(long key, long value);
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @param key the key
+     * @return true if a value is associated with the key
+     */
+    public boolean containsKey(long key)
+    {
+        return this.used[find(key)];
+    }
+
+    /**
+     * @param key the key
+     * @param def the value to return when no value is associated with the key
+     * @return the value associated with the key, or def
+     */
+    public long get(long key, long def)
+    {
+        int slot = find(key);
+
+        return this.used[slot] ? this.values[slot] : def;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value to associate with the key, replacing the current one
+     */
+    public void put(long key, long value)
+    {
+        int slot = find(key);
+        if (!this.used[slot]) {
+            this.used[slot] = true;
+            this.keys[slot] = key;
+            this.size++;
+        }
+        this.values[slot] = value;
+
+        // Keep the load factor under 0.5
+        if (this.size * 2 > this.keys.length) {
+            rehash(this.keys.length * 2);
+        }
+    }
+
+    /**
+     * @param key the key
+     * @param delta the amount to add to the value associated with the key, which is 0 when there is none
+     */
+    public void add(long key, long delta)
+    {
+        put(key, get(key, 0) + delta);
+    }
+
+    /**
+     * @param consumer called for each entry, in no particular order
+     */
+    public void forEach(EntryConsumer consumer)
+    {
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.used[i]) {
+                consumer.accept(this.keys[i], this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear()
+    {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new long[INITIAL_CAPACITY];
+        this.used = new boolean[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    private int find(long key)
+    {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (this.used[slot] && this.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        boolean[] oldUsed = this.used;
+
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.used = new boolean[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = find(oldKeys[i]);
+                this.used[slot] = true;
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+}
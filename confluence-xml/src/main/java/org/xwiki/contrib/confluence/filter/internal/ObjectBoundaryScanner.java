@@ -0,0 +1,268 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Find the offsets of the top level {@code <object>} elements of a Confluence entities.xml file without parsing it.
+ * <p>
+ * Objects never contain other {@code <object>} elements, so the only place where such a tag could be found without
+ * being an object is inside a CDATA section (typically the body of a page). A position is considered to be inside a
+ * CDATA section when the next CDATA end is found before the next CDATA start.
+ * <p>
+ * The searches are made directly on the buffered bytes, and their last result is remembered: successive candidates
+ * share the same next CDATA end, and the search for a CDATA start never goes further than this end.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ObjectBoundaryScanner implements AutoCloseable
+{
+    private static final byte[] OBJECT_START = "<object".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] END_TAG_START = "</".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The offset in the file of the data currently in the buffer.
+     */
+    private long bufferOffset = -1;
+
+    private final Search objectStarts = new Search(OBJECT_START);
+
+    private final Search cdataStarts = new Search(CDATA_START);
+
+    private final Search cdataEnds = new Search(CDATA_END);
+
+    /**
+     * @param file the entities.xml file to scan
+     * @throws IOException when failing to open the file
+     */
+    public ObjectBoundaryScanner(File file) throws IOException
+    {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = this.channel.size();
+    }
+
+    /**
+     * Split the file in ranges of complete objects.
+     *
+     * @param rangeSize the approximate size of each range, in bytes
+     * @return the offsets delimiting the ranges: the first one is the start of the first object, the last one is the
+     *     end of the last object, empty if no object could be found
+     * @throws IOException when failing to read the file
+     */
+    public List<Long> split(long rangeSize) throws IOException
+    {
+        List<Long> boundaries = new ArrayList<>();
+
+        long end = lastIndexOf(END_TAG_START);
+        long offset = findObject(0);
+        while (offset != -1 && offset < end) {
+            boundaries.add(offset);
+            offset = findObject(offset + rangeSize);
+        }
+
+        if (!boundaries.isEmpty()) {
+            boundaries.add(end);
+        }
+
+        return boundaries;
+    }
+
+    /**
+     * @param from the offset from which to search
+     * @return the offset of the next top level {@code <object>} element, or -1 if there is none
+     * @throws IOException when failing to read the file
+     */
+    public long findObject(long from) throws IOException
+    {
+        long offset = from;
+        while (true) {
+            long object = this.objectStarts.indexOf(offset, this.size);
+            if (object == -1) {
+                return -1;
+            }
+
+            long cdataEnd = this.cdataEnds.indexOf(object, this.size);
+            if (cdataEnd != -1) {
+                // Only a CDATA start before the CDATA end matters
+                if (this.cdataStarts.indexOf(object, cdataEnd) == -1) {
+                    // Inside a CDATA section
+                    offset = cdataEnd + CDATA_END.length;
+                    continue;
+                }
+            }
+
+            int next = byteAt(object + OBJECT_START.length);
+            if (next == ' ' || next == '>' || next == '\n' || next == '\r' || next == '\t') {
+                return object;
+            }
+
+            offset = object + OBJECT_START.length;
+        }
+    }
+
+    private long indexOf(byte[] pattern, long from, long to) throws IOException
+    {
+        long end = Math.min(to, this.size - pattern.length + 1);
+        long offset = from;
+        while (offset < end) {
+            if (this.bufferOffset == -1 || offset < this.bufferOffset
+                || offset + pattern.length > this.bufferOffset + this.buffer.limit()) {
+                load(offset);
+            }
+
+            byte[] bytes = this.buffer.array();
+            int start = (int) (offset - this.bufferOffset);
+            // The last position of the buffer where the whole pattern fits
+            int last = (int) Math.min(this.buffer.limit() - pattern.length, end - 1 - this.bufferOffset);
+            for (int i = start; i <= last; i++) {
+                if (bytes[i] == pattern[0] && matches(bytes, i, pattern)) {
+                    return this.bufferOffset + i;
+                }
+            }
+
+            offset = this.bufferOffset + last + 1;
+        }
+
+        return -1;
+    }
+
+    private static boolean matches(byte[] bytes, int index, byte[] pattern)
+    {
+        for (int i = 1; i < pattern.length; i++) {
+            if (bytes[index + i] != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private long lastIndexOf(byte[] pattern) throws IOException
+    {
+        for (long offset = this.size - pattern.length; offset >= 0; offset--) {
+            if (matches(pattern, offset)) {
+                return offset;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean matches(byte[] pattern, long offset) throws IOException
+    {
+        for (int i = 0; i < pattern.length; i++) {
+            if (byteAt(offset + i) != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int byteAt(long offset) throws IOException
+    {
+        if (offset >= this.size) {
+            return -1;
+        }
+
+        if (this.bufferOffset == -1 || offset < this.bufferOffset
+            || offset >= this.bufferOffset + this.buffer.limit()) {
+            // Keep some data before the requested offset to be able to search backward efficiently
+            load(Math.max(0, offset - BUFFER_SIZE / 2));
+        }
+
+        return this.buffer.get((int) (offset - this.bufferOffset));
+    }
+
+    private void load(long offset) throws IOException
+    {
+        this.bufferOffset = offset;
+        this.buffer.clear();
+        while (this.buffer.hasRemaining()
+            && this.channel.read(this.buffer, this.bufferOffset + this.buffer.position()) > 0) {
+            // Fill the buffer
+        }
+        this.buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.channel.close();
+    }
+
+    /**
+     * Search a pattern forward, remembering the last result to answer the following searches in the same range.
+     */
+    private final class Search
+    {
+        private final byte[] pattern;
+
+        private long from = -1;
+
+        private long to;
+
+        private long found;
+
+        private Search(byte[] pattern)
+        {
+            this.pattern = pattern;
+        }
+
+        /**
+         * @return the offset of the first occurrence of the pattern starting in [from, to), or -1 if there is none
+         */
+        private long indexOf(long from, long to) throws IOException
+        {
+            // An occurrence found from an earlier offset is also the first one from any offset up to it
+            if (this.from != -1 && from >= this.from && to == this.to && (this.found == -1 || from <= this.found)) {
+                return this.found;
+            }
+
+            this.from = from;
+            this.to = to;
+            this.found = ObjectBoundaryScanner.this.indexOf(this.pattern, from, to);
+
+            return this.found;
+        }
+    }
+}
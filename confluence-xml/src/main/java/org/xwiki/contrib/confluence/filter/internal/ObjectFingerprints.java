@@ -0,0 +1,342 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fingerprints of the objects of an indexed package, used to find what changed between two exports of the same
+ * Confluence instance.
+ * <p>
+ * Objects are grouped in namespaces in which their identifiers are unique. Each object can belong to an owner in
+ * another namespace (a comment belongs to a page, a body to a page or a comment...). Following the owners leads to the
+ * page containing the object, which is an object without owner in the {@link #CONTENT} namespace.
+ * <p>
+ * The location of each page (its title, parent and space) is also recorded, since moving or renaming a page changes the
+ * references of all its descendants.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ObjectFingerprints
+{
+    /**
+     * The namespace of the pages, blog posts, comments and attachments, which share the same identifiers.
+     */
+    public static final String CONTENT = "content";
+
+    private static final int MAGIC = 0x43584650;
+
+    private static final int VERSION = 2;
+
+    // The first version did not contain the locations of the pages
+    private static final int VERSION_WITHOUT_LOCATIONS = 1;
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Owner chains are short, this only protects against cycles in broken packages
+    private static final int MAX_OWNER_DEPTH = 16;
+
+    private final Map<String, Namespace> namespaces = new HashMap<>();
+
+    private final LongLongMap locations = new LongLongMap();
+
+    private static final class Namespace
+    {
+        private String ownerNamespace;
+
+        private final LongLongMap fingerprints = new LongLongMap();
+
+        private final LongLongMap owners = new LongLongMap();
+    }
+
+    /**
+     * @param values the values describing an object
+     * @return a 64 bits fingerprint of the values
+     */
+    public static long fingerprint(Iterable<?> values)
+    {
+        long hash = FNV_OFFSET;
+        for (Object value : values) {
+            String string = String.valueOf(value);
+            for (int i = 0; i < string.length(); i++) {
+                hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+            }
+            // Separate the values so that moving characters from a value to the next one changes the fingerprint
+            hash = (hash ^ 0xFFFF) * FNV_PRIME;
+        }
+
+        return hash;
+    }
+
+    /**
+     * @param namespace the namespace of the object
+     * @param id the identifier of the object
+     * @param fingerprint the fingerprint of the object
+     * @param ownerNamespace the namespace of the owner of the object, or null if it has no owner
+     * @param ownerId the identifier of the owner of the object, ignored if it has no owner
+     */
+    public void put(String namespace, long id, long fingerprint, String ownerNamespace, long ownerId)
+    {
+        Namespace objects = this.namespaces.computeIfAbsent(namespace, k -> new Namespace());
+        objects.fingerprints.put(id, fingerprint);
+        if (ownerNamespace != null) {
+            objects.ownerNamespace = ownerNamespace;
+            objects.owners.put(id, ownerId);
+        }
+    }
+
+    /**
+     * @param pageId the identifier of a page
+     * @param fingerprint the fingerprint of the location of the page
+     */
+    public void putLocation(long pageId, long fingerprint)
+    {
+        this.locations.put(pageId, fingerprint);
+    }
+
+    /**
+     * @param previous the fingerprints of the previous export
+     * @return the pages which still exist but were moved or renamed since the previous export
+     */
+    public Set<Long> getMovedPages(ObjectFingerprints previous)
+    {
+        Set<Long> movedPages = new HashSet<>();
+        this.locations.forEach((pageId, fingerprint) -> {
+            if (previous.locations.get(pageId, fingerprint) != fingerprint) {
+                movedPages.add(pageId);
+            }
+        });
+
+        return movedPages;
+    }
+
+    /**
+     * @return the number of objects
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Namespace objects : this.namespaces.values()) {
+            size += objects.fingerprints.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Find the pages which changed since a previous export.
+     *
+     * @param previous the fingerprints of the previous export
+     * @param changedPages filled with the pages which contain an object which was added, modified or removed
+     * @param deletedPages filled with the pages which don't exist anymore
+     */
+    public void compare(ObjectFingerprints previous, Set<Long> changedPages, Set<Long> deletedPages)
+    {
+        for (Map.Entry<String, Namespace> entry : this.namespaces.entrySet()) {
+            String namespace = entry.getKey();
+            Namespace previousObjects = previous.namespaces.get(namespace);
+            entry.getValue().fingerprints.forEach((id, fingerprint) -> {
+                if (previousObjects == null || previousObjects.fingerprints.get(id, ~fingerprint) != fingerprint) {
+                    addPage(changedPages, getPage(namespace, id, this, previous));
+                }
+            });
+        }
+
+        for (Map.Entry<String, Namespace> entry : previous.namespaces.entrySet()) {
+            String namespace = entry.getKey();
+            Namespace objects = this.namespaces.get(namespace);
+            entry.getValue().fingerprints.forEach((id, fingerprint) -> {
+                if (objects == null || !objects.fingerprints.containsKey(id)) {
+                    // Owners which were removed too are only known by the previous export
+                    addPage(changedPages, getPage(namespace, id, previous, this));
+                }
+            });
+        }
+
+        // Pages which were removed can't be sent again
+        for (Iterator<Long> it = changedPages.iterator(); it.hasNext();) {
+            long pageId = it.next();
+            if (!isPage(pageId)) {
+                it.remove();
+                if (previous.isPage(pageId)) {
+                    deletedPages.add(pageId);
+                }
+            }
+        }
+    }
+
+    private boolean isPage(long id)
+    {
+        Namespace content = this.namespaces.get(CONTENT);
+
+        return content != null && content.fingerprints.containsKey(id) && !content.owners.containsKey(id);
+    }
+
+    private static void addPage(Set<Long> pages, long pageId)
+    {
+        if (pageId != NONE) {
+            pages.add(pageId);
+        }
+    }
+
+    private static long getPage(String namespace, long id, ObjectFingerprints first, ObjectFingerprints second)
+    {
+        String currentNamespace = namespace;
+        long currentId = id;
+        for (int i = 0; i < MAX_OWNER_DEPTH; i++) {
+            Namespace objects = getOwned(currentNamespace, currentId, first, second);
+            if (objects == null) {
+                // Unknown owner, the best guess is that it's a page
+                return CONTENT.equals(currentNamespace) ? currentId : NONE;
+            }
+
+            long ownerId = objects.owners.get(currentId, NONE);
+            if (ownerId == NONE) {
+                return CONTENT.equals(currentNamespace) ? currentId : NONE;
+            }
+
+            currentNamespace = objects.ownerNamespace;
+            currentId = ownerId;
+        }
+
+        return NONE;
+    }
+
+    private static Namespace getOwned(String namespace, long id, ObjectFingerprints first, ObjectFingerprints second)
+    {
+        for (ObjectFingerprints fingerprints : new ObjectFingerprints[] { first, second }) {
+            Namespace objects = fingerprints.namespaces.get(namespace);
+            if (objects != null && objects.fingerprints.containsKey(id)) {
+                return objects;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param file the file where to write the fingerprints
+     * @throws IOException when failing to write the file
+     */
+    public void write(File file) throws IOException
+    {
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.namespaces.size());
+            for (Map.Entry<String, Namespace> entry : this.namespaces.entrySet()) {
+                Namespace objects = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(objects.ownerNamespace != null ? objects.ownerNamespace : "");
+                out.writeInt(objects.fingerprints.size());
+                IOException[] error = new IOException[1];
+                objects.fingerprints.forEach((id, fingerprint) -> {
+                    try {
+                        out.writeLong(id);
+                        out.writeLong(fingerprint);
+                        out.writeLong(objects.owners.get(id, NONE));
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+            }
+            writeLocations(out);
+        }
+    }
+
+    private void writeLocations(DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.locations.size());
+        IOException[] error = new IOException[1];
+        this.locations.forEach((pageId, fingerprint) -> {
+            try {
+                out.writeLong(pageId);
+                out.writeLong(fingerprint);
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * @param file the file containing the fingerprints
+     * @return the fingerprints
+     * @throws IOException when failing to read the file
+     */
+    public static ObjectFingerprints read(File file) throws IOException
+    {
+        ObjectFingerprints fingerprints = new ObjectFingerprints();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != VERSION && version != VERSION_WITHOUT_LOCATIONS) {
+                throw new IOException(String.format("[%s] is not a supported fingerprint file", file));
+            }
+
+            int namespaceCount = in.readInt();
+            for (int i = 0; i < namespaceCount; i++) {
+                String namespace = in.readUTF();
+                String ownerNamespace = in.readUTF();
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    long id = in.readLong();
+                    long fingerprint = in.readLong();
+                    long ownerId = in.readLong();
+                    fingerprints.put(namespace, id, fingerprint,
+                        ownerId != NONE && !ownerNamespace.isEmpty() ? ownerNamespace : null, ownerId);
+                }
+                // Make sure namespaces without any owned object are restored too
+                fingerprints.namespaces.computeIfAbsent(namespace, k -> new Namespace());
+            }
+
+            if (version != VERSION_WITHOUT_LOCATIONS) {
+                int locationCount = in.readInt();
+                for (int i = 0; i < locationCount; i++) {
+                    fingerprints.locations.put(in.readLong(), in.readLong());
+                }
+            }
+        }
+
+        return fingerprints;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Read a state file written by {@link PackageStateWriter}.
+ * <p>
+ * The file is memory mapped and its checksum is verified before anything is read.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class PackageStateReader
+{
+    private final ByteBuffer buffer;
+
+    /**
+     * @param file the file to read
+     * @throws IOException when the file cannot be read or is not a valid state file
+     */
+    public PackageStateReader(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < PackageStateWriter.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Unexpected size [%s] for state file [%s]", channel.size(), file));
+            }
+
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (mapped.getInt() != PackageStateWriter.MAGIC) {
+                throw new IOException(String.format("[%s] is not a state file", file));
+            }
+            int version = mapped.getInt();
+            if (version != PackageStateWriter.VERSION) {
+                throw new IOException(String.format("Unsupported version [%s] for state file [%s]", version, file));
+            }
+            long size = mapped.getLong();
+            long expectedChecksum = mapped.getLong();
+            if (size != mapped.remaining()) {
+                throw new IOException(String.format("State file [%s] is truncated", file));
+            }
+
+            this.buffer = mapped.slice();
+
+            CRC32 checksum = new CRC32();
+            checksum.update(this.buffer.duplicate());
+            if (checksum.getValue() != expectedChecksum) {
+                throw new IOException(String.format("State file [%s] is corrupted", file));
+            }
+        }
+    }
+
+    /**
+     * @param multimap the multimap where to put the read entries
+     * @throws IOException when the content of the file is not the expected one
+     */
+    public void readLongListMultimap(LongListMultimap multimap) throws IOException
+    {
+        Long[] keys = readKeys();
+
+        int[] offsets = readInts(keys.length + 1);
+        long[] values = readLongs(offsets[keys.length]);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) {
+                throw new IOException("Unexpected null key in the state file");
+            }
+            multimap.put(keys[i], Arrays.copyOfRange(values, offsets[i], offsets[i + 1]));
+        }
+    }
+
+    /**
+     * @param map the map where to put the read entries
+     * @throws IOException when the content of the file is not the expected one
+     */
+    public void readLongMap(Map<Long, Long> map) throws IOException
+    {
+        Long[] keys = readKeys();
+        long[] values = readLongs(keys.length);
+
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * @param map the map where to put the read entries
+     * @throws IOException when the content of the file is not the expected one
+     */
+    public void readStringLongMap(Map<String, Long> map) throws IOException
+    {
+        List<String> keys = readStrings();
+        long[] values = readLongs(keys.size());
+
+        for (int i = 0; i < values.length; i++) {
+            map.put(keys.get(i), values[i]);
+        }
+    }
+
+    /**
+     * @param map the map where to put the read entries
+     * @param mapSupplier the supplier of the maps of values
+     * @param <M> the type of map of values
+     * @throws IOException when the content of the file is not the expected one
+     */
+    public <M extends Map<String, Long>> void readLongStringLongMap(Map<Long, M> map, Supplier<M> mapSupplier)
+        throws IOException
+    {
+        Long[] keys = readKeys();
+
+        for (Long key : keys) {
+            M values = mapSupplier.get();
+            readStringLongMap(values);
+            map.put(key, values);
+        }
+    }
+
+    private Long[] readKeys() throws IOException
+    {
+        int size = readSize();
+        int nullKey = this.buffer.getInt();
+
+        long[] keys = readLongs(size);
+        Long[] boxedKeys = new Long[size];
+        for (int i = 0; i < size; i++) {
+            boxedKeys[i] = i != nullKey ? keys[i] : null;
+        }
+
+        return boxedKeys;
+    }
+
+    private List<String> readStrings() throws IOException
+    {
+        int size = readSize();
+        int[] offsets = readInts(size + 1);
+
+        int start = this.buffer.position();
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (offsets[i + 1] < 0) {
+                strings.add(null);
+            } else {
+                int begin = getEnd(offsets[i]);
+                byte[] bytes = new byte[offsets[i + 1] - begin];
+                this.buffer.duplicate().position(start + begin).get(bytes);
+                strings.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        this.buffer.position(start + getEnd(offsets[size]));
+
+        return strings;
+    }
+
+    private static int getEnd(int offset)
+    {
+        // A null string is stored with a negative end offset
+        return offset < 0 ? -offset - 1 : offset;
+    }
+
+    private int readSize() throws IOException
+    {
+        int size = this.buffer.getInt();
+        if (size < 0 || size > this.buffer.remaining()) {
+            throw new IOException(String.format("Unexpected size [%s] in the state file", size));
+        }
+
+        return size;
+    }
+
+    private int[] readInts(int size)
+    {
+        int[] values = new int[size];
+        this.buffer.asIntBuffer().get(values);
+        this.buffer.position(this.buffer.position() + size * Integer.BYTES);
+
+        return values;
+    }
+
+    private long[] readLongs(int size)
+    {
+        long[] values = new long[size];
+        this.buffer.asLongBuffer().get(values);
+        this.buffer.position(this.buffer.position() + size * Long.BYTES);
+
+        return values;
+    }
+}
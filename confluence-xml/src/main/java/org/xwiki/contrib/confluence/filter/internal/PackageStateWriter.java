@@ -0,0 +1,220 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write the state of an indexed Confluence package in a compact binary file which can be loaded quickly by
+ * {@link PackageStateReader}.
+ * <p>
+ * The file starts with a header containing a magic number, the version of the format, the size of the content and its
+ * CRC32 checksum. The content is a sequence of sections, written and read in the same order. Each map is stored as
+ * arrays of primitive longs (keys, offsets of the values of each key and values) and strings are gathered in a table
+ * of UTF-8 bytes.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class PackageStateWriter implements AutoCloseable
+{
+    static final int MAGIC = 0x43585053;
+
+    static final int VERSION = 1;
+
+    /**
+     * Magic number, version, content size and content checksum.
+     */
+    static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES * 2;
+
+    /**
+     * Indicate that a map does not contain a null key.
+     */
+    static final int NO_NULL_KEY = -1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+
+    private final File tmp;
+
+    private final CRC32 checksum = new CRC32();
+
+    private final DataOutputStream out;
+
+    private boolean success;
+
+    /**
+     * @param file the file to write
+     * @throws IOException when failing to create the file
+     */
+    public PackageStateWriter(File file) throws IOException
+    {
+        this.file = file;
+        this.tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        FileOutputStream stream = new FileOutputStream(this.tmp);
+        // Reserve the space of the header
+        stream.write(new byte[HEADER_SIZE]);
+        this.out = new DataOutputStream(
+            new BufferedOutputStream(new CheckedOutputStream(stream, this.checksum), BUFFER_SIZE));
+    }
+
+    /**
+     * @param map the map to write, with non null values
+     * @throws IOException when failing to write the map
+     */
+    public void writeLongCollectionMap(Map<Long, ? extends Collection<Long>> map) throws IOException
+    {
+        writeKeys(map.keySet());
+
+        int offset = 0;
+        this.out.writeInt(offset);
+        for (Collection<Long> values : map.values()) {
+            offset += values.size();
+            this.out.writeInt(offset);
+        }
+
+        for (Collection<Long> values : map.values()) {
+            for (Long value : values) {
+                this.out.writeLong(value);
+            }
+        }
+    }
+
+    /**
+     * @param map the map to write, with non null values
+     * @throws IOException when failing to write the map
+     */
+    public void writeLongMap(Map<Long, Long> map) throws IOException
+    {
+        writeKeys(map.keySet());
+
+        for (Long value : map.values()) {
+            this.out.writeLong(value);
+        }
+    }
+
+    /**
+     * @param map the map to write, with non null values
+     * @throws IOException when failing to write the map
+     */
+    public void writeStringLongMap(Map<String, Long> map) throws IOException
+    {
+        writeStrings(map.keySet());
+
+        for (Long value : map.values()) {
+            this.out.writeLong(value);
+        }
+    }
+
+    /**
+     * @param map the map to write, with non null values
+     * @throws IOException when failing to write the map
+     */
+    public void writeLongStringLongMap(Map<Long, ? extends Map<String, Long>> map) throws IOException
+    {
+        writeKeys(map.keySet());
+
+        for (Map<String, Long> values : map.values()) {
+            writeStringLongMap(values);
+        }
+    }
+
+    private void writeKeys(Collection<Long> keys) throws IOException
+    {
+        this.out.writeInt(keys.size());
+
+        int nullKey = NO_NULL_KEY;
+        int index = 0;
+        for (Long key : keys) {
+            if (key == null) {
+                nullKey = index;
+            }
+            index++;
+        }
+        this.out.writeInt(nullKey);
+
+        for (Long key : keys) {
+            this.out.writeLong(key != null ? key : 0);
+        }
+    }
+
+    private void writeStrings(Collection<String> strings) throws IOException
+    {
+        this.out.writeInt(strings.size());
+
+        int offset = 0;
+        this.out.writeInt(offset);
+        byte[][] bytes = new byte[strings.size()][];
+        int index = 0;
+        for (String string : strings) {
+            // A null string is stored with a negative end offset
+            bytes[index] = string != null ? string.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            offset += bytes[index].length;
+            this.out.writeInt(string != null ? offset : -offset - 1);
+            index++;
+        }
+
+        for (byte[] stringBytes : bytes) {
+            this.out.write(stringBytes);
+        }
+    }
+
+    /**
+     * Indicate that everything was written and the file can replace the previous one.
+     */
+    public void commit()
+    {
+        this.success = true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.out.close();
+
+        if (!this.success) {
+            Files.deleteIfExists(this.tmp.toPath());
+            return;
+        }
+
+        try (RandomAccessFile header = new RandomAccessFile(this.tmp, "rw")) {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(this.tmp.length() - HEADER_SIZE);
+            header.writeLong(this.checksum.getValue());
+        }
+
+        Files.move(this.tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Execute tasks on a fixed set of threads, each task being assigned to a thread according to its key.
+ * <p>
+ * All the tasks having the same key are executed by the same thread, in the order in which they were submitted, which
+ * makes it possible to modify the same object from several tasks without any synchronization.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class PartitionedExecutor implements AutoCloseable
+{
+    /**
+     * A task which can fail.
+     *
+     * @version $Id$
+     */
+    @FunctionalInterface
+    public interface Task
+    {
+        /**
+         * @throws Exception when the task fails
+         */
+        void run() throws Exception;
+    }
+
+    // Marks the end of the tasks
+    private static final Task END = () -> { };
+
+    private final Thread[] threads;
+
+    private final BlockingQueue<Task>[] queues;
+
+    private volatile Exception error;
+
+    /**
+     * @param name the prefix of the name of the threads
+     * @param size the number of threads
+     * @param capacity the maximum number of pending tasks for each thread
+     */
+    @SuppressWarnings("unchecked")
+    public PartitionedExecutor(String name, int size, int capacity)
+    {
+        this.threads = new Thread[size];
+        this.queues = new BlockingQueue[size];
+        for (int i = 0; i < size; i++) {
+            BlockingQueue<Task> queue = new ArrayBlockingQueue<>(capacity);
+            this.queues[i] = queue;
+            this.threads[i] = new Thread(() -> run(queue), name + ' ' + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    private void run(BlockingQueue<Task> queue)
+    {
+        try {
+            for (Task task = queue.take(); task != END; task = queue.take()) {
+                if (this.error == null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        this.error = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Submit a task, waiting if too many tasks are already pending for its thread.
+     *
+     * @param key the key deciding which thread executes the task
+     * @param task the task to execute
+     * @throws ExecutionException when a previous task failed
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void execute(Object key, Task task) throws ExecutionException, InterruptedException
+    {
+        checkError();
+
+        this.queues[Math.floorMod(key.hashCode(), this.queues.length)].put(task);
+    }
+
+    /**
+     * Wait for all the submitted tasks to be executed and stop the threads.
+     *
+     * @throws ExecutionException when a task failed
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void join() throws ExecutionException, InterruptedException
+    {
+        for (BlockingQueue<Task> queue : this.queues) {
+            queue.put(END);
+        }
+        for (Thread thread : this.threads) {
+            thread.join();
+        }
+
+        checkError();
+    }
+
+    private void checkError() throws ExecutionException
+    {
+        if (this.error != null) {
+            throw new ExecutionException(this.error);
+        }
+    }
+
+    /**
+     * Stop the threads without waiting for the pending tasks.
+     */
+    @Override
+    public void close()
+    {
+        for (Thread thread : this.threads) {
+            thread.interrupt();
+        }
+    }
+}
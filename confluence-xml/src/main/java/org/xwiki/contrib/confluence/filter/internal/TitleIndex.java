@@ -0,0 +1,623 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Index of the pages by space and title which does not need to fit in memory.
+ * <p>
+ * Entries are kept in memory until their estimated size reaches the memory budget. They are then sorted and spilled
+ * to a run file. Runs are merged into sorted segment files, which are memory mapped and searched by dichotomy, with
+ * the most recent lookups kept in memory. An entry added later replaces an entry with the same space and title, like
+ * in a map.
+ * <p>
+ * Lookups don't block each other once the entries spilled to the disk are merged, so that the pages of several spaces
+ * can be sent concurrently.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class TitleIndex
+{
+    private static final int SEGMENT_VERSION = 1;
+
+    private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    // Very rough size of an entry in memory, without the characters of the title
+    private static final int ENTRY_OVERHEAD = 96;
+
+    // Keep segments small enough to be mapped at once
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    // Rewrite the segments when there are too many of them to search
+    private static final int MAX_SEGMENTS = 8;
+
+    private static final int HOT_CACHE_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final String RUN_PREFIX = "run-";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final Comparator<Entry> ENTRY_ORDER = Comparator.<Entry>comparingLong(e -> e.spaceId)
+        .thenComparing((e1, e2) -> Arrays.compareUnsigned(e1.title, e2.title));
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Long, Map<String, Long>> heap = new HashMap<>();
+
+    private final List<File> runs = new ArrayList<>();
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    private final Map<String, Long> hotCache = new LinkedHashMap<String, Long>(HOT_CACHE_SIZE, 0.75F, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+        {
+            return size() > HOT_CACHE_SIZE;
+        }
+    };
+
+    private long heapSize;
+
+    private long budget = Long.MAX_VALUE;
+
+    private File folder;
+
+    private int fileCount;
+
+    private static final class Entry
+    {
+        private final long spaceId;
+
+        private final byte[] title;
+
+        private final long pageId;
+
+        private final int source;
+
+        private Entry(long spaceId, byte[] title, long pageId, int source)
+        {
+            this.spaceId = spaceId;
+            this.title = title;
+            this.pageId = pageId;
+            this.source = source;
+        }
+    }
+
+    private static final class Run implements Closeable
+    {
+        private final DataInputStream in;
+
+        private final int index;
+
+        private int remaining;
+
+        private Run(File file, int index, int count) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            this.index = index;
+            this.remaining = count;
+        }
+
+        private Entry next() throws IOException
+        {
+            if (this.remaining == 0) {
+                return null;
+            }
+            this.remaining--;
+
+            long spaceId;
+            try {
+                spaceId = this.in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            long pageId = this.in.readLong();
+            byte[] title = new byte[this.in.readInt()];
+            this.in.readFully(title);
+
+            return new Entry(spaceId, title, pageId, this.index);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.in.close();
+        }
+    }
+
+    private static final class Segment
+    {
+        private final File file;
+
+        private final ByteBuffer buffer;
+
+        private final long tablePosition;
+
+        private final int count;
+
+        private Segment(File file) throws IOException
+        {
+            this.file = file;
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            int footer = this.buffer.capacity() - FOOTER_SIZE;
+            if (footer < 0 || this.buffer.getInt(footer + Long.BYTES + Integer.BYTES) != SEGMENT_VERSION) {
+                throw new IOException(String.format("[%s] is not a supported title segment", file));
+            }
+            this.tablePosition = this.buffer.getLong(footer);
+            this.count = this.buffer.getInt(footer + Long.BYTES);
+        }
+
+        private Long get(long spaceId, byte[] title)
+        {
+            int low = 0;
+            int high = this.count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int position = (int) this.buffer.getLong((int) this.tablePosition + middle * Long.BYTES);
+                int comparison = compare(position, spaceId, title);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return this.buffer.getLong(position + Long.BYTES);
+                }
+            }
+
+            return null;
+        }
+
+        private int compare(int position, long spaceId, byte[] title)
+        {
+            int comparison = Long.compare(this.buffer.getLong(position), spaceId);
+            if (comparison != 0) {
+                return comparison;
+            }
+
+            int titlePosition = position + Long.BYTES * 2;
+            int length = this.buffer.getInt(titlePosition);
+            for (int i = 0; i < length && i < title.length; i++) {
+                comparison = Byte.compareUnsigned(this.buffer.get(titlePosition + Integer.BYTES + i), title[i]);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+
+            return Integer.compare(length, title.length);
+        }
+    }
+
+    /**
+     * Start spilling the entries to the given folder once they reach the budget. The folder is emptied.
+     *
+     * @param folder the folder where to write the entries which don't fit in memory
+     * @param budget the approximate amount of memory the entries can use, in bytes
+     * @throws IOException when failing to empty the folder
+     */
+    public void setSpillFolder(File folder, long budget) throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            FileUtils.deleteDirectory(folder);
+
+            this.folder = folder;
+            this.budget = budget;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open the segments found in the given folder, written by a previous {@link #finish()}.
+     *
+     * @param folder the folder containing the segments
+     * @throws IOException when failing to read the segments
+     */
+    public void open(File folder) throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            this.folder = folder;
+
+            File[] files = folder.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX));
+            if (files == null) {
+                return;
+            }
+
+            Arrays.sort(files, Comparator.comparingInt(TitleIndex::getSegmentNumber));
+            for (File file : files) {
+                this.segments.add(new Segment(file));
+                this.fileCount = Math.max(this.fileCount, getSegmentNumber(file) + 1);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param spaceId the identifier of the space of the page
+     * @param title the title of the page
+     * @param pageId the identifier of the page
+     */
+    public void put(long spaceId, String title, long pageId)
+    {
+        this.lock.writeLock().lock();
+        try {
+            Long previous = this.heap.computeIfAbsent(spaceId, k -> new HashMap<>()).put(title, pageId);
+            if (previous == null) {
+                this.heapSize += ENTRY_OVERHEAD + 2L * title.length();
+            }
+
+            if (!this.segments.isEmpty()) {
+                this.hotCache.remove(getCacheKey(spaceId, title));
+            }
+
+            if (this.heapSize > this.budget && this.folder != null) {
+                try {
+                    spill();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to spill the page titles to the disk", e);
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param spaceId the identifier of the space of the page
+     * @param title the title of the page
+     * @return the identifier of the page, or null if there is no page with this title in this space
+     */
+    public Long get(long spaceId, String title)
+    {
+        this.lock.readLock().lock();
+        try {
+            if (this.runs.isEmpty()) {
+                return find(spaceId, title);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        // The entries spilled to the disk need to be merged before they can be searched
+        this.lock.writeLock().lock();
+        try {
+            Long pageId = getFromHeap(spaceId, title);
+            if (pageId == null && !this.runs.isEmpty()) {
+                try {
+                    mergeRuns();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to merge the page titles spilled to the disk", e);
+                }
+            }
+
+            return find(spaceId, title);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private Long getFromHeap(long spaceId, String title)
+    {
+        Map<String, Long> titles = this.heap.get(spaceId);
+
+        return titles != null ? titles.get(title) : null;
+    }
+
+    private Long find(long spaceId, String title)
+    {
+        Long pageId = getFromHeap(spaceId, title);
+        if (pageId != null || this.segments.isEmpty()) {
+            return pageId;
+        }
+
+        // Concurrent lookups share the hot cache
+        String key = getCacheKey(spaceId, title);
+        synchronized (this.hotCache) {
+            if (this.hotCache.containsKey(key)) {
+                return this.hotCache.get(key);
+            }
+        }
+
+        byte[] titleBytes = title.getBytes(StandardCharsets.UTF_8);
+        for (int i = this.segments.size() - 1; i >= 0 && pageId == null; i--) {
+            pageId = this.segments.get(i).get(spaceId, titleBytes);
+        }
+        synchronized (this.hotCache) {
+            this.hotCache.put(key, pageId);
+        }
+
+        return pageId;
+    }
+
+    /**
+     * @return true if some entries are stored on disk
+     */
+    public boolean isSpilled()
+    {
+        this.lock.readLock().lock();
+        try {
+            return !this.runs.isEmpty() || !this.segments.isEmpty();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the entries kept in memory, by space and title
+     */
+    public Map<Long, Map<String, Long>> getHeap()
+    {
+        this.lock.readLock().lock();
+        try {
+            return this.heap;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merge everything written on disk in segments, including the entries in memory when some entries are already on
+     * disk, so that the index can be read efficiently and reopened later.
+     *
+     * @throws IOException when failing to write the segments
+     */
+    public void finish() throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            if (isSpilled()) {
+                if (!this.heap.isEmpty()) {
+                    spill();
+                }
+                mergeRuns();
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the entries, including the ones on disk.
+     */
+    public void clear()
+    {
+        this.lock.writeLock().lock();
+        try {
+            this.heap.clear();
+            this.heapSize = 0;
+            this.hotCache.clear();
+            this.segments.clear();
+            for (File run : this.runs) {
+                FileUtils.deleteQuietly(run);
+            }
+            this.runs.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private static int getSegmentNumber(File file)
+    {
+        return Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length()));
+    }
+
+    private static String getCacheKey(long spaceId, String title)
+    {
+        return spaceId + "/" + title;
+    }
+
+    private File nextFile(String prefix)
+    {
+        this.folder.mkdirs();
+
+        return new File(this.folder, prefix + this.fileCount++);
+    }
+
+    private void spill() throws IOException
+    {
+        File run = nextFile(RUN_PREFIX);
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+            for (Map.Entry<Long, Map<String, Long>> space : new TreeMap<>(this.heap).entrySet()) {
+                List<Entry> entries = new ArrayList<>(space.getValue().size());
+                for (Map.Entry<String, Long> title : space.getValue().entrySet()) {
+                    entries.add(new Entry(space.getKey(), title.getKey().getBytes(StandardCharsets.UTF_8),
+                        title.getValue(), 0));
+                }
+                entries.sort(ENTRY_ORDER);
+                for (Entry entry : entries) {
+                    write(out, entry);
+                }
+            }
+        }
+
+        this.runs.add(run);
+        this.heap.clear();
+        this.heapSize = 0;
+    }
+
+    private void mergeRuns() throws IOException
+    {
+        // The existing segments are merged too when there are too many of them
+        List<Segment> compacted =
+            this.segments.size() >= MAX_SEGMENTS ? new ArrayList<>(this.segments) : new ArrayList<>();
+
+        // The most recent source wins when several sources contain the same title
+        PriorityQueue<Entry> queue =
+            new PriorityQueue<>(ENTRY_ORDER.thenComparing(Comparator.comparingInt((Entry e) -> e.source).reversed()));
+        List<Run> readers = new ArrayList<>(compacted.size() + this.runs.size());
+        try {
+            for (Segment segment : compacted) {
+                addReader(queue, readers, new Run(segment.file, readers.size(), segment.count));
+            }
+            for (File run : this.runs) {
+                addReader(queue, readers, new Run(run, readers.size(), -1));
+            }
+
+            SegmentWriter writer = new SegmentWriter();
+            try {
+                Entry previous = null;
+                while (!queue.isEmpty()) {
+                    Entry entry = queue.poll();
+                    addNext(queue, readers.get(entry.source));
+                    if (previous == null || ENTRY_ORDER.compare(previous, entry) != 0) {
+                        writer.write(entry);
+                        previous = entry;
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            for (Run reader : readers) {
+                reader.close();
+            }
+        }
+
+        for (File run : this.runs) {
+            FileUtils.deleteQuietly(run);
+        }
+        this.runs.clear();
+        for (Segment segment : compacted) {
+            FileUtils.deleteQuietly(segment.file);
+        }
+        this.segments.removeAll(compacted);
+        this.hotCache.clear();
+    }
+
+    private static void addReader(PriorityQueue<Entry> queue, List<Run> readers, Run reader) throws IOException
+    {
+        readers.add(reader);
+        addNext(queue, reader);
+    }
+
+    private static void addNext(PriorityQueue<Entry> queue, Run reader) throws IOException
+    {
+        Entry entry = reader.next();
+        if (entry != null) {
+            queue.add(entry);
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException
+    {
+        out.writeLong(entry.spaceId);
+        out.writeLong(entry.pageId);
+        out.writeInt(entry.title.length);
+        out.write(entry.title);
+    }
+
+    /**
+     * Write sorted entries in as many segments as needed, each one ending with the table of the positions of its
+     * entries.
+     */
+    private final class SegmentWriter
+    {
+        private File file;
+
+        private DataOutputStream out;
+
+        private long position;
+
+        private long[] positions = new long[1024];
+
+        private int count;
+
+        private void write(Entry entry) throws IOException
+        {
+            long size = Long.BYTES * 2L + Integer.BYTES + entry.title.length;
+            if (this.out != null && this.position + size + (this.count + 1L) * Long.BYTES > MAX_SEGMENT_SIZE) {
+                close();
+            }
+            if (this.out == null) {
+                this.file = nextFile(SEGMENT_PREFIX);
+                this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file), BUFFER_SIZE));
+                this.position = 0;
+                this.count = 0;
+            }
+
+            if (this.count == this.positions.length) {
+                this.positions = Arrays.copyOf(this.positions, this.count * 2);
+            }
+            this.positions[this.count++] = this.position;
+            TitleIndex.write(this.out, entry);
+            this.position += size;
+        }
+
+        private void close() throws IOException
+        {
+            if (this.out == null) {
+                return;
+            }
+
+            try {
+                for (int i = 0; i < this.count; i++) {
+                    this.out.writeLong(this.positions[i]);
+                }
+                this.out.writeLong(this.position);
+                this.out.writeInt(this.count);
+                this.out.writeInt(SEGMENT_VERSION);
+            } finally {
+                this.out.close();
+                this.out = null;
+            }
+
+            segments.add(new Segment(this.file));
+        }
+    }
+}
@@ -45,30 +45,48 @@ public class WithoutControlCharactersReader extends InputStream
     @Override
     public int read(byte[] b, int off, int len) throws IOException
     {
-        for (int i = 0; i < len; i++) {
-            int c = read();
-            if (c == -1) {
-                if (i == 0) {
-                    return -1;
+        if (len == 0) {
+            return 0;
+        }
+
+        int count;
+        do {
+            int read = is.read(b, off, len);
+            if (read == -1) {
+                return -1;
+            }
+
+            // Remove the control characters in place
+            count = 0;
+            for (int i = off; i < off + read; i++) {
+                byte c = b[i];
+                if (!isControlCharacter(c)) {
+                    b[off + count] = c;
+                    count++;
                 }
-                return i;
             }
-            b[off + i] = (byte) c;
-        }
-        return len;
+            // Don't return 0 when the whole chunk was made of control characters since it's not allowed
+        } while (count == 0);
+
+        return count;
     }
 
     @Override
     public int read() throws IOException
     {
         int c1 = is.read();
-        // Ignore ASCII control characters apart from the line feed (10) and carriage return (13) characters
-        while (c1 > 0 && c1 < 32 && c1 != 10 && c1 != 13) {
+        while (isControlCharacter(c1)) {
             c1 = is.read();
         }
         return c1;
     }
 
+    private static boolean isControlCharacter(int c)
+    {
+        // Ignore ASCII control characters apart from the line feed (10) and carriage return (13) characters
+        return c > 0 && c < 32 && c != 10 && c != 13;
+    }
+
     @Override
     public void close() throws IOException
     {
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.xwiki.contrib.confluence.filter.input.ConfluenceAttachmentContent;
+
+/**
+ * Attachment content read directly from the entry of a Confluence package zip file.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ZipAttachmentContent implements ConfluenceAttachmentContent
+{
+    private final ZipFile zipFile;
+
+    private final ZipEntry entry;
+
+    private final String digest;
+
+    /**
+     * @param zipFile the zip file containing the attachment
+     * @param entry the entry containing the attachment content
+     */
+    public ZipAttachmentContent(ZipFile zipFile, ZipEntry entry)
+    {
+        this(zipFile, entry, null);
+    }
+
+    /**
+     * @param zipFile the zip file containing the attachment
+     * @param entry the entry containing the attachment content
+     * @param digest the digest of the content, or null if it's unknown
+     */
+    public ZipAttachmentContent(ZipFile zipFile, ZipEntry entry, String digest)
+    {
+        this.zipFile = zipFile;
+        this.entry = entry;
+        this.digest = digest;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return this.entry.getSize();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException
+    {
+        return this.zipFile.getInputStream(this.entry);
+    }
+
+    @Override
+    public String getDigest()
+    {
+        return this.digest;
+    }
+}
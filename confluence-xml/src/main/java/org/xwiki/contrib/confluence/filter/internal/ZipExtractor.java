@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Extract a zip file using several threads.
+ * <p>
+ * Entries are located using the central directory of the zip file, which allows inflating them in parallel. Some
+ * entries can be extracted synchronously before the others so that they can be used while the rest of the package is
+ * being extracted.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ZipExtractor implements Closeable
+{
+    private final ZipFile zipFile;
+
+    private final File directory;
+
+    private final int threads;
+
+    private ExecutorService executor;
+
+    private volatile IOException error;
+
+    /**
+     * @param file the zip file to extract
+     * @param directory the directory where to extract the zip file
+     * @param threads the number of threads to use to extract the entries
+     * @throws IOException when failing to read the central directory of the zip file
+     */
+    public ZipExtractor(File file, File directory, int threads) throws IOException
+    {
+        this.zipFile = new ZipFile(file);
+        this.directory = directory;
+        this.threads = threads;
+    }
+
+    /**
+     * @param directory the directory where a zip file is extracted
+     * @param name the name of an entry of the zip file
+     * @return the file where to extract the entry
+     * @throws IOException when the entry would be extracted outside of the directory
+     */
+    public static File getEntryFile(File directory, String name) throws IOException
+    {
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            throw new IOException(String.format("The zip entry [%s] is outside of the extraction directory", name));
+        }
+
+        return path.toFile();
+    }
+
+    /**
+     * Extract the passed entries and start extracting the other ones in the background.
+     *
+     * @param firstEntries the name of the entries to extract before returning
+     * @throws IOException when an entry would be extracted outside of the directory or when failing to extract the
+     *     first entries
+     */
+    public void start(String... firstEntries) throws IOException
+    {
+        Collection<String> first = Arrays.asList(firstEntries);
+
+        List<ZipEntry> entries = new ArrayList<>();
+        for (Enumeration<? extends ZipEntry> e = this.zipFile.entries(); e.hasMoreElements();) {
+            ZipEntry entry = e.nextElement();
+            // Check all the entries before extracting anything
+            getEntryFile(this.directory, entry.getName());
+            if (!entry.isDirectory()) {
+                entries.add(entry);
+            }
+        }
+
+        List<ZipEntry> others = new ArrayList<>(entries.size());
+        for (ZipEntry entry : entries) {
+            if (first.contains(entry.getName())) {
+                extract(entry);
+            } else {
+                others.add(entry);
+            }
+        }
+
+        this.executor = Executors.newFixedThreadPool(this.threads,
+            new BasicThreadFactory.Builder().namingPattern("Confluence package extraction %d").daemon(true).build());
+        for (ZipEntry entry : others) {
+            this.executor.execute(() -> {
+                if (this.error == null) {
+                    try {
+                        extract(entry);
+                    } catch (IOException e) {
+                        this.error = e;
+                    }
+                }
+            });
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Wait for all the entries to be extracted.
+     *
+     * @throws IOException when failing to extract an entry
+     * @throws InterruptedException when interrupted while waiting for the extraction
+     */
+    public void join() throws IOException, InterruptedException
+    {
+        if (this.executor != null) {
+            while (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting
+            }
+        }
+
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    private void extract(ZipEntry entry) throws IOException
+    {
+        FileUtils.copyInputStreamToFile(this.zipFile.getInputStream(entry),
+            getEntryFile(this.directory, entry.getName()));
+    }
+
+    /**
+     * Stop extracting the remaining entries and release the zip file.
+     *
+     * @throws IOException when failing to close the zip file
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            try {
+                this.executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.zipFile.close();
+    }
+}
@@ -19,14 +19,15 @@
  */
 package org.xwiki.contrib.confluence.filter.internal.input;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,9 +52,15 @@ import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.contrib.confluence.filter.PageIdentifier;
 import org.xwiki.contrib.confluence.filter.event.ConfluenceFilteredEvent;
 import org.xwiki.contrib.confluence.filter.event.ConfluenceFilteringEvent;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceAttachmentContent;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceAttachmentInputStream;
 import org.xwiki.contrib.confluence.filter.input.ConfluenceInputContext;
 import org.xwiki.contrib.confluence.filter.input.ConfluenceInputProperties;
 import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
@@ -76,8 +83,8 @@ import org.xwiki.filter.event.user.UserFilter;
 import org.xwiki.filter.input.AbstractBeanInputFilterStream;
 import org.xwiki.filter.input.BeanInputFilterStream;
 import org.xwiki.filter.input.BeanInputFilterStreamFactory;
+import org.xwiki.filter.input.DefaultReaderInputSource;
 import org.xwiki.filter.input.InputFilterStreamFactory;
-import org.xwiki.filter.input.StringInputSource;
 import org.xwiki.job.Job;
 import org.xwiki.job.JobContext;
 import org.xwiki.job.event.status.CancelableJobStatus;
@@ -136,6 +143,11 @@ public class ConfluenceInputFilterStream
 
     private static final String TITLE = "title";
 
+    private static final int PREFETCH_THREADS = 2;
+
+    // Leave room for the revisions, attachments, comments and tags of the prefetched pages
+    static final int PREFETCHED_OBJECTS_PER_PAGE = 256;
+
     @Inject
     @Named(ConfluenceInputStreamParser.COMPONENT_NAME)
     private StreamParser confluenceWIKIParser;
@@ -175,6 +187,12 @@ public class ConfluenceInputFilterStream
     @Inject
     private JobContext jobContext;
 
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
     private final Map<String, Integer> macrosIds = new HashMap<>();
 
     private ConfluenceIdRangeList objectIdRanges;
@@ -187,6 +205,174 @@ public class ConfluenceInputFilterStream
 
     private FilterEventParameters webPreferenceParameters;
 
+    private PageLookahead<Map<Long, ConvertedBody>> conversions;
+
+    private PageLookahead<Void> prefetches;
+
+    // The key of the only space to send, when the package is shared with the streams sending the other spaces
+    private String sharedSpaceKey;
+
+    // True if some pages could not be sent, so that they are considered changed by the next incremental indexing
+    private boolean sendFailed;
+
+    // True if all the pages were sent without error
+    private boolean sendComplete;
+
+    // The bodies of the revisions of the page being sent which were converted ahead of time, by revision id
+    private Map<Long, ConvertedBody> convertedBodies = Collections.emptyMap();
+
+    private static final class ConvertedBody
+    {
+        private final String content;
+
+        private final Map<String, Integer> macroIds;
+
+        private ConvertedBody(String content, Map<String, Integer> macroIds)
+        {
+            this.content = content;
+            this.macroIds = macroIds;
+        }
+    }
+
+    /**
+     * Follow the pages as they are sent by this filter stream.
+     */
+    private abstract class LookaheadPages<V> implements PageLookahead.Pages<V>
+    {
+        @Override
+        public boolean isTraversed(long pageId)
+        {
+            return properties.isIncluded(pageId);
+        }
+
+        @Override
+        public boolean isComputed(long pageId)
+        {
+            return confluencePackage.isPageChanged(pageId);
+        }
+
+        @Override
+        public Collection<Long> getChildren(long pageId)
+        {
+            return confluencePackage.getPageChildren(pageId);
+        }
+
+        @Override
+        public void failed(long pageId, Throwable cause)
+        {
+            logger.debug("Failed to prepare the page [{}] ahead, it will be prepared again when sent", pageId, cause);
+        }
+    }
+
+    private static final class AttachmentVersion
+    {
+        private final Date date;
+
+        private final ConfluenceProperties properties;
+
+        private AttachmentVersion(Date date, ConfluenceProperties properties)
+        {
+            this.date = date;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * The previous versions of the attachments of a page, sent with the revisions of the page in which they appeared.
+     */
+    private final class AttachmentHistory
+    {
+        private final long pageId;
+
+        private final ConfluenceProperties pageProperties;
+
+        // The versions of the attachments, oldest first
+        private final List<AttachmentVersion> versions = new ArrayList<>();
+
+        // The id of the last version sent for each attachment name
+        private final Map<String, Long> sent = new HashMap<>();
+
+        private AttachmentHistory(ConfluenceProperties pageProperties)
+        {
+            this.pageId = pageProperties.getLong("id");
+            this.pageProperties = pageProperties;
+
+            // Checking the object id ranges twice for the same attachment would break them
+            if (properties.isAttachmentHistoryEnabled() && properties.isAttachmentsEnabled()
+                && objectIdRanges == null) {
+                Map<String, AttachmentVersion> current = new HashMap<>();
+                for (Long attachmentId : confluencePackage.getAttachments(this.pageId)) {
+                    addVersion(attachmentId, current);
+                }
+                this.versions.sort(Comparator.comparing(version -> version.date));
+
+                // The current versions are sent with the current revision of the page
+                this.versions.removeAll(current.values());
+            }
+        }
+
+        private void addVersion(Long attachmentId, Map<String, AttachmentVersion> current)
+        {
+            try {
+                ConfluenceProperties attachmentProperties =
+                    confluencePackage.getAttachmentProperties(this.pageId, attachmentId);
+                Date date =
+                    confluencePackage.getDate(attachmentProperties, ConfluenceXMLPackage.KEY_ATTACHMENT_REVISION_DATE);
+                if (date != null) {
+                    AttachmentVersion version = new AttachmentVersion(date, attachmentProperties);
+                    this.versions.add(version);
+
+                    // Same choice of the current version as readAttachments
+                    String name = confluencePackage.getAttachmentName(attachmentProperties);
+                    AttachmentVersion currentVersion = current.get(name);
+                    if (currentVersion == null || date.after(currentVersion.date)) {
+                        current.put(name, version);
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to get the version of the attachment [{}] of the page with id [{}]", attachmentId,
+                    createPageIdentifier(this.pageProperties), e);
+            }
+        }
+
+        /**
+         * Send the versions of the attachments which existed at the date of the revision and were not sent yet.
+         */
+        private void send(ConfluenceProperties revisionProperties, ConfluenceFilter proxyFilter)
+            throws FilterException
+        {
+            if (this.versions.isEmpty()) {
+                return;
+            }
+
+            Date revisionDate;
+            try {
+                revisionDate =
+                    confluencePackage.getDate(revisionProperties, ConfluenceXMLPackage.KEY_PAGE_REVISION_DATE);
+            } catch (Exception e) {
+                revisionDate = null;
+            }
+            if (revisionDate == null) {
+                return;
+            }
+
+            Map<String, ConfluenceProperties> existing = new LinkedHashMap<>();
+            for (AttachmentVersion version : this.versions) {
+                if (version.date.after(revisionDate)) {
+                    break;
+                }
+                existing.put(confluencePackage.getAttachmentName(version.properties), version.properties);
+            }
+
+            for (Map.Entry<String, ConfluenceProperties> entry : existing.entrySet()) {
+                Long attachmentId = entry.getValue().getLong("id");
+                if (!attachmentId.equals(this.sent.put(entry.getKey(), attachmentId))) {
+                    readAttachment(this.pageId, this.pageProperties, entry.getValue(), proxyFilter);
+                }
+            }
+        }
+    }
+
     private static class MaxPageCountReachedException extends ConfluenceInterruptedException
     {
         private static final long serialVersionUID = 1L;
@@ -195,7 +381,23 @@ public class ConfluenceInputFilterStream
     @Override
     public void close() throws IOException
     {
-        this.properties.getSource().close();
+        // The source of a shared package is closed once all the spaces are sent
+        if (this.sharedSpaceKey == null) {
+            this.properties.getSource().close();
+        }
+    }
+
+    /**
+     * Only send one space of a package which was already read, without the users and groups, and leave the package
+     * open. This lets several streams send the spaces of the same package concurrently.
+     *
+     * @param sharedPackage the package, already read or restored
+     * @param spaceKey the key of the space to send
+     */
+    void setSharedPackage(ConfluenceXMLPackage sharedPackage, String spaceKey)
+    {
+        this.confluencePackage = sharedPackage;
+        this.sharedSpaceKey = spaceKey;
     }
 
     @Override
@@ -259,6 +461,11 @@ public class ConfluenceInputFilterStream
 
     private void pushLevelProgress(int steps)
     {
+        if (this.sharedSpaceKey != null) {
+            // The progress of the spaces sharing the package is reported by space
+            return;
+        }
+
         try {
             this.progress.pushLevelProgress(steps, this);
         } catch (Exception e) {
@@ -268,6 +475,10 @@ public class ConfluenceInputFilterStream
 
     private void popLevelProgress()
     {
+        if (this.sharedSpaceKey != null) {
+            return;
+        }
+
         try {
             this.progress.popLevelProgress(this);
         } catch (Exception e) {
@@ -309,10 +520,14 @@ public class ConfluenceInputFilterStream
     private void readInternal(Object filter, ConfluenceFilter proxyFilter) throws FilterException
     {
         // Prepare package
-        boolean restored = false;
+        boolean shared = this.sharedSpaceKey != null;
+        boolean restored = shared;
         String wd = this.properties.getWorkingDirectory();
-        if (StringUtils.isNotEmpty(wd)) {
-            restored = this.confluencePackage.restoreState(wd);
+        if (!shared) {
+            this.confluencePackage.setInputProperties(this.properties);
+            if (StringUtils.isNotEmpty(wd) && !this.properties.isIncrementalIndexing()) {
+                restored = this.confluencePackage.restoreState(wd);
+            }
         }
 
         try {
@@ -332,34 +547,47 @@ public class ConfluenceInputFilterStream
             return;
         }
 
-        if (StringUtils.isEmpty(this.properties.getConfluenceInstanceType())) {
-            // Attempt to auto-detect the source Confluence instance type (cloud or server)
-            this.properties.setConfluenceInstanceType(confluencePackage.getDescriptorField(DESCRIPTOR_SOURCE_FIELD));
+        if (!shared) {
+            prepareSending(this.confluencePackage, this.properties);
         }
 
         getJobStatus();
 
-        maybeRemoveArchivedSpaces();
-
-        ConfluenceFilteringEvent filteringEvent = new ConfluenceFilteringEvent();
-        this.observationManager.notify(filteringEvent, this, this.confluencePackage);
-        if (filteringEvent.isCanceled()) {
-            closeConfluencePackage();
-            return;
+        Collection<Long> disabledSpaces;
+        if (shared) {
+            // The events are notified once for all the spaces sharing the package
+            disabledSpaces = Collections.emptyList();
+        } else {
+            ConfluenceFilteringEvent filteringEvent = new ConfluenceFilteringEvent();
+            this.observationManager.notify(filteringEvent, this, this.confluencePackage);
+            if (filteringEvent.isCanceled()) {
+                closeConfluencePackage();
+                return;
+            }
+            disabledSpaces = filteringEvent.getDisabledSpaces();
         }
 
         this.objectIdRanges = this.properties.getObjectIdRanges();
         if (this.objectIdRanges != null) {
             prepareNextObjectRangeId();
+
+            if (this.properties.isAttachmentHistoryEnabled() && this.properties.isAttachmentsEnabled()) {
+                this.logger.warn("The attachment history is not imported when object id ranges are set, only the "
+                    + "current attachments are sent with the current revision of the pages.");
+            }
         }
 
         Map<Long, List<Long>> pages = this.confluencePackage.getPages();
         Map<Long, List<Long>> blogPages = this.confluencePackage.getBlogPages();
+        if (shared) {
+            Long sharedSpaceId = this.confluencePackage.getSpacesByKey().get(this.sharedSpaceKey);
+            pages = getSpacePages(pages, sharedSpaceId);
+            blogPages = getSpacePages(blogPages, sharedSpaceId);
+        }
 
         // Only count pages if we are going to send them
         boolean willSendPages = this.properties.isContentsEnabled() || this.properties.isRightsEnabled();
 
-        Collection<Long> disabledSpaces = filteringEvent.getDisabledSpaces();
         int pagesCount = willSendPages
             ? (
                 (properties.isNonBlogContentEnabled() ? countPages(pages, disabledSpaces) : 0)
@@ -375,19 +603,20 @@ public class ConfluenceInputFilterStream
         int progressCount = pagesCount;
 
         Collection<Long> users = null;
-        if (this.properties.isUsersEnabled()) {
+        if (this.properties.isUsersEnabled() && !shared) {
             users = this.confluencePackage.getInternalUsers();
             progressCount += users.size();
         }
 
         Collection<Long> groups = null;
-        if (this.properties.isGroupsEnabled()) {
+        if (this.properties.isGroupsEnabled() && !shared) {
             groups = this.confluencePackage.getGroups();
             progressCount += groups.size();
         }
 
         pushLevelProgress(progressCount);
         try {
+            startLookaheads(filter);
             sendUsersAndGroups(users, groups, proxyFilter);
             if (this.properties.isContentsEnabled()
                 || this.properties.isRightsEnabled()
@@ -395,13 +624,20 @@ public class ConfluenceInputFilterStream
             ) {
                 sendSpaces(filter, proxyFilter, pages, blogPages, disabledSpaces);
             }
+            this.sendComplete = !this.sendFailed;
+            if (!shared) {
+                saveFingerprints();
+            }
         } catch (MaxPageCountReachedException e) {
             logger.info("The maximum of pages to read has been reached.");
         } catch (ConfluenceInterruptedException e) {
             logger.warn("The job was canceled.");
         } finally {
+            stopLookaheads();
             popLevelProgress();
-            observationManager.notify(new ConfluenceFilteredEvent(), this, this.confluencePackage);
+            if (!shared) {
+                observationManager.notify(new ConfluenceFilteredEvent(), this, this.confluencePackage);
+            }
             closeConfluencePackage();
             popLevelProgress();
         }
@@ -450,7 +686,33 @@ public class ConfluenceInputFilterStream
         }
     }
 
-    private void maybeRemoveArchivedSpaces() throws FilterException
+    /**
+     * Prepare a package which was just read or restored to be sent.
+     *
+     * @param confluencePackage the package to prepare
+     * @param properties the properties used to send the package
+     * @throws FilterException when failing to prepare the package
+     */
+    static void prepareSending(ConfluenceXMLPackage confluencePackage, ConfluenceInputProperties properties)
+        throws FilterException
+    {
+        if (StringUtils.isEmpty(properties.getConfluenceInstanceType())) {
+            // Attempt to auto-detect the source Confluence instance type (cloud or server)
+            properties.setConfluenceInstanceType(confluencePackage.getDescriptorField(DESCRIPTOR_SOURCE_FIELD));
+        }
+
+        maybeRemoveArchivedSpaces(confluencePackage, properties);
+    }
+
+    private static Map<Long, List<Long>> getSpacePages(Map<Long, List<Long>> pages, Long spaceId)
+    {
+        List<Long> spacePages = spaceId != null ? pages.get(spaceId) : null;
+
+        return spacePages != null ? Collections.singletonMap(spaceId, spacePages) : Collections.emptyMap();
+    }
+
+    private static void maybeRemoveArchivedSpaces(ConfluenceXMLPackage confluencePackage,
+        ConfluenceInputProperties properties) throws FilterException
     {
         // Yes, this is a bit hacky, I know. It would be better to not even create objects related to spaces that should
         // not be there. This is harder to do. If you find a cleaner way, don't hesitate do change this.
@@ -565,6 +827,7 @@ public class ConfluenceInputFilterStream
                 List<Long> orphans = confluencePackage.getOrphans(spaceId);
                 Long homePageId = confluencePackage.getHomePage(spaceId);
                 if (this.properties.isContentsEnabled() || this.properties.isRightsEnabled()) {
+                    addLookaheads(spaceKey, homePageId, orphans, blogPages);
                     if (homePageId != null) {
                         inheritedRights = sendPage(homePageId, spaceKey, false, filter, proxyFilter);
                         homePageProperties = getPageProperties(homePageId);
@@ -622,6 +885,7 @@ public class ConfluenceInputFilterStream
 
         if (this.properties.isIncluded(pageId)) {
             ((DefaultConfluenceInputContext) this.context).setCurrentPage(pageId);
+            takePrefetched(pageId);
             try {
                 inheritedRights = readPage(pageId, spaceKey, blog, filter, proxyFilter);
             } catch (MaxPageCountReachedException e) {
@@ -629,6 +893,7 @@ public class ConfluenceInputFilterStream
             } catch (ConfluenceCanceledException e) {
                 throw e;
             } catch (Exception e) {
+                this.sendFailed = true;
                 logger.error("Failed to filter the page with id [{}]", createPageIdentifier(pageId, spaceKey), e);
             }
         }
@@ -986,14 +1251,54 @@ public class ConfluenceInputFilterStream
         return createPageIdentifier(pageId, spaceKey);
     }
 
+    private void saveFingerprints()
+    {
+        if (!this.sendComplete) {
+            this.logger.warn("Some pages failed to be sent, the next incremental indexing will be compared with the "
+                + "same previous export");
+            return;
+        }
+
+        try {
+            this.confluencePackage.saveFingerprints();
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the fingerprints of the export, the next incremental indexing will be "
+                + "compared with the same previous export", e);
+        }
+    }
+
+    /**
+     * @return true if all the pages were sent without error
+     */
+    boolean isSendComplete()
+    {
+        return this.sendComplete;
+    }
+
     private void closeConfluencePackage() throws FilterException
     {
-        if ("NO".equals(this.properties.getCleanup())) {
+        // A shared package is closed once all the spaces are sent
+        if (this.sharedSpaceKey == null) {
+            closeConfluencePackage(this.confluencePackage, this.properties);
+        }
+    }
+
+    /**
+     * Close the package, according to the cleanup mode.
+     *
+     * @param confluencePackage the package to close
+     * @param properties the properties used to send the package
+     * @throws FilterException when failing to close the package
+     */
+    static void closeConfluencePackage(ConfluenceXMLPackage confluencePackage, ConfluenceInputProperties properties)
+        throws FilterException
+    {
+        if ("NO".equals(properties.getCleanup())) {
             return;
         }
 
         try {
-            this.confluencePackage.close("ASYNC".equals(this.properties.getCleanup()));
+            confluencePackage.close("ASYNC".equals(properties.getCleanup()));
         } catch (IOException e) {
             throw new FilterException("Failed to close package", e);
         }
@@ -1279,7 +1584,7 @@ public class ConfluenceInputFilterStream
             documentParameters.put(WikiDocumentFilter.PARAMETER_LOCALE, this.properties.getDefaultLocale());
         }
 
-        if (this.properties.isVerbose()) {
+        if (this.properties.isVerbose() && this.confluencePackage.isPageChanged(pageId)) {
             this.logger.info("Sending page [{}], Confluence id=[{}]", createPageIdentifier(pageId, spaceKey), pageId);
         }
 
@@ -1298,8 +1603,16 @@ public class ConfluenceInputFilterStream
         }
 
         try {
-            Collection<ConfluenceRight> inheritedRights = sendTerminalDoc(blog, filter, proxyFilter, documentName,
-                documentParameters, pageProperties, spaceKey, isHomePage, children);
+            Collection<ConfluenceRight> inheritedRights;
+            if (this.confluencePackage.isPageChanged(pageId)) {
+                inheritedRights = sendTerminalDoc(blog, filter, proxyFilter, documentName, documentParameters,
+                    pageProperties, spaceKey, isHomePage, children);
+            } else {
+                // The document is not sent again but its children might have changed
+                inheritedRights = isHomePage && this.properties.isRightsEnabled()
+                    ? sendPageRights(null, pageProperties) : null;
+                emptyStep();
+            }
 
             if (isHomePage) {
                 // We only send inherited rights of the home page so they are added to the space's WebPreference page
@@ -1319,15 +1632,29 @@ public class ConfluenceInputFilterStream
 
     private void emptyStep()
     {
-        this.progress.startStep(this);
-        this.progress.endStep(this);
+        startStep();
+        endStep();
+    }
+
+    private void startStep()
+    {
+        if (this.sharedSpaceKey == null) {
+            this.progress.startStep(this);
+        }
+    }
+
+    private void endStep()
+    {
+        if (this.sharedSpaceKey == null) {
+            this.progress.endStep(this);
+        }
     }
 
     private Collection<ConfluenceRight> sendTerminalDoc(boolean blog, Object filter, ConfluenceFilter proxyFilter,
         String documentName, FilterEventParameters documentParameters, ConfluenceProperties pageProperties,
         String spaceKey, boolean isHomePage, List<Long> children) throws FilterException, ConfluenceCanceledException
     {
-        this.progress.startStep(this);
+        startStep();
         // > WikiDocument
         proxyFilter.beginWikiDocument(documentName, documentParameters);
 
@@ -1369,7 +1696,7 @@ public class ConfluenceInputFilterStream
             if (this.remainingPages > 0) {
                 this.remainingPages--;
             }
-            this.progress.endStep(this);
+            endStep();
         }
 
         return isHomePage ? inheritedRights : null;
@@ -1410,6 +1737,8 @@ public class ConfluenceInputFilterStream
         // > WikiDocumentLocale
         proxyFilter.beginWikiDocumentLocale(locale, documentLocaleParameters);
 
+        this.convertedBodies = takeConvertedBodies(pageProperties);
+
         Collection<ConfluenceRight> inheritedRights = null;
         try {
             // Revisions
@@ -1417,6 +1746,7 @@ public class ConfluenceInputFilterStream
                 List<Long> revisions =
                     this.confluencePackage.getLongList(pageProperties, ConfluenceXMLPackage.KEY_PAGE_REVISIONS);
                 Collections.sort(revisions);
+                AttachmentHistory attachmentHistory = new AttachmentHistory(pageProperties);
                 for (Long revisionId : revisions) {
                     if (shouldSendObject(revisionId)) {
                         ConfluenceProperties revisionProperties = getPageProperties(revisionId);
@@ -1426,7 +1756,8 @@ public class ConfluenceInputFilterStream
                         }
 
                         try {
-                            readPageRevision(revisionProperties, blog, filter, proxyFilter, spaceKey);
+                            readPageRevision(revisionProperties, blog, filter, proxyFilter, spaceKey,
+                                attachmentHistory);
                         } catch (Exception e) {
                             logger.error("Failed to filter the page revision with id [{}]",
                                 createPageIdentifier(revisionId, spaceKey), e);
@@ -1439,8 +1770,10 @@ public class ConfluenceInputFilterStream
             // Current version
             // Note: no need to check whether the object should be sent. Indeed, this is already checked by an upper
             // function
-            inheritedRights = readPageRevision(pageProperties, blog, filter, proxyFilter, spaceKey);
+            inheritedRights = readPageRevision(pageProperties, blog, filter, proxyFilter, spaceKey, null);
         } finally {
+            this.convertedBodies = Collections.emptyMap();
+
             // < WikiDocumentLocale
             proxyFilter.endWikiDocumentLocale(locale, documentLocaleParameters);
         }
@@ -1448,6 +1781,9 @@ public class ConfluenceInputFilterStream
         return inheritedRights;
     }
 
+    /**
+     * @param proxyFilter the filter receiving the rights of the page, or null to only get the inherited rights
+     */
     private Collection<ConfluenceRight> sendPageRights(ConfluenceFilter proxyFilter,
         ConfluenceProperties pageProperties) throws FilterException
     {
@@ -1530,7 +1866,7 @@ public class ConfluenceInputFilterStream
                 if (right != null && !(confluenceRight.users.isEmpty() && confluenceRight.group.isEmpty())) {
                     if (Right.VIEW.equals(right)) {
                         inheritedRights.add(confluenceRight);
-                    } else {
+                    } else if (proxyFilter != null) {
                         sendRight(proxyFilter, confluenceRight.group, right, confluenceRight.users, false);
                     }
                 }
@@ -1569,8 +1905,12 @@ public class ConfluenceInputFilterStream
         }
     }
 
+    /**
+     * @param attachmentHistory the attachments to send with a previous revision of the page, null for the current one
+     */
     private Collection<ConfluenceRight> readPageRevision(ConfluenceProperties pageProperties, boolean blog,
-        Object filter, ConfluenceFilter proxyFilter, String spaceKey) throws FilterException
+        Object filter, ConfluenceFilter proxyFilter, String spaceKey, AttachmentHistory attachmentHistory)
+        throws FilterException
     {
         // beware. Here, pageProperties might not have a space key. You need to use the one passed in parameters
         // FIXME we could ensure it though with some work
@@ -1596,7 +1936,11 @@ public class ConfluenceInputFilterStream
         }
 
         try {
-            readAttachments(pageId, pageProperties, proxyFilter);
+            if (attachmentHistory == null) {
+                readAttachments(pageId, pageProperties, proxyFilter);
+            } else {
+                attachmentHistory.send(pageProperties, proxyFilter);
+            }
             readTags(pageProperties, proxyFilter);
             readComments(pageProperties, proxyFilter);
             storeConfluenceDetails(spaceKey, pageId, pageProperties, proxyFilter);
@@ -1611,8 +1955,9 @@ public class ConfluenceInputFilterStream
         Object filter, ConfluenceFilter proxyFilter, String revision, FilterEventParameters docRevisionParameters)
         throws FilterException
     {
-        String bodyContent = pageProperties.getString(ConfluenceXMLPackage.KEY_PAGE_BODY, null);
-        if (bodyContent != null && this.properties.isContentsEnabled()) {
+        // The body is only loaded when the content is actually needed
+        String bodyContent = null;
+        if (this.properties.isContentsEnabled() && this.confluencePackage.hasBody(pageProperties)) {
             // No bodyType means old Confluence syntax
             int bodyType = pageProperties.getInt(ConfluenceXMLPackage.KEY_PAGE_BODY_TYPE, 0);
 
@@ -1620,8 +1965,8 @@ public class ConfluenceInputFilterStream
                 // > WikiDocumentRevision
                 proxyFilter.beginWikiDocumentRevision(revision, docRevisionParameters);
 
-                try {
-                    parse(bodyContent, bodyType, this.properties.getMacroContentSyntax(), proxyFilter);
+                try (Reader body = this.confluencePackage.getBodyReader(pageProperties)) {
+                    parse(body, bodyType, this.properties.getMacroContentSyntax(), proxyFilter, this.macrosIds);
                 } catch (Exception e) {
                     this.logger.error("Failed to parse content of page with id [{}]",
                         createPageIdentifier(pageProperties), e);
@@ -1632,15 +1977,16 @@ public class ConfluenceInputFilterStream
             Syntax bodySyntax = getBodySyntax(pageProperties, bodyType);
 
             if (this.properties.isConvertToXWiki()) {
-                try {
-                    bodyContent = convertToXWiki21(bodyContent, bodyType);
+                bodyContent = convertBody(pageProperties, bodyType);
+                if (bodyContent != null) {
                     bodySyntax = Syntax.XWIKI_2_1;
-                } catch (Exception e) {
-                    this.logger.error("Failed to convert content of the page with id [{}]",
-                        createPageIdentifier(pageProperties), e);
                 }
             }
 
+            if (bodyContent == null) {
+                bodyContent = getBody(pageProperties);
+            }
+
             if (!isBlog) {
                 docRevisionParameters.put(WikiDocumentFilter.PARAMETER_CONTENT, bodyContent);
             }
@@ -1654,6 +2000,10 @@ public class ConfluenceInputFilterStream
         // Generate page content when the page is a regular page or the value of the "content" property of the
         // "Blog.BlogPostClass" object if the page is a blog post.
         if (isBlog) {
+            if (bodyContent == null) {
+                bodyContent = getBody(pageProperties);
+            }
+
             // Add the Blog post object
             Date publishDate = null;
             try {
@@ -1925,60 +2275,272 @@ public class ConfluenceInputFilterStream
         }
     }
 
+    private String convertBody(ConfluenceProperties pageProperties, int bodyType)
+    {
+        ConvertedBody converted = this.convertedBodies.get(pageProperties.getLong("id", null));
+        if (converted != null) {
+            converted.macroIds.forEach((id, count) -> this.macrosIds.merge(id, count, Integer::sum));
+
+            return converted.content;
+        }
+
+        try (Reader body = this.confluencePackage.getBodyReader(pageProperties)) {
+            return convertToXWiki21(body, bodyType, this.macrosIds);
+        } catch (Exception e) {
+            this.logger.error("Failed to convert content of the page with id [{}]",
+                createPageIdentifier(pageProperties), e);
+        }
+
+        return null;
+    }
+
+    private void startLookaheads(Object filter)
+    {
+        int threads = this.properties.getConversionThreads();
+        if (threads > 0 && this.properties.isContentsEnabled() && this.properties.isConvertToXWiki()
+            && this.objectIdRanges == null && !(this.properties.isContentEvents() && filter instanceof Listener)) {
+            ExecutionContext executionContext = this.execution.getContext();
+            this.conversions = new PageLookahead<>("Confluence content conversion", threads,
+                new LookaheadPages<Map<Long, ConvertedBody>>()
+                {
+                    @Override
+                    public Map<Long, ConvertedBody> compute(String spaceKey, long pageId, boolean blog)
+                        throws FilterException, ExecutionContextException
+                    {
+                        return convertBodies(spaceKey, pageId, executionContext);
+                    }
+                });
+        }
+
+        int prefetchedPages = this.properties.getPrefetchedPages();
+        if (prefetchedPages > 0) {
+            if (this.sharedSpaceKey == null) {
+                this.confluencePackage.setPrefetchCapacity(prefetchedPages * PREFETCHED_OBJECTS_PER_PAGE);
+            }
+            this.prefetches = new PageLookahead<>("Confluence metadata prefetch", PREFETCH_THREADS, prefetchedPages,
+                new LookaheadPages<Void>()
+                {
+                    @Override
+                    public Void compute(String spaceKey, long pageId, boolean blog) throws ConfigurationException
+                    {
+                        confluencePackage.prefetchPage(pageId);
+
+                        return null;
+                    }
+                });
+        }
+    }
+
+    private void addLookaheads(String spaceKey, Long homePageId, List<Long> orphans, List<Long> blogPages)
+    {
+        addLookahead(this.conversions, spaceKey, homePageId, orphans, blogPages);
+        addLookahead(this.prefetches, spaceKey, homePageId, orphans, blogPages);
+    }
+
+    private void addLookahead(PageLookahead<?> lookahead, String spaceKey, Long homePageId, List<Long> orphans,
+        List<Long> blogPages)
+    {
+        if (lookahead != null) {
+            // Follow the order in which the pages of the space are sent
+            lookahead.clear();
+            if (homePageId != null) {
+                lookahead.add(spaceKey, Collections.singletonList(homePageId), false);
+            }
+            lookahead.add(spaceKey, orphans, false);
+            if (this.properties.isBlogsEnabled() && blogPages != null) {
+                lookahead.add(spaceKey, blogPages, true);
+            }
+        }
+    }
+
+    private void takePrefetched(long pageId) throws ConfluenceCanceledException
+    {
+        if (this.prefetches != null) {
+            try {
+                this.prefetches.take(pageId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConfluenceCanceledException();
+            }
+        }
+    }
+
+    private Map<Long, ConvertedBody> takeConvertedBodies(ConfluenceProperties pageProperties)
+        throws ConfluenceCanceledException
+    {
+        Long pageId = pageProperties.getLong("id", null);
+        if (this.conversions != null && pageId != null) {
+            try {
+                Map<Long, ConvertedBody> bodies = this.conversions.take(pageId);
+                if (bodies != null) {
+                    return bodies;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConfluenceCanceledException();
+            }
+        }
+
+        return Collections.emptyMap();
+    }
+
+    private void stopLookaheads()
+    {
+        if (this.conversions != null) {
+            this.conversions.close();
+            this.conversions = null;
+        }
+
+        if (this.prefetches != null) {
+            this.prefetches.close();
+            this.prefetches = null;
+            if (this.sharedSpaceKey == null) {
+                this.confluencePackage.setPrefetchCapacity(0);
+            }
+        }
+    }
+
+    /**
+     * Convert the bodies of a page and of its revisions. Called from a conversion thread.
+     */
+    private Map<Long, ConvertedBody> convertBodies(String spaceKey, long pageId, ExecutionContext executionContext)
+        throws FilterException, ExecutionContextException
+    {
+        // The macro converters and the renderers rely on the execution context of their thread
+        if (executionContext != null) {
+            this.execution.setContext(this.executionContextManager.clone(executionContext));
+        }
+
+        try {
+            return convertBodies(spaceKey, pageId);
+        } finally {
+            if (executionContext != null) {
+                this.execution.removeContext();
+            }
+        }
+    }
+
+    private Map<Long, ConvertedBody> convertBodies(String spaceKey, long pageId) throws FilterException
+    {
+        if (this.context instanceof DefaultConfluenceInputContext) {
+            DefaultConfluenceInputContext inputContext = (DefaultConfluenceInputContext) this.context;
+            inputContext.set(this.confluencePackage, this.properties);
+            inputContext.setCurrentSpace(spaceKey);
+            inputContext.setCurrentPage(pageId);
+        }
+
+        try {
+            Map<Long, ConvertedBody> bodies = new HashMap<>();
+            ConfluenceProperties pageProperties = getPageProperties(pageId);
+            if (pageProperties != null) {
+                if (this.properties.isHistoryEnabled()
+                    && pageProperties.containsKey(ConfluenceXMLPackage.KEY_PAGE_REVISIONS)) {
+                    for (Long revisionId
+                        : this.confluencePackage.getLongList(pageProperties, ConfluenceXMLPackage.KEY_PAGE_REVISIONS)) {
+                        ConfluenceProperties revisionProperties = getPageProperties(revisionId);
+                        if (revisionProperties != null) {
+                            convertBodyAhead(revisionProperties, bodies);
+                        }
+                    }
+                }
+                convertBodyAhead(pageProperties, bodies);
+            }
+
+            return bodies;
+        } finally {
+            if (this.context instanceof DefaultConfluenceInputContext) {
+                ((DefaultConfluenceInputContext) this.context).remove();
+            }
+        }
+    }
+
+    private void convertBodyAhead(ConfluenceProperties pageProperties, Map<Long, ConvertedBody> bodies)
+    {
+        Long id = pageProperties.getLong("id", null);
+        if (id != null && this.confluencePackage.hasBody(pageProperties)) {
+            int bodyType = pageProperties.getInt(ConfluenceXMLPackage.KEY_PAGE_BODY_TYPE, 0);
+            Map<String, Integer> macroIds = new HashMap<>();
+            try (Reader body = this.confluencePackage.getBodyReader(pageProperties)) {
+                bodies.put(id, new ConvertedBody(convertToXWiki21(body, bodyType, macroIds), macroIds));
+            } catch (Exception e) {
+                // The body is converted again when sending the page, which reports the error
+                this.logger.debug("Failed to convert the body of the page [{}] ahead", id, e);
+            }
+        }
+    }
+
     private String convertToXWiki21(String bodyContent, int bodyType) throws FilterException, ParseException
+    {
+        return convertToXWiki21(new StringReader(bodyContent), bodyType, this.macrosIds);
+    }
+
+    private String convertToXWiki21(Reader bodyContent, int bodyType, Map<String, Integer> macroIds)
+        throws FilterException, ParseException
     {
         DefaultWikiPrinter printer = new DefaultWikiPrinter();
         PrintRenderer renderer = this.xwiki21Factory.createRenderer(printer);
 
-        parse(bodyContent, bodyType, Syntax.XWIKI_2_1, renderer);
+        parse(bodyContent, bodyType, Syntax.XWIKI_2_1, renderer, macroIds);
 
         return printer.toString();
     }
 
-    private ConfluenceConverterListener createConverter(Listener listener)
+    private String getBody(ConfluenceProperties pageProperties)
+    {
+        try {
+            return this.confluencePackage.getBody(pageProperties);
+        } catch (IOException e) {
+            this.logger.error("Failed to read the body of the page with id [{}]",
+                createPageIdentifier(pageProperties), e);
+
+            return null;
+        }
+    }
+
+    private ConfluenceConverterListener createConverter(Listener listener, Map<String, Integer> macroIds)
     {
         ConfluenceConverterListener converterListener = this.converterProvider.get();
         converterListener.setWrappedListener(listener);
-        converterListener.setMacroIds(macrosIds);
+        converterListener.setMacroIds(macroIds);
 
         return converterListener;
     }
 
-    private Listener wrap(Listener listener)
+    private Listener wrap(Listener listener, Map<String, Integer> macroIds)
     {
         if (this.properties.isConvertToXWiki()) {
-            return createConverter(listener);
+            return createConverter(listener, macroIds);
         }
 
         return listener;
     }
 
-    private void parse(String bodyContent, int bodyType, Syntax macroContentSyntax, Listener listener)
-        throws FilterException, ParseException
+    private void parse(Reader bodyContent, int bodyType, Syntax macroContentSyntax, Listener listener,
+        Map<String, Integer> macroIds) throws FilterException, ParseException
     {
         switch (bodyType) {
             case 0:
-                this.confluenceWIKIParser.parse(new StringReader(bodyContent), wrap(listener));
+                this.confluenceWIKIParser.parse(bodyContent, wrap(listener, macroIds));
                 break;
             case 2:
-                createSyntaxFilter(bodyContent, macroContentSyntax).read(listener);
+                createSyntaxFilter(bodyContent, macroContentSyntax, macroIds).read(listener);
                 break;
             default:
                 break;
         }
     }
 
-    private BeanInputFilterStream<ConfluenceXHTMLInputProperties> createSyntaxFilter(String bodyContent,
-        Syntax macroContentSyntax) throws FilterException
+    private BeanInputFilterStream<ConfluenceXHTMLInputProperties> createSyntaxFilter(Reader bodyContent,
+        Syntax macroContentSyntax, Map<String, Integer> macroIds) throws FilterException
     {
         InternalConfluenceXHTMLInputProperties filterProperties = new InternalConfluenceXHTMLInputProperties();
-        filterProperties.setSource(new StringInputSource(bodyContent));
+        filterProperties.setSource(new DefaultReaderInputSource(bodyContent));
         filterProperties.setMacroContentSyntax(macroContentSyntax);
         filterProperties.setReferenceConverter(confluenceConverter);
         filterProperties.setMacroSupport(macroSupport);
 
         if (this.properties.isConvertToXWiki()) {
-            filterProperties.setConverter(createConverter(null));
+            filterProperties.setConverter(createConverter(null, macroIds));
         }
 
         BeanInputFilterStreamFactory<ConfluenceXHTMLInputProperties> syntaxFilterFactory =
@@ -2024,9 +2586,9 @@ public class ConfluenceInputFilterStream
 
         Long originalRevisionId =
             this.confluencePackage.getAttachmentOriginalVersionId(attachmentProperties, attachmentId);
-        File contentFile;
+        ConfluenceAttachmentContent content;
         try {
-            contentFile = this.confluencePackage.getAttachmentFile(pageId, originalRevisionId, version);
+            content = this.confluencePackage.getAttachmentContent(pageId, originalRevisionId, version);
         } catch (FileNotFoundException e) {
             this.logger.warn("Failed to find file corresponding to version [{}] attachment [{}] in page [{}]",
                 version, attachmentName, createPageIdentifier(pageProperties));
@@ -2037,6 +2599,9 @@ public class ConfluenceInputFilterStream
         if (mediaType != null) {
             attachmentParameters.put(WikiAttachmentFilter.PARAMETER_CONTENT_TYPE, mediaType);
         }
+        if (content.getDigest() != null) {
+            attachmentParameters.put(ConfluenceFilter.PARAMETER_ATTACHMENT_DIGEST, content.getDigest());
+        }
         if (attachmentProperties.containsKey(ConfluenceXMLPackage.KEY_ATTACHMENT_CREATION_AUTHOR)) {
             addAttachmentCreator(
                 attachmentProperties.getString(ConfluenceXMLPackage.KEY_ATTACHMENT_CREATION_AUTHOR),
@@ -2089,9 +2654,10 @@ public class ConfluenceInputFilterStream
 
         // WikiAttachment
 
-        try (FileInputStream fis = new FileInputStream(contentFile)) {
-            proxyFilter.onWikiAttachment(attachmentName, fis,
-                attachmentSize != -1 ? attachmentSize : contentFile.length(), attachmentParameters);
+        // Let the filters receiving the attachment copy the content efficiently when it's stored in a file
+        try (InputStream stream = new ConfluenceAttachmentInputStream(content)) {
+            proxyFilter.onWikiAttachment(attachmentName, stream,
+                attachmentSize != -1 ? attachmentSize : content.getSize(), attachmentParameters);
         } catch (Exception e) {
             this.logger.error("Failed to read attachment [{}] for the page [{}].", attachmentId,
                 createPageIdentifier(pageProperties), e);
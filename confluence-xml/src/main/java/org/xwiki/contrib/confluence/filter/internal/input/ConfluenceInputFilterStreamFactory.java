@@ -19,14 +19,41 @@
  */
 package org.xwiki.contrib.confluence.filter.internal.input;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.contrib.confluence.filter.event.ConfluenceFilteredEvent;
+import org.xwiki.contrib.confluence.filter.event.ConfluenceFilteringEvent;
 import org.xwiki.contrib.confluence.filter.input.ConfluenceInputProperties;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceXMLPackage;
 import org.xwiki.contrib.confluence.filter.internal.ConfluenceFilter;
+import org.xwiki.filter.FilterException;
 import org.xwiki.filter.input.AbstractBeanInputFilterStreamFactory;
 import org.xwiki.filter.type.FilterStreamType;
+import org.xwiki.job.event.status.JobProgressManager;
+import org.xwiki.observation.ObservationManager;
 
 /**
  * A generic xml output filter implementation. This class can be used as a test bench to validate various XMLInputStream
@@ -46,6 +73,26 @@ public class ConfluenceInputFilterStreamFactory
      */
     public static final String ROLEHINT = "confluence+xml";
 
+    private static final String FAILED_TO_READ_PACKAGE = "Failed to read package";
+
+    @Inject
+    private Provider<ConfluenceXMLPackage> packageProvider;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private JobProgressManager progress;
+
     /**
      * The default constructor.
      */
@@ -56,4 +103,173 @@ public class ConfluenceInputFilterStreamFactory
         setName("Confluence XML input stream");
         setDescription("Generates wiki events from Confluence XML package.");
     }
+
+    /**
+     * Send several spaces of a Confluence package concurrently, each one to its own filter, like one output per space.
+     * <p>
+     * The package is read, or restored from the working directory, only once and shared by all the spaces. Each space
+     * is sent by its own filter stream on its own thread, with a copy of the properties and of the current execution
+     * context. Users and groups are not sent. The object id ranges are not supported and the maximum page count applies
+     * to each space. The {@link ConfluenceFilteringEvent} and {@link ConfluenceFilteredEvent} are notified once, with
+     * this factory as source, and the progress is reported by space.
+     *
+     * @param properties the properties of the package to read, used to send all the spaces
+     * @param filters the filter receiving the events of each space, by space key
+     * @param threads the maximum number of spaces to send at the same time, 0 or less to use the number of available
+     *     processors
+     * @throws FilterException when failing to read the package or to send one of the spaces
+     * @since 9.57.0
+     */
+    public void readSpaces(ConfluenceInputProperties properties, Map<String, Object> filters, int threads)
+        throws FilterException
+    {
+        if (properties.getObjectIdRanges() != null) {
+            throw new FilterException("Object id ranges are not supported when sending several spaces concurrently");
+        }
+
+        ConfluenceXMLPackage confluencePackage = this.packageProvider.get();
+        try {
+            confluencePackage.setInputProperties(properties);
+            String wd = properties.getWorkingDirectory();
+            if (StringUtils.isEmpty(wd) || properties.isIncrementalIndexing() || !confluencePackage.restoreState(wd)) {
+                confluencePackage.read(properties.getSource(), wd);
+            }
+            ConfluenceInputFilterStream.prepareSending(confluencePackage, properties);
+
+            ConfluenceFilteringEvent filteringEvent = new ConfluenceFilteringEvent();
+            this.observationManager.notify(filteringEvent, this, confluencePackage);
+            if (!filteringEvent.isCanceled()) {
+                try {
+                    readSpaces(confluencePackage, properties, filters, threads, filteringEvent.getDisabledSpaces());
+                } finally {
+                    this.observationManager.notify(new ConfluenceFilteredEvent(), this, confluencePackage);
+                }
+            }
+        } catch (FilterException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new FilterException(FAILED_TO_READ_PACKAGE, e);
+        } finally {
+            ConfluenceInputFilterStream.closeConfluencePackage(confluencePackage, properties);
+            try {
+                properties.getSource().close();
+            } catch (IOException e) {
+                throw new FilterException("Failed to close the source", e);
+            }
+        }
+    }
+
+    private void readSpaces(ConfluenceXMLPackage confluencePackage, ConfluenceInputProperties properties,
+        Map<String, Object> filters, int threads, Collection<Long> disabledSpaces) throws FilterException
+    {
+        Map<String, Long> spaces = confluencePackage.getSpacesByKey();
+        Map<String, Object> sentFilters = new LinkedHashMap<>(filters);
+        sentFilters.keySet().removeIf(spaceKey -> disabledSpaces.contains(spaces.get(spaceKey)));
+
+        int spaceThreads = Math.min(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+            Math.max(sentFilters.size(), 1));
+        int prefetchedPages = properties.getPrefetchedPages();
+        if (prefetchedPages > 0) {
+            confluencePackage.setPrefetchCapacity(
+                spaceThreads * prefetchedPages * ConfluenceInputFilterStream.PREFETCHED_OBJECTS_PER_PAGE);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(spaceThreads,
+            new BasicThreadFactory.Builder().namingPattern("Confluence space sending %d").daemon(true).build());
+
+        this.progress.pushLevelProgress(sentFilters.size(), this);
+        try {
+            ExecutionContext context = this.execution.getContext();
+            List<Future<Boolean>> results = new ArrayList<>(sentFilters.size());
+            for (Map.Entry<String, Object> entry : sentFilters.entrySet()) {
+                // Each stream gets its own properties since it keeps some state in them
+                ConfluenceInputProperties spaceProperties = copy(properties);
+                results.add(executor.submit(
+                    () -> readSpace(confluencePackage, spaceProperties, entry.getKey(), entry.getValue(), context)));
+            }
+
+            // Let the other spaces be sent when one of them fails
+            FilterException error = null;
+            boolean complete = true;
+            for (Future<Boolean> result : results) {
+                this.progress.startStep(this);
+                try {
+                    complete &= result.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = new FilterException("Failed to send a space", e.getCause());
+                    }
+                } finally {
+                    this.progress.endStep(this);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+
+            if (complete && sentFilters.keySet().containsAll(spaces.keySet())) {
+                saveFingerprints(confluencePackage);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException("Interrupted while sending the spaces", e);
+        } finally {
+            executor.shutdownNow();
+            this.progress.popLevelProgress(this);
+            confluencePackage.setPrefetchCapacity(0);
+        }
+    }
+
+    private void saveFingerprints(ConfluenceXMLPackage confluencePackage)
+    {
+        try {
+            confluencePackage.saveFingerprints();
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the fingerprints of the export, the next incremental indexing will be "
+                + "compared with the same previous export", e);
+        }
+    }
+
+    private static ConfluenceInputProperties copy(ConfluenceInputProperties properties) throws FilterException
+    {
+        try {
+            ConfluenceInputProperties copy = properties.getClass().getDeclaredConstructor().newInstance();
+            for (Class<?> type = properties.getClass(); type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        field.set(copy, field.get(properties));
+                    }
+                }
+            }
+
+            return copy;
+        } catch (ReflectiveOperationException e) {
+            throw new FilterException("Failed to copy the input properties", e);
+        }
+    }
+
+    /**
+     * @return true if all the pages of the space were sent without error
+     */
+    private boolean readSpace(ConfluenceXMLPackage confluencePackage, ConfluenceInputProperties properties,
+        String spaceKey, Object filter, ExecutionContext context) throws Exception
+    {
+        // Components used by the filters rely on the execution context of their thread
+        if (context != null) {
+            this.execution.setContext(this.executionContextManager.clone(context));
+        }
+
+        try (ConfluenceInputFilterStream stream =
+            (ConfluenceInputFilterStream) createInputFilterStream(properties)) {
+            stream.setSharedPackage(confluencePackage, spaceKey);
+            stream.read(filter);
+
+            return stream.isSendComplete();
+        } finally {
+            if (context != null) {
+                this.execution.removeContext();
+            }
+        }
+    }
 }
@@ -0,0 +1,241 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.input;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Compute values for the pages which are about to be sent, on a pool of threads, following the order in which the
+ * pages are traversed: each page is followed by its children, recursively, then by its next sibling.
+ * <p>
+ * The values are computed a few pages ahead of the page being sent and taken in the same order, so that only a bounded
+ * number of them is kept in memory. Values which are not taken before a page coming after them are discarded, which
+ * happens when the sending of a page and its children is skipped.
+ *
+ * @param <V> the type of the computed values
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class PageLookahead<V> implements AutoCloseable
+{
+    /**
+     * Provide what the lookahead needs to know about the pages.
+     *
+     * @param <V> the type of the computed values
+     * @version $Id$
+     */
+    public interface Pages<V>
+    {
+        /**
+         * @param pageId the id of the page
+         * @return true if the page, and thus its children, will be traversed
+         */
+        boolean isTraversed(long pageId);
+
+        /**
+         * @param pageId the id of a page which is traversed
+         * @return true if a value should be computed for the page, false if only its children are sent
+         */
+        boolean isComputed(long pageId);
+
+        /**
+         * @param pageId the id of the page
+         * @return the children of the page
+         */
+        Collection<Long> getChildren(long pageId);
+
+        /**
+         * Called from one of the threads of the lookahead.
+         *
+         * @param spaceKey the key of the space containing the page
+         * @param pageId the id of the page
+         * @param blog true if the page is a blog post
+         * @return the value computed for the page
+         * @throws Exception when failing to compute the value
+         */
+        V compute(String spaceKey, long pageId, boolean blog) throws Exception;
+
+        /**
+         * Called when the value of a page failed to be computed, before it is taken.
+         *
+         * @param pageId the id of the page
+         * @param cause the error thrown when computing the value
+         */
+        void failed(long pageId, Throwable cause);
+    }
+
+    private static final class Level
+    {
+        private final String spaceKey;
+
+        private final Iterator<Long> pages;
+
+        private final boolean blog;
+
+        private Level(String spaceKey, Iterator<Long> pages, boolean blog)
+        {
+            this.spaceKey = spaceKey;
+            this.pages = pages;
+            this.blog = blog;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    private final int capacity;
+
+    private final Pages<V> pages;
+
+    // The traversal ahead of the page being sent, the deepest level first
+    private final Deque<Level> levels = new ArrayDeque<>();
+
+    // The values being computed, in traversal order
+    private final Map<Long, Future<V>> values = new LinkedHashMap<>();
+
+    /**
+     * @param name the prefix of the name of the threads
+     * @param threads the number of threads
+     * @param pages what the lookahead needs to know about the pages
+     */
+    public PageLookahead(String name, int threads, Pages<V> pages)
+    {
+        // Keep all the threads busy while a value is being taken, but not much more to not keep too much in memory
+        this(name, threads, threads * 2, pages);
+    }
+
+    /**
+     * @param name the prefix of the name of the threads
+     * @param threads the number of threads
+     * @param capacity the maximum number of pages ahead of the page being sent
+     * @param pages what the lookahead needs to know about the pages
+     */
+    public PageLookahead(String name, int threads, int capacity, Pages<V> pages)
+    {
+        this.executor = Executors.newFixedThreadPool(threads,
+            new BasicThreadFactory.Builder().namingPattern(name + " %d").daemon(true).build());
+        this.capacity = capacity;
+        this.pages = pages;
+    }
+
+    /**
+     * Append pages to the traversal. They will be reached after the pages which were added before, and their children.
+     *
+     * @param spaceKey the key of the space containing the pages
+     * @param pageIds the ids of the pages
+     * @param blog true if the pages are blog posts, which don't have children
+     */
+    public void add(String spaceKey, Collection<Long> pageIds, boolean blog)
+    {
+        if (!pageIds.isEmpty()) {
+            this.levels.addLast(new Level(spaceKey, pageIds.iterator(), blog));
+        }
+    }
+
+    /**
+     * Wait for the value of a page, and start computing the ones of the next pages.
+     *
+     * @param pageId the id of the page being sent
+     * @return the value computed for the page, or null if it was not computed ahead or its computation failed
+     * @throws InterruptedException when interrupted while waiting for the value
+     */
+    public V take(long pageId) throws InterruptedException
+    {
+        fill();
+
+        Future<V> value = null;
+        if (this.values.containsKey(pageId)) {
+            // The values of the pages before this one won't be taken anymore
+            for (Iterator<Map.Entry<Long, Future<V>>> it = this.values.entrySet().iterator(); value == null;) {
+                Map.Entry<Long, Future<V>> entry = it.next();
+                it.remove();
+                if (entry.getKey() == pageId) {
+                    value = entry.getValue();
+                } else {
+                    entry.getValue().cancel(true);
+                }
+            }
+        }
+
+        fill();
+
+        if (value != null) {
+            try {
+                return value.get();
+            } catch (ExecutionException e) {
+                // The caller computes the value again and reports the error itself
+                this.pages.failed(pageId, e.getCause());
+            }
+        }
+
+        return null;
+    }
+
+    private void fill()
+    {
+        while (this.values.size() < this.capacity && !this.levels.isEmpty()) {
+            Level level = this.levels.peekFirst();
+            if (level.pages.hasNext()) {
+                Long pageId = level.pages.next();
+                if (pageId != null && !this.values.containsKey(pageId) && this.pages.isTraversed(pageId)) {
+                    if (this.pages.isComputed(pageId)) {
+                        this.values.put(pageId,
+                            this.executor.submit(() -> this.pages.compute(level.spaceKey, pageId, level.blog)));
+                    }
+                    if (!level.blog) {
+                        Collection<Long> children = this.pages.getChildren(pageId);
+                        if (!children.isEmpty()) {
+                            this.levels.addFirst(new Level(level.spaceKey, children.iterator(), false));
+                        }
+                    }
+                }
+            } else {
+                this.levels.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Forget the pages ahead and the values which were not taken.
+     */
+    public void clear()
+    {
+        this.levels.clear();
+        this.values.values().forEach(value -> value.cancel(true));
+        this.values.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        clear();
+        this.executor.shutdownNow();
+    }
+}
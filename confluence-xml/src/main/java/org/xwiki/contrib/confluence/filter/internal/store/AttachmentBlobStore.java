@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed store of the attachment files of a package, keeping each distinct content once.
+ * <p>
+ * Each attachment file is identified by its path in the package and by the digest of its content. When the store
+ * owns a folder, the first file found with a given content is moved to this folder and the other files with the same
+ * content are deleted. Otherwise, the files are left untouched and the first one found is used for all the paths with
+ * the same content, so no disk space is reclaimed. The contents which are not in a file, like zip entries, are only
+ * digested.
+ * <p>
+ * Files can be added concurrently, and are only complete once all of them are added.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class AttachmentBlobStore
+{
+    /**
+     * The algorithm used to compute the digest of the attachment contents.
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File folder;
+
+    // The digest of the content of each path
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+    // The file holding each distinct content
+    private final Map<String, File> blobs = new ConcurrentHashMap<>();
+
+    // The distinct contents which are not stored in a file
+    private final Set<String> streamContents = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private final AtomicLong duplicateSize = new AtomicLong();
+
+    /**
+     * @param folder the folder where to move the distinct contents, or null to leave the files where they are
+     */
+    public AttachmentBlobStore(File folder)
+    {
+        this.folder = folder;
+    }
+
+    /**
+     * Add an attachment file to the store. When the store has a folder, the file is moved or deleted.
+     *
+     * @param path the path of the attachment in the package
+     * @param file the file containing the attachment content
+     * @return the digest of the content
+     * @throws IOException when failing to read or move the file
+     */
+    public String add(String path, File file) throws IOException
+    {
+        String digest;
+        try (InputStream stream = new FileInputStream(file)) {
+            digest = digest(stream);
+        }
+
+        // Claim the content before moving the file, so that the map is not locked while touching the disk
+        File blob = getBlob(digest, file);
+        if (this.blobs.putIfAbsent(digest, blob) == null) {
+            this.digests.put(path, digest);
+            store(digest, file, blob);
+        } else {
+            this.duplicates.incrementAndGet();
+            this.duplicateSize.addAndGet(file.length());
+            this.digests.put(path, digest);
+            if (this.folder != null) {
+                Files.delete(file.toPath());
+            }
+        }
+
+        return digest;
+    }
+
+    /**
+     * Remember the digest of an attachment content which is not stored in a file, like a zip entry.
+     *
+     * @param path the path of the attachment in the package
+     * @param stream the attachment content
+     * @param size the size of the attachment content
+     * @return the digest of the content
+     * @throws IOException when failing to read the content
+     */
+    public String add(String path, InputStream stream, long size) throws IOException
+    {
+        String digest = digest(stream);
+        if (!this.streamContents.add(digest)) {
+            this.duplicates.incrementAndGet();
+            this.duplicateSize.addAndGet(size);
+        }
+        this.digests.put(path, digest);
+
+        return digest;
+    }
+
+    /**
+     * @param path the path of the attachment in the package
+     * @return the digest of the content of the attachment, or null if it was not added to the store
+     */
+    public String getDigest(String path)
+    {
+        return this.digests.get(path);
+    }
+
+    /**
+     * @param path the path of the attachment in the package
+     * @return the file containing the attachment content, or null if it's not stored in a file
+     */
+    public File getFile(String path)
+    {
+        String digest = this.digests.get(path);
+
+        return digest != null ? this.blobs.get(digest) : null;
+    }
+
+    /**
+     * @return the number of attachments added to the store
+     */
+    public int getCount()
+    {
+        return this.digests.size();
+    }
+
+    /**
+     * @return the number of attachments which have the same content as another attachment
+     */
+    public long getDuplicates()
+    {
+        return this.duplicates.get();
+    }
+
+    /**
+     * @return the total size of the attachments which have the same content as another attachment, in bytes
+     */
+    public long getDuplicateSize()
+    {
+        return this.duplicateSize.get();
+    }
+
+    /**
+     * @param stream the content to digest
+     * @return the hexadecimal {@value #DIGEST_ALGORITHM} digest of the content
+     * @throws IOException when failing to read the content
+     */
+    public static String digest(InputStream stream) throws IOException
+    {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Failed to create the attachment digest", e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int read = stream.read(buffer); read != -1; read = stream.read(buffer)) {
+            messageDigest.update(buffer, 0, read);
+        }
+
+        byte[] digest = messageDigest.digest();
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    private File getBlob(String digest, File file)
+    {
+        if (this.folder == null) {
+            return file;
+        }
+
+        // Spread the contents in sub folders to avoid huge folders
+        return new File(new File(this.folder, digest.substring(0, 2)), digest);
+    }
+
+    private void store(String digest, File file, File blob) throws IOException
+    {
+        if (blob.equals(file)) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(blob.getParentFile().toPath());
+            Files.move(file.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // The duplicates may already be deleted, keep the content where it is
+            this.blobs.put(digest, file);
+
+            throw e;
+        }
+    }
+}
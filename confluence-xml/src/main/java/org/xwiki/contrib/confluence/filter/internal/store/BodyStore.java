@@ -0,0 +1,252 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only store of the bodies of the pages, blog posts and comments of a package, kept out of their properties.
+ * <p>
+ * Each body is compressed and appended to a single data file, and is identified by the offset of its record. The
+ * compression used for each body is written in its record, so that bodies compressed differently can be read from
+ * the same file.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class BodyStore implements Closeable
+{
+    /**
+     * The name of the file containing the body records.
+     */
+    public static final String DATA_FILENAME = "bodies.log";
+
+    /**
+     * Compress the bodies with Deflate.
+     */
+    public static final String COMPRESSION_DEFLATE = "DEFLATE";
+
+    /**
+     * Don't compress the bodies.
+     */
+    public static final String COMPRESSION_NONE = "NONE";
+
+    private static final byte CODEC_NONE = 0;
+
+    private static final byte CODEC_DEFLATE = 1;
+
+    private static final int HEADER_SIZE = Byte.BYTES + Integer.BYTES;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File dataFile;
+
+    private final byte codec;
+
+    private FileChannel reader;
+
+    private DataOutputStream writer;
+
+    private long writePosition;
+
+    private volatile long flushedPosition;
+
+    /**
+     * Open the store located in the given folder, creating it if needed.
+     *
+     * @param folder the folder containing the store file
+     * @param compression the compression of the new bodies, {@link #COMPRESSION_DEFLATE} or
+     *     {@link #COMPRESSION_NONE}
+     * @throws IOException when failing to open the store
+     */
+    public BodyStore(File folder, String compression) throws IOException
+    {
+        folder.mkdirs();
+        this.dataFile = new File(folder, DATA_FILENAME);
+        this.codec = getCodec(compression);
+
+        // A partially written last record is not referenced by any object, so just write after it
+        this.writer =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.dataFile, true), BUFFER_SIZE));
+        this.writePosition = this.dataFile.length();
+        this.flushedPosition = this.writePosition;
+        this.reader = FileChannel.open(this.dataFile.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Delete the file of the store located in the given folder, leaving the other files of the folder untouched.
+     *
+     * @param folder the folder containing the store file
+     * @throws IOException when failing to delete the file
+     */
+    public static void delete(File folder) throws IOException
+    {
+        Files.deleteIfExists(new File(folder, DATA_FILENAME).toPath());
+    }
+
+    /**
+     * @param body the body to store
+     * @return the reference of the body in the store
+     * @throws IOException when failing to write the body
+     */
+    public long append(String body) throws IOException
+    {
+        // There is nothing to compress in empty bodies
+        byte recordCodec = body.isEmpty() ? CODEC_NONE : this.codec;
+
+        // Compress before taking the lock so that several bodies can be compressed at the same time
+        byte[] content = compress(recordCodec, body.getBytes(StandardCharsets.UTF_8));
+
+        synchronized (this) {
+            long offset = this.writePosition;
+
+            this.writer.writeByte(recordCodec);
+            this.writer.writeInt(content.length);
+            this.writer.write(content);
+            this.writePosition += HEADER_SIZE + content.length;
+
+            return offset;
+        }
+    }
+
+    /**
+     * The body is decompressed while it's being read.
+     *
+     * @param reference the reference of the body in the store
+     * @return the body
+     * @throws IOException when failing to read the body
+     */
+    public Reader open(long reference) throws IOException
+    {
+        if (reference >= this.flushedPosition) {
+            flush();
+        }
+
+        ByteBuffer header = read(reference, HEADER_SIZE);
+        byte recordCodec = header.get(0);
+        int size = header.getInt(1);
+        if (size < 0) {
+            throw new IOException("Invalid body reference [" + reference + "]");
+        }
+
+        InputStream content = new ByteArrayInputStream(read(reference + HEADER_SIZE, size).array());
+
+        return new InputStreamReader(decompress(recordCodec, content), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Make sure everything written so far can be read, including after the store is reopened.
+     *
+     * @throws IOException when failing to flush the store
+     */
+    public synchronized void flush() throws IOException
+    {
+        this.writer.flush();
+        this.flushedPosition = this.writePosition;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.writer == null) {
+            return;
+        }
+
+        try {
+            this.writer.close();
+        } finally {
+            this.reader.close();
+            this.writer = null;
+            this.reader = null;
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        // Positional reads don't change the position of the channel and can be done from several threads
+        while (buffer.hasRemaining()) {
+            if (this.reader.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated body at [" + position + "]");
+            }
+        }
+
+        return buffer;
+    }
+
+    private static byte[] compress(byte recordCodec, byte[] body) throws IOException
+    {
+        if (recordCodec == CODEC_NONE) {
+            return body;
+        }
+
+        // Markup compresses well even at the fastest level
+        ByteArrayOutputStream content = new ByteArrayOutputStream(body.length / 4 + 16);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(content, deflater)) {
+            out.write(body);
+        } finally {
+            deflater.end();
+        }
+
+        return content.toByteArray();
+    }
+
+    private static InputStream decompress(byte recordCodec, InputStream content) throws IOException
+    {
+        switch (recordCodec) {
+            case CODEC_NONE:
+                return content;
+            case CODEC_DEFLATE:
+                return new InflaterInputStream(content);
+            default:
+                throw new IOException("Unknown body compression [" + recordCodec + "]");
+        }
+    }
+
+    private static byte getCodec(String compression)
+    {
+        if (COMPRESSION_NONE.equalsIgnoreCase(compression)) {
+            return CODEC_NONE;
+        }
+
+        return CODEC_DEFLATE;
+    }
+}
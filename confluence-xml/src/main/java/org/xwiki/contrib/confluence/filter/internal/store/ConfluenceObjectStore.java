@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+
+/**
+ * Storage of the properties of the objects indexed from a Confluence package.
+ * <p>
+ * Objects are identified by a slash separated path (like {@code pages/42/attachments/43}) mirroring the historical
+ * folder layout of the working directory, so that objects can be listed by parent path.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public interface ConfluenceObjectStore extends Closeable
+{
+    /**
+     * @param path the path of the object
+     * @param create true if new empty properties should be returned when the object does not exist
+     * @return the properties of the object, or null if it does not exist and create is false
+     * @throws ConfigurationException when failing to read the properties
+     */
+    ConfluenceProperties get(String path, boolean create) throws ConfigurationException;
+
+    /**
+     * @param path the path of the object
+     * @param properties the properties to store
+     * @throws IOException when failing to write the properties
+     * @throws ConfigurationException when failing to serialize the properties
+     */
+    void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException;
+
+    /**
+     * @param path the path of the parent folder
+     * @return the names of the direct children of the folder, in no particular order
+     */
+    Collection<String> list(String path);
+
+    /**
+     * Make sure everything written so far can be restored later.
+     *
+     * @throws IOException when failing to flush the store
+     */
+    void flush() throws IOException;
+}
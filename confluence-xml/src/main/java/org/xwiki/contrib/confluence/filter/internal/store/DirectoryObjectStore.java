@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+
+/**
+ * Store each object in its own {@code properties.properties} file, in a folder named after its path.
+ * <p>
+ * This is the historical layout of the working directory. It creates one file per object in huge folders, which makes
+ * indexing large packages bound by the file system. It's only kept to restore working directories created with this
+ * layout, see {@link ShardedObjectStore} for its replacement.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class DirectoryObjectStore implements ConfluenceObjectStore
+{
+    private static final String PROPERTIES_FILENAME = "properties.properties";
+
+    private final File root;
+
+    /**
+     * @param root the folder in which to store the objects
+     */
+    public DirectoryObjectStore(File root)
+    {
+        this.root = root;
+    }
+
+    @Override
+    public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+    {
+        File file = getFile(path);
+
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                return ConfluenceProperties.create(this, path, in);
+            } catch (IOException e) {
+                throw new ConfigurationException("Failed to read the properties file [" + file + "]", e);
+            }
+        }
+
+        return create ? ConfluenceProperties.create(this, path, null) : null;
+    }
+
+    @Override
+    public void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException
+    {
+        File file = getFile(path);
+        file.getParentFile().mkdirs();
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.write(out);
+        }
+    }
+
+    private File getFile(String path)
+    {
+        return new File(new File(this.root, path), PROPERTIES_FILENAME);
+    }
+
+    @Override
+    public Collection<String> list(String path)
+    {
+        String[] children = new File(this.root, path).list((dir, name) -> new File(dir, name).isDirectory());
+
+        return children == null ? Collections.emptyList() : Arrays.asList(children);
+    }
+
+    @Override
+    public void flush()
+    {
+        // Everything is written right away
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing to close
+    }
+}
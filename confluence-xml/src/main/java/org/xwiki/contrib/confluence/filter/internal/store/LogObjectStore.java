@@ -0,0 +1,347 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+
+/**
+ * Append-only store keeping all the objects in a single data file, with an index mapping each object path to the
+ * offset of its latest version.
+ * <p>
+ * Saving an object appends a new record to the data file, so that indexing a package only creates a couple of files
+ * whatever the number of objects. The index is written when the store is flushed or closed. If it's missing or
+ * outdated, it's rebuilt by scanning the records which were appended after it was written.
+ * <p>
+ * Objects which were already written to the data file are read without blocking the other readers.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class LogObjectStore implements ConfluenceObjectStore
+{
+    /**
+     * The name of the file containing the object records.
+     */
+    public static final String DATA_FILENAME = "objects.log";
+
+    /**
+     * The name of the file containing the offset of each object in the data file.
+     */
+    public static final String INDEX_FILENAME = "objects.index";
+
+    private static final String INDEX_TMP_FILENAME = INDEX_FILENAME + ".tmp";
+
+    /**
+     * The identifier of the layout of this store, to be able to recognize it when restoring a working directory.
+     */
+    public static final String LAYOUT = "log/1";
+
+    private static final int INDEX_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File dataFile;
+
+    private final File indexFile;
+
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+
+    private final PathIndex paths = new PathIndex();
+
+    private RandomAccessFile reader;
+
+    private FileChannel channel;
+
+    private DataOutputStream writer;
+
+    private long writePosition;
+
+    // The records before this position can be read from the data file
+    private volatile long flushedPosition;
+
+    /**
+     * Open the store located in the given folder, creating it if needed.
+     *
+     * @param folder the folder containing the store files
+     * @throws IOException when failing to open the store
+     */
+    public LogObjectStore(File folder) throws IOException
+    {
+        folder.mkdirs();
+        this.dataFile = new File(folder, DATA_FILENAME);
+        this.indexFile = new File(folder, INDEX_FILENAME);
+
+        long indexedPosition = readIndex();
+        this.writePosition = scan(indexedPosition);
+        this.flushedPosition = this.writePosition;
+
+        this.reader = new RandomAccessFile(this.dataFile, "rw");
+        if (this.reader.length() > this.writePosition) {
+            // Drop a partially written record
+            this.reader.setLength(this.writePosition);
+        }
+        this.channel = this.reader.getChannel();
+        this.writer =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.dataFile, true), BUFFER_SIZE));
+    }
+
+    /**
+     * @param folder the folder to check
+     * @return true if the folder contains a store
+     */
+    public static boolean exists(File folder)
+    {
+        return new File(folder, DATA_FILENAME).exists();
+    }
+
+    /**
+     * Delete the files of the store located in the given folder, leaving the other files of the folder untouched.
+     *
+     * @param folder the folder containing the store
+     * @throws IOException when failing to delete the files
+     */
+    public static void delete(File folder) throws IOException
+    {
+        Files.deleteIfExists(new File(folder, DATA_FILENAME).toPath());
+        Files.deleteIfExists(new File(folder, INDEX_FILENAME).toPath());
+        Files.deleteIfExists(new File(folder, INDEX_TMP_FILENAME).toPath());
+    }
+
+    @Override
+    public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+    {
+        byte[] content;
+        try {
+            content = read(path);
+        } catch (IOException e) {
+            throw new ConfigurationException("Failed to read the object [" + path + "]", e);
+        }
+
+        if (content == null) {
+            return create ? ConfluenceProperties.create(this, path, null) : null;
+        }
+
+        return ConfluenceProperties.create(this, path, new ByteArrayInputStream(content));
+    }
+
+    @Override
+    public void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        properties.write(content);
+
+        append(path, content.toByteArray());
+    }
+
+    @Override
+    public synchronized Collection<String> list(String path)
+    {
+        return this.paths.list(path);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        this.writer.flush();
+        this.flushedPosition = this.writePosition;
+
+        writeIndex();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.writer == null) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            this.writer.close();
+            this.reader.close();
+            this.writer = null;
+            this.reader = null;
+            this.channel = null;
+        }
+    }
+
+    private byte[] read(String path) throws IOException
+    {
+        Long offset = this.offsets.get(path);
+        if (offset == null) {
+            return null;
+        }
+
+        if (offset >= this.flushedPosition) {
+            synchronized (this) {
+                if (offset >= this.flushedPosition) {
+                    this.writer.flush();
+                    this.flushedPosition = this.writePosition;
+                }
+            }
+        }
+
+        // Positional reads don't move the position of the channel so they can run concurrently
+        ByteBuffer size = ByteBuffer.allocate(Integer.BYTES);
+        readFully(size, offset);
+        byte[] content = new byte[size.getInt(0)];
+        readFully(ByteBuffer.wrap(content), offset + Integer.BYTES);
+
+        return content;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of the data file at position " + position);
+            }
+        }
+    }
+
+    private synchronized void append(String path, byte[] content) throws IOException
+    {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        this.writer.writeInt(key.length);
+        this.writer.write(key);
+        this.writer.writeInt(content.length);
+        this.writer.write(content);
+
+        long offset = this.writePosition + Integer.BYTES + key.length;
+        this.writePosition = offset + Integer.BYTES + content.length;
+
+        register(path, offset);
+    }
+
+    private void register(String path, long offset)
+    {
+        if (this.offsets.put(path, offset) == null) {
+            this.paths.add(path);
+        }
+    }
+
+    private long readIndex()
+    {
+        if (!this.indexFile.exists()) {
+            return 0;
+        }
+
+        try (DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile), BUFFER_SIZE))) {
+            if (in.readInt() != INDEX_VERSION) {
+                return 0;
+            }
+
+            long indexedPosition = in.readLong();
+            if (indexedPosition > this.dataFile.length()) {
+                // The index does not match the data file
+                return 0;
+            }
+
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                register(in.readUTF(), in.readLong());
+            }
+
+            return indexedPosition;
+        } catch (IOException e) {
+            // Rebuild the index from the data file
+            this.offsets.clear();
+            this.paths.clear();
+
+            return 0;
+        }
+    }
+
+    private long scan(long from) throws IOException
+    {
+        long length = this.dataFile.length();
+        long position = from;
+        if (position >= length) {
+            return position;
+        }
+
+        try (FileInputStream fis = new FileInputStream(this.dataFile)) {
+            fis.getChannel().position(from);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+            while (position < length) {
+                int keySize = in.readInt();
+                if (keySize < 0 || position + Integer.BYTES + keySize > length) {
+                    break;
+                }
+                byte[] key = new byte[keySize];
+                in.readFully(key);
+                long offset = position + Integer.BYTES + key.length;
+                int size = in.readInt();
+                long end = offset + Integer.BYTES + size;
+                if (end > length) {
+                    break;
+                }
+                in.skipBytes(size);
+                register(new String(key, StandardCharsets.UTF_8), offset);
+                position = end;
+            }
+        } catch (EOFException e) {
+            // Reached the end of the last complete record
+        }
+
+        return position;
+    }
+
+    private void writeIndex() throws IOException
+    {
+        File tmp = new File(this.indexFile.getParentFile(), INDEX_TMP_FILENAME);
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(this.writePosition);
+            out.writeInt(this.offsets.size());
+            for (Map.Entry<String, Long> entry : this.offsets.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+
+        Files.move(tmp.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * Index of the folder containing each object of a store, by object identifier.
+ * <p>
+ * Identifiers are kept in an open addressing table of primitive longs and folders are shared between the objects they
+ * contain, so that the index stays compact even with millions of objects.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ObjectLocationIndex
+{
+    // Version 2 walks the folders depth first
+    private static final int VERSION = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private static final int NO_FOLDER = -1;
+
+    private final List<String> folders = new ArrayList<>();
+
+    private final Map<String, Integer> folderIndexes = new HashMap<>();
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    private int[] values = newValues(INITIAL_CAPACITY);
+
+    private int size;
+
+    /**
+     * Index all the objects of a store.
+     * <p>
+     * The folders are walked depth first and an identifier found in several folders is associated with the first one
+     * found, like a recursive search from the root would do. Only the folders of which the first child is an object are
+     * considered to contain objects.
+     *
+     * @param store the store to index
+     * @return the index of the objects of the store
+     */
+    public static ObjectLocationIndex create(ConfluenceObjectStore store)
+    {
+        ObjectLocationIndex index = new ObjectLocationIndex();
+
+        index.add(store, "");
+
+        return index;
+    }
+
+    private void add(ConfluenceObjectStore store, String folder)
+    {
+        Collection<String> children = store.list(folder);
+        if (children.isEmpty()) {
+            return;
+        }
+
+        if (Character.isDigit(children.iterator().next().charAt(0))) {
+            for (String child : children) {
+                Long id = toId(child);
+                if (id != null) {
+                    putIfAbsent(id, folder);
+                }
+            }
+        }
+
+        for (String child : children) {
+            add(store, folder.isEmpty() ? child : folder + '/' + child);
+        }
+    }
+
+    private static Long toId(String name)
+    {
+        if (NumberUtils.isDigits(name)) {
+            try {
+                long id = Long.parseLong(name);
+                // Only the canonical form of the identifier designates the object
+                if (Long.toString(id).equals(name)) {
+                    return id;
+                }
+            } catch (NumberFormatException e) {
+                // Not an identifier
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param file the file where the index was written
+     * @return the index, or null if the file does not contain a supported index
+     * @throws IOException when failing to read the file
+     */
+    public static ObjectLocationIndex read(File file) throws IOException
+    {
+        try (DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+
+            ObjectLocationIndex index = new ObjectLocationIndex();
+
+            int folderCount = in.readInt();
+            for (int i = 0; i < folderCount; i++) {
+                index.getFolderIndex(in.readUTF());
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(in.readLong(), in.readInt());
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * @param file the file where to write the index
+     * @throws IOException when failing to write the file
+     */
+    public void write(File file) throws IOException
+    {
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            out.writeInt(VERSION);
+
+            out.writeInt(this.folders.size());
+            for (String folder : this.folders) {
+                out.writeUTF(folder);
+            }
+
+            out.writeInt(this.size);
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.values[i] != NO_FOLDER) {
+                    out.writeLong(this.keys[i]);
+                    out.writeInt(this.values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id the identifier of the object
+     * @return the folder containing the object, or null if it's unknown
+     */
+    public String get(long id)
+    {
+        int value = this.values[find(id)];
+
+        return value == NO_FOLDER ? null : this.folders.get(value);
+    }
+
+    /**
+     * @param id the identifier of the object
+     * @param folder the folder containing the object
+     */
+    public void putIfAbsent(long id, String folder)
+    {
+        if (this.values[find(id)] == NO_FOLDER) {
+            put(id, getFolderIndex(folder));
+        }
+    }
+
+    /**
+     * @return the number of indexed objects
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    private int getFolderIndex(String folder)
+    {
+        return this.folderIndexes.computeIfAbsent(folder, k -> {
+            this.folders.add(k);
+            return this.folders.size() - 1;
+        });
+    }
+
+    private void put(long id, int folderIndex)
+    {
+        int slot = find(id);
+        if (this.values[slot] == NO_FOLDER) {
+            this.size++;
+        }
+        this.keys[slot] = id;
+        this.values[slot] = folderIndex;
+
+        // Keep the load factor under 0.5
+        if (this.size * 2 > this.keys.length) {
+            rehash(this.keys.length * 2);
+        }
+    }
+
+    private int find(long id)
+    {
+        int mask = this.keys.length - 1;
+        int slot = hash(id) & mask;
+        while (this.values[slot] != NO_FOLDER && this.keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+
+        this.keys = new long[capacity];
+        this.values = newValues(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NO_FOLDER) {
+                int slot = find(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long id)
+    {
+        long h = id * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int[] newValues(int capacity)
+    {
+        int[] values = new int[capacity];
+        Arrays.fill(values, NO_FOLDER);
+
+        return values;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the children of each path of a store, to list them without asking the file system.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+class PathIndex
+{
+    private static final String SEPARATOR = "/";
+
+    private final Map<String, Set<String>> children = new HashMap<>();
+
+    /**
+     * Register a path and all its parents.
+     *
+     * @param path the path of the object
+     */
+    void add(String path)
+    {
+        String child = path;
+        for (int index = child.lastIndexOf(SEPARATOR);; index = child.lastIndexOf(SEPARATOR)) {
+            String parent = index == -1 ? "" : child.substring(0, index);
+            if (!this.children.computeIfAbsent(parent, k -> new LinkedHashSet<>()).add(child.substring(index + 1))
+                || index == -1) {
+                // Already known, and so are its parents
+                return;
+            }
+            child = parent;
+        }
+    }
+
+    /**
+     * @param path the path of the parent
+     * @return the names of the direct children of the path
+     */
+    Collection<String> list(String path)
+    {
+        Set<String> names = this.children.get(path);
+
+        return names == null ? Collections.emptyList() : new ArrayList<>(names);
+    }
+
+    /**
+     * Forget all the paths.
+     */
+    void clear()
+    {
+        this.children.clear();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+
+/**
+ * Keep in memory the objects of another store which were loaded in advance because they are about to be read.
+ * <p>
+ * Loading the objects is expected to happen on other threads than the one reading them, so that reading the store
+ * overlaps with what the reading thread does with the objects. Each loaded object is handed to the first reader asking
+ * for it and forgotten, so that an object is never shared between threads. The number of kept objects is bounded, the
+ * least recently loaded ones being forgotten first.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ReadAheadObjectStore implements ConfluenceObjectStore
+{
+    private final ConfluenceObjectStore store;
+
+    private final Map<String, ConfluenceProperties> entries;
+
+    /**
+     * @param store the store from which to load the objects
+     * @param capacity the maximum number of objects to keep in memory
+     */
+    public ReadAheadObjectStore(ConfluenceObjectStore store, int capacity)
+    {
+        this.store = store;
+        this.entries = new LinkedHashMap<String, ConfluenceProperties>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ConfluenceProperties> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the store from which the objects are loaded
+     */
+    public ConfluenceObjectStore getStore()
+    {
+        return this.store;
+    }
+
+    /**
+     * Load an object and keep it in memory until it's read.
+     *
+     * @param path the path of the object
+     * @throws ConfigurationException when failing to read the properties
+     */
+    public void load(String path) throws ConfigurationException
+    {
+        if (!isLoaded(path)) {
+            keep(path, read(path));
+        }
+    }
+
+    /**
+     * Load an object without keeping it, so that the loading thread can look at it before handing it to a reader with
+     * {@link #keep(String, ConfluenceProperties)}.
+     *
+     * @param path the path of the object
+     * @return the properties of the object, or null if it does not exist
+     * @throws ConfigurationException when failing to read the properties
+     */
+    public ConfluenceProperties read(String path) throws ConfigurationException
+    {
+        // Don't block the readers while accessing the store
+        return this.store.get(path, false);
+    }
+
+    /**
+     * Keep in memory an object returned by {@link #read(String)} until it's read. The caller must not use the object
+     * anymore.
+     *
+     * @param path the path of the object
+     * @param properties the properties of the object, ignored if null
+     */
+    public void keep(String path, ConfluenceProperties properties)
+    {
+        if (properties != null) {
+            synchronized (this.entries) {
+                this.entries.putIfAbsent(path, properties);
+            }
+        }
+    }
+
+    /**
+     * @param path the path of the object
+     * @return true if the object was loaded and was not read yet
+     */
+    public boolean isLoaded(String path)
+    {
+        synchronized (this.entries) {
+            return this.entries.containsKey(path);
+        }
+    }
+
+    @Override
+    public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+    {
+        ConfluenceProperties properties;
+        synchronized (this.entries) {
+            properties = this.entries.remove(path);
+        }
+
+        return properties != null ? properties : this.store.get(path, create);
+    }
+
+    @Override
+    public void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException
+    {
+        this.store.save(path, properties);
+
+        // The loaded object is outdated
+        synchronized (this.entries) {
+            this.entries.remove(path);
+        }
+    }
+
+    @Override
+    public Collection<String> list(String path)
+    {
+        return this.store.list(path);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        this.store.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+
+        this.store.close();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.FileUtils;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+
+/**
+ * Store each object in its own properties file, spread in folders named after the hash of the object path.
+ * <p>
+ * Contrary to {@link DirectoryObjectStore}, the number of files in a folder stays small whatever the number of
+ * objects, something like {@code shards/3f/a2/pages%2F42.properties}. The folders are listed only once, when the store
+ * is opened, and the children of each path are then served from memory.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class ShardedObjectStore implements ConfluenceObjectStore
+{
+    /**
+     * The identifier of the layout of this store, to be able to recognize it when restoring a working directory.
+     */
+    public static final String LAYOUT = "sharded/1";
+
+    private static final String FOLDER = "shards";
+
+    private static final String EXTENSION = ".properties";
+
+    private static final int SHARD_MASK = 0xFF;
+
+    private static final int SHARD_BITS = 8;
+
+    private final File folder;
+
+    private final PathIndex paths = new PathIndex();
+
+    /**
+     * Open the store located in the given folder, creating it if needed.
+     *
+     * @param root the folder in which to store the objects
+     */
+    public ShardedObjectStore(File root)
+    {
+        this.folder = new File(root, FOLDER);
+
+        load();
+    }
+
+    /**
+     * Delete the store located in the given folder, leaving the other files of the folder untouched.
+     *
+     * @param root the folder in which the objects are stored
+     * @throws IOException when failing to delete the store
+     */
+    public static void delete(File root) throws IOException
+    {
+        FileUtils.deleteDirectory(new File(root, FOLDER));
+    }
+
+    private void load()
+    {
+        File[] shards = this.folder.listFiles(File::isDirectory);
+        if (shards == null) {
+            return;
+        }
+
+        for (File shard : shards) {
+            File[] subShards = shard.listFiles(File::isDirectory);
+            if (subShards != null) {
+                for (File subShard : subShards) {
+                    String[] names = subShard.list((dir, name) -> name.endsWith(EXTENSION));
+                    if (names != null) {
+                        for (String name : names) {
+                            this.paths.add(decode(name.substring(0, name.length() - EXTENSION.length())));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+    {
+        File file = getFile(path);
+
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                return ConfluenceProperties.create(this, path, in);
+            } catch (IOException e) {
+                throw new ConfigurationException("Failed to read the properties file [" + file + "]", e);
+            }
+        }
+
+        return create ? ConfluenceProperties.create(this, path, null) : null;
+    }
+
+    @Override
+    public void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException
+    {
+        File file = getFile(path);
+        file.getParentFile().mkdirs();
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.write(out);
+        }
+
+        synchronized (this.paths) {
+            this.paths.add(path);
+        }
+    }
+
+    @Override
+    public Collection<String> list(String path)
+    {
+        synchronized (this.paths) {
+            return this.paths.list(path);
+        }
+    }
+
+    private File getFile(String path)
+    {
+        int hash = path.hashCode();
+        hash ^= hash >>> 16;
+
+        String shard = String.format("%02x", (hash >>> SHARD_BITS) & SHARD_MASK);
+        String subShard = String.format("%02x", hash & SHARD_MASK);
+
+        return new File(new File(new File(this.folder, shard), subShard), encode(path) + EXTENSION);
+    }
+
+    private static String encode(String path)
+    {
+        return URLEncoder.encode(path, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String name)
+    {
+        return URLDecoder.decode(name, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void flush()
+    {
+        // Everything is written right away
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing to close
+    }
+}
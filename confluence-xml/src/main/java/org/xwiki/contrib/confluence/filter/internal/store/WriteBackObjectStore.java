@@ -0,0 +1,414 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.sync.LockMode;
+import org.apache.commons.configuration2.sync.NoOpSynchronizer;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+
+/**
+ * Keep the most recently used objects of another store in memory and delay their writing until they are evicted or the
+ * store is flushed.
+ * <p>
+ * Objects like pages or groups are saved again each time a child (revision, comment, member, etc.) is found in the
+ * package, which means rewriting them thousands of times without this cache. The size of the cache is bounded by an
+ * estimation of the memory used by the cached properties, which the properties keep up to date as they change.
+ * <p>
+ * The cached properties are shared by all the threads using the store, and can be written by one thread while another
+ * one is modifying them. They are written while holding their read lock, and properties saved without a synchronizer
+ * are cached as a synchronized copy.
+ * <p>
+ * The store monitor only protects the cache itself: the objects missing from the cache are loaded outside of it, the
+ * threads asking for an object which is being loaded waiting for the first load, and the evicted objects are queued and
+ * written outside of it by the threads using the store, the successive versions of an object being written one after
+ * the other. Evicted objects stay available until they are written so that an outdated version is never read from the
+ * underlying store.
+ *
+ * @version $Id$
+ * @since 9.57.0
+ */
+public class WriteBackObjectStore implements ConfluenceObjectStore
+{
+    private final ConfluenceObjectStore store;
+
+    private final long maxWeight;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+
+    /**
+     * The objects being loaded from the underlying store.
+     */
+    private final Map<String, CompletableFuture<ConfluenceProperties>> loading = new HashMap<>();
+
+    /**
+     * The evicted objects which might not be written yet.
+     */
+    private final Map<String, Entry> evicted = new HashMap<>();
+
+    /**
+     * The objects to write, in the order they were evicted or flushed.
+     */
+    private final Deque<Entry> writeQueue = new ArrayDeque<>();
+
+    /**
+     * The paths of the objects being written.
+     */
+    private final Set<String> writing = new HashSet<>();
+
+    /**
+     * The number of objects taken from the write queue and not written yet.
+     */
+    private int pendingWrites;
+
+    private long weight;
+
+    private static final class Entry
+    {
+        private final String path;
+
+        private final ConfluenceProperties properties;
+
+        private long weight;
+
+        private boolean dirty;
+
+        private Entry(String path, ConfluenceProperties properties)
+        {
+            this.path = path;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * @param store the store where to write the objects
+     * @param maxWeight the approximate maximum memory to use for the cached objects, in bytes
+     */
+    public WriteBackObjectStore(ConfluenceObjectStore store, long maxWeight)
+    {
+        this.store = store;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the store where the objects are written
+     */
+    public ConfluenceObjectStore getStore()
+    {
+        return this.store;
+    }
+
+    @Override
+    public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+    {
+        CompletableFuture<ConfluenceProperties> future;
+        boolean load = false;
+        synchronized (this) {
+            Entry entry = getCached(path);
+            if (entry != null) {
+                return entry.properties;
+            }
+
+            future = this.loading.get(path);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                this.loading.put(path, future);
+                load = true;
+            }
+        }
+
+        if (load) {
+            return load(path, create, future);
+        }
+
+        ConfluenceProperties properties;
+        try {
+            properties = future.join();
+        } catch (CompletionException e) {
+            throw new ConfigurationException("Failed to load the object [" + path + "]", e.getCause());
+        }
+
+        // The other thread did not create the missing object
+        if (properties == null && create) {
+            return get(path, true);
+        }
+
+        return properties;
+    }
+
+    @Override
+    public void save(String path, ConfluenceProperties properties) throws ConfigurationException
+    {
+        synchronized (this) {
+            Entry entry = getCached(path);
+            if (entry != null) {
+                this.weight -= entry.weight;
+            }
+            if (entry == null || entry.properties != properties) {
+                if (entry != null) {
+                    // Replaced by the new properties: only write it if it's already being written
+                    entry.dirty = false;
+                }
+                entry = new Entry(path, getSynchronized(path, properties));
+            }
+            entry.dirty = true;
+
+            put(entry);
+        }
+
+        writeQueued();
+    }
+
+    @Override
+    public Collection<String> list(String path)
+    {
+        // The objects which were never written are not known by the underlying store
+        try {
+            writeDirty();
+        } catch (ConfigurationException e) {
+            throw new IllegalStateException("Failed to write the cached objects", e);
+        }
+
+        return this.store.list(path);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        try {
+            writeDirty();
+        } catch (ConfigurationException e) {
+            throw new IOException("Failed to write the cached objects", e);
+        }
+
+        this.store.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                this.entries.clear();
+                this.evicted.clear();
+                this.writeQueue.clear();
+                this.weight = 0;
+            }
+            this.store.close();
+        }
+    }
+
+    private ConfluenceProperties load(String path, boolean create, CompletableFuture<ConfluenceProperties> future)
+        throws ConfigurationException
+    {
+        ConfluenceProperties properties;
+        try {
+            properties = this.store.get(path, create);
+        } catch (ConfigurationException | RuntimeException e) {
+            synchronized (this) {
+                this.loading.remove(path);
+            }
+            future.completeExceptionally(e);
+
+            throw e;
+        }
+
+        synchronized (this) {
+            this.loading.remove(path);
+
+            // The object might have been saved while it was loading
+            Entry entry = getCached(path);
+            if (entry != null) {
+                properties = entry.properties;
+            } else if (properties != null) {
+                // Make sure saving the properties goes through the cache
+                properties.setStore(this, path);
+
+                put(new Entry(path, properties));
+            }
+        }
+        future.complete(properties);
+
+        writeQueued();
+
+        return properties;
+    }
+
+    private Entry getCached(String path)
+    {
+        Entry entry = this.entries.get(path);
+        if (entry == null) {
+            entry = this.evicted.remove(path);
+            if (entry != null) {
+                // Cache it again instead of reading a version which might not be written yet
+                put(entry);
+            }
+        }
+
+        return entry;
+    }
+
+    private void put(Entry entry)
+    {
+        entry.weight = entry.properties.getWeight();
+        this.weight += entry.weight;
+        this.entries.put(entry.path, entry);
+
+        // Evict the least recently used objects, but always keep the last one
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.weight > this.maxWeight && this.entries.size() > 1) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            this.weight -= eldest.weight;
+            this.evicted.put(eldest.path, eldest);
+            this.writeQueue.add(eldest);
+        }
+    }
+
+    private void writeDirty() throws ConfigurationException
+    {
+        synchronized (this) {
+            this.writeQueue.addAll(this.entries.values());
+            this.writeQueue.addAll(this.evicted.values());
+        }
+
+        writeQueued();
+
+        // Wait for the objects being written by other threads
+        synchronized (this) {
+            while (this.pendingWrites > 0) {
+                waitForWrites();
+            }
+        }
+    }
+
+    private void writeQueued() throws ConfigurationException
+    {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                entry = this.writeQueue.poll();
+                if (entry == null) {
+                    return;
+                }
+                this.pendingWrites++;
+
+                // The successive versions of an object are written one after the other
+                try {
+                    while (this.writing.contains(entry.path)) {
+                        waitForWrites();
+                    }
+                } catch (ConfigurationException e) {
+                    this.writeQueue.addFirst(entry);
+                    this.pendingWrites--;
+
+                    throw e;
+                }
+                this.writing.add(entry.path);
+            }
+
+            try {
+                write(entry);
+            } finally {
+                synchronized (this) {
+                    this.writing.remove(entry.path);
+                    this.pendingWrites--;
+                    // Saved again after being evicted means it was also queued again
+                    if (!entry.dirty) {
+                        this.evicted.remove(entry.path, entry);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitForWrites() throws ConfigurationException
+    {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new ConfigurationException("Interrupted while waiting for the objects to be written", e);
+        }
+    }
+
+    private void write(Entry entry) throws ConfigurationException
+    {
+        synchronized (this) {
+            if (!entry.dirty) {
+                return;
+            }
+
+            // Saving the object while it's written marks it dirty again
+            entry.dirty = false;
+        }
+
+        // Don't write the properties while another thread is modifying them
+        entry.properties.lock(LockMode.READ);
+        try {
+            this.store.save(entry.path, entry.properties);
+        } catch (IOException e) {
+            markDirty(entry);
+
+            throw new ConfigurationException("Failed to write the object [" + entry.path + "]", e);
+        } catch (ConfigurationException | RuntimeException e) {
+            markDirty(entry);
+
+            throw e;
+        } finally {
+            entry.properties.unlock(LockMode.READ);
+        }
+    }
+
+    private synchronized void markDirty(Entry entry)
+    {
+        entry.dirty = true;
+    }
+
+    private ConfluenceProperties getSynchronized(String path, ConfluenceProperties properties)
+        throws ConfigurationException
+    {
+        if (properties.getSynchronizer() instanceof NoOpSynchronizer) {
+            ConfluenceProperties copy = ConfluenceProperties.create(this, path, null);
+            copy.copy(properties);
+
+            return copy;
+        }
+
+        return properties;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.input;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.internal.FileAttachmentContent;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Validate {@link ConfluenceAttachmentInputStream}.
+ *
+ * @version $Id$
+ */
+class ConfluenceAttachmentInputStreamTest
+{
+    private static final byte[] CONTENT = "attachment content".getBytes(StandardCharsets.UTF_8);
+
+    private static File createFile() throws IOException
+    {
+        File file = new File(XWikiTempDirUtil.createTemporaryDirectory(), "attachment");
+        Files.write(file.toPath(), CONTENT);
+
+        return file;
+    }
+
+    @Test
+    void transferFile() throws IOException
+    {
+        FileAttachmentContent content = new FileAttachmentContent(createFile());
+        File target = new File(XWikiTempDirUtil.createTemporaryDirectory(), "target");
+
+        try (ConfluenceAttachmentInputStream stream = new ConfluenceAttachmentInputStream(content);
+            FileOutputStream out = new FileOutputStream(target)) {
+            assertSame(content, stream.getContent());
+            assertNotNull(stream.getChannel());
+
+            // Start after what was already read
+            out.write(stream.read());
+            assertEquals(CONTENT.length - 1, stream.transferTo(out));
+            assertEquals(-1, stream.read());
+        }
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    void transferContent() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(CONTENT.length,
+            new FileAttachmentContent(createFile()).transferTo(Channels.newChannel(out)));
+        assertArrayEquals(CONTENT, out.toByteArray());
+
+        ConfluenceAttachmentContent streamContent = new ConfluenceAttachmentContent()
+        {
+            @Override
+            public long getSize()
+            {
+                return CONTENT.length;
+            }
+
+            @Override
+            public InputStream openStream()
+            {
+                return new ByteArrayInputStream(CONTENT);
+            }
+        };
+        out.reset();
+        try (ConfluenceAttachmentInputStream stream = new ConfluenceAttachmentInputStream(streamContent)) {
+            assertNull(stream.getChannel());
+            assertEquals(CONTENT.length, stream.transferTo(Channels.newChannel(out)));
+        }
+        assertArrayEquals(CONTENT, out.toByteArray());
+    }
+}
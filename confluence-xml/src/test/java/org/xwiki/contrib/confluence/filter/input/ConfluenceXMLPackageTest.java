@@ -0,0 +1,306 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.input;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.environment.Environment;
+import org.xwiki.filter.input.DefaultFileInputSource;
+import org.xwiki.job.JobContext;
+import org.xwiki.job.event.status.JobProgressManager;
+import org.xwiki.test.XWikiTempDirUtil;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ConfluenceXMLPackage}.
+ *
+ * @version $Id$
+ */
+@ComponentList({
+    ConfluenceXMLPackage.class
+})
+@ComponentTest
+class ConfluenceXMLPackageTest
+{
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private JobProgressManager jobProgressManager;
+
+    @MockComponent
+    private JobContext jobContext;
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.environment.getTemporaryDirectory()).thenReturn(XWikiTempDirUtil.createTemporaryDirectory());
+    }
+
+    private ConfluenceXMLPackage read(int parsingThreads, int parsingChunkSize) throws Exception
+    {
+        ConfluenceInputProperties properties = new ConfluenceInputProperties();
+        properties.setParsingThreads(parsingThreads);
+        properties.setParsingChunkSize(parsingChunkSize);
+
+        return read("nested", properties);
+    }
+
+    private ConfluenceXMLPackage read(String fixture, ConfluenceInputProperties properties) throws Exception
+    {
+        return read(new File(getClass().getClassLoader().getResource("confluencexml/" + fixture).getFile()),
+            properties);
+    }
+
+    private ConfluenceXMLPackage read(File folder, ConfluenceInputProperties properties) throws Exception
+    {
+        ConfluenceXMLPackage confluencePackage = this.componentManager.getInstance(ConfluenceXMLPackage.class);
+        confluencePackage.setInputProperties(properties);
+        confluencePackage.read(new DefaultFileInputSource(folder));
+
+        return confluencePackage;
+    }
+
+    private static String createReference(String name, String type, long id)
+    {
+        return "<property name=\"" + name + "\" class=\"" + type + "\"><id name=\"id\">" + id + "</id></property>";
+    }
+
+    private static String createObject(String type, long id, String... properties)
+    {
+        return "<object class=\"" + type + "\"><id name=\"id\">" + id + "</id>" + String.join("", properties)
+            + "</object>\n";
+    }
+
+    private static File write(String objects) throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        Files.write(new File(folder, "entities.xml").toPath(),
+            ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<hibernate-generic>\n" + objects + "</hibernate-generic>\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        return folder;
+    }
+
+    private static String createPage(long id, Long parentId)
+    {
+        return createObject("Page", id, "<property name=\"title\"><![CDATA[Page " + id + "]]></property>",
+            "<property name=\"contentStatus\"><![CDATA[current]]></property>", createReference("space", "Space", 1),
+            parentId != null ? createReference("parent", "Page", parentId) : "");
+    }
+
+    private Map<Long, String> getTitles(ConfluenceXMLPackage confluencePackage) throws Exception
+    {
+        Map<Long, String> titles = new TreeMap<>();
+        for (List<Long> pages : confluencePackage.getPages().values()) {
+            for (Long pageId : pages) {
+                titles.put(pageId, confluencePackage.getPageProperties(pageId, false).getString("title"));
+            }
+        }
+
+        return titles;
+    }
+
+    @Test
+    void parseInChunks() throws Exception
+    {
+        ConfluenceXMLPackage serial = read(1, 0);
+        // Split the entities in many small chunks
+        ConfluenceXMLPackage chunked = read(4, 8 * 1024);
+
+        try {
+            assertFalse(serial.getPages().isEmpty());
+            assertEquals(serial.getSpacesByKey(), chunked.getSpacesByKey());
+            assertEquals(new TreeMap<>(serial.getPages()), new TreeMap<>(chunked.getPages()));
+            assertEquals(getTitles(serial), getTitles(chunked));
+            for (Long pageId : getTitles(serial).keySet()) {
+                assertEquals(serial.getPageChildren(pageId), chunked.getPageChildren(pageId));
+            }
+        } finally {
+            serial.close();
+            chunked.close();
+        }
+    }
+
+    @Test
+    void datesDoNotDependOnTheIndexingTimeZone() throws Exception
+    {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("Pacific/Auckland"));
+            ConfluenceXMLPackage confluencePackage = read("historyorder", new ConfluenceInputProperties());
+
+            try {
+                // The package is read in another time zone than the one it was indexed in
+                TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+                ConfluenceProperties pageProperties = confluencePackage.getPageProperties(73469022L, false);
+                SimpleDateFormat format = new SimpleDateFormat(ConfluenceXMLPackage.DATE_FORMAT);
+
+                assertEquals(format.parse("2020-06-26 10:46:09.825"),
+                    confluencePackage.getDate(pageProperties, ConfluenceXMLPackage.KEY_PAGE_CREATION_DATE));
+                assertEquals(format.parse("2020-07-06 09:36:17.839"),
+                    confluencePackage.getDate(pageProperties, ConfluenceXMLPackage.KEY_PAGE_REVISION_DATE));
+            } finally {
+                confluencePackage.close();
+            }
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test
+    void getDateOnlyReadsNumbersForIndexedDates() throws Exception
+    {
+        ConfluenceXMLPackage confluencePackage = this.componentManager.getInstance(ConfluenceXMLPackage.class);
+        ConfluenceProperties properties = ConfluenceProperties.create(null, "pages/1", null);
+
+        // Only the well known dates are indexed as numbers
+        properties.setProperty("creationDate", "20200626");
+        assertThrows(ParseException.class, () -> confluencePackage.getDate(properties, "creationDate"));
+
+        // Too large to be an indexed date
+        properties.setProperty(ConfluenceXMLPackage.KEY_PAGE_CREATION_DATE, "12345678901234567890");
+        assertThrows(ParseException.class,
+            () -> confluencePackage.getDate(properties, ConfluenceXMLPackage.KEY_PAGE_CREATION_DATE));
+
+        properties.setProperty(ConfluenceXMLPackage.KEY_PAGE_CREATION_DATE, "2020-06-26 10:46:09.825");
+        assertEquals(new SimpleDateFormat(ConfluenceXMLPackage.DATE_FORMAT).parse("2020-06-26 10:46:09.825"),
+            confluencePackage.getDate(properties, ConfluenceXMLPackage.KEY_PAGE_CREATION_DATE));
+    }
+
+    @Test
+    void missingParentsInLargeSpace() throws Exception
+    {
+        int pageCount = 20000;
+
+        StringBuilder entities = new StringBuilder();
+        entities.append(createObject("Space", 1, "<property name=\"key\"><![CDATA[SPACE]]></property>",
+            createReference("homePage", "Page", 1)));
+        entities.append(createPage(1, null));
+
+        // The children come before their parents, and some of them have a parent which is not in the package
+        List<Long> orphans = new ArrayList<>();
+        for (long id = pageCount; id > 1; id--) {
+            long parentId = id / 2;
+            if (id % 1000 == 0) {
+                parentId = 1000000 + id;
+                orphans.add(id);
+            }
+            entities.append(createPage(id, parentId));
+        }
+
+        ConfluenceXMLPackage confluencePackage = read(write(entities.toString()), new ConfluenceInputProperties());
+        try {
+            assertEquals(pageCount, confluencePackage.getPages().get(1L).size());
+            // The children of the missing parents, in the order in which the missing parents were referenced
+            assertEquals(orphans, confluencePackage.getOrphans(1L));
+            assertEquals(List.of(5L, 4L), confluencePackage.getPageChildren(2L));
+        } finally {
+            confluencePackage.close();
+        }
+    }
+
+    @Test
+    void relations() throws Exception
+    {
+        String contentStatus = "<property name=\"contentStatus\"><![CDATA[current]]></property>";
+        String objects = createObject("Space", 1, "<property name=\"key\"><![CDATA[SPACE]]></property>",
+            createReference("homePage", "Page", 10))
+            + createObject("SpacePermission", 20, createReference("space", "Space", 1))
+            + createObject("Page", 10, contentStatus, createReference("space", "Space", 1))
+            + createObject("Page", 11, contentStatus, createReference("originalVersion", "Page", 10))
+            + createObject("Comment", 30, contentStatus, createReference("containerContent", "Page", 10))
+            + createObject("Comment", 31, contentStatus, createReference("containerContent", "Page", 10))
+            + createObject("Labelling", 40, createReference("content", "Page", 10))
+            + createObject("ContentPermissionSet", 50, createReference("owningContent", "Page", 10))
+            + createObject("ContentPermission", 60, createReference("owningSet", "ContentPermissionSet", 50));
+
+        ConfluenceXMLPackage confluencePackage = read(write(objects), new ConfluenceInputProperties());
+        try {
+            ConfluenceProperties pageProperties = confluencePackage.getPageProperties(10L, false);
+            assertEquals(List.of(11L), confluencePackage.getLongList(pageProperties, "historicalVersions"));
+            assertEquals(List.of(30L, 31L), confluencePackage.getLongList(pageProperties, "comments"));
+            assertEquals(List.of(40L), confluencePackage.getLongList(pageProperties, "labellings"));
+            assertEquals(List.of(50L), confluencePackage.getLongList(pageProperties, "contentPermissionSets"));
+            assertEquals(List.of(20L),
+                confluencePackage.getLongList(confluencePackage.getSpaceProperties(1L), "permissions"));
+            assertEquals(List.of(60L), confluencePackage
+                .getLongList(confluencePackage.getContentPermissionSetProperties(50L), "contentPermissions"));
+        } finally {
+            confluencePackage.close();
+        }
+    }
+
+    @Test
+    void incrementalIndexingKeepsOtherFiles() throws Exception
+    {
+        File workingDirectory = XWikiTempDirUtil.createTemporaryDirectory();
+        File other = new File(workingDirectory, "other.txt");
+        Files.write(other.toPath(), "other".getBytes(StandardCharsets.UTF_8));
+
+        ConfluenceInputProperties properties = new ConfluenceInputProperties();
+        properties.setIncrementalIndexing(true);
+        File source = new File(getClass().getClassLoader().getResource("confluencexml/nested").getFile());
+
+        // Closing a package cleans up its working directory, so keep the previous export open
+        ConfluenceXMLPackage previous = this.componentManager.getInstance(ConfluenceXMLPackage.class);
+        previous.setInputProperties(properties);
+        ConfluenceXMLPackage current = this.componentManager.getInstance(ConfluenceXMLPackage.class);
+        current.setInputProperties(properties);
+        try {
+            previous.read(new DefaultFileInputSource(source), workingDirectory.getAbsolutePath());
+            previous.saveFingerprints();
+
+            current.read(new DefaultFileInputSource(source), workingDirectory.getAbsolutePath());
+            assertFalse(current.getPages().isEmpty());
+            // Nothing changed since the previous export
+            assertTrue(current.getChangedPages().isEmpty());
+
+            assertEquals("other", Files.readString(other.toPath()));
+        } finally {
+            current.close();
+            previous.close();
+        }
+    }
+}
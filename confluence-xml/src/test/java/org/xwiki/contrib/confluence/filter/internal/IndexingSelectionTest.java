@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link IndexingSelection}.
+ *
+ * @version $Id$
+ */
+class IndexingSelectionTest
+{
+    @Test
+    void selectIncludedPagesAndWhatTheyNeed()
+    {
+        IndexingSelection selection = new IndexingSelection(Arrays.asList(3L));
+
+        // Space 100 with home page 1 > 2 > 3 and a sibling 4, space 200 with home page 5
+        selection.addSpace(100, 1L);
+        selection.addSpace(200, 5L);
+        selection.addPage(1, 100, null);
+        selection.addPage(2, 100, 1L);
+        selection.addPage(3, 100, 2L);
+        selection.addPage(4, 100, 2L);
+        selection.addPage(5, 200, null);
+
+        // Versions and comments, including a comment on a version
+        selection.addOwnedContent(30, 3);
+        selection.addOwnedContent(31, 30);
+        selection.addOwnedContent(40, 4);
+        selection.addOwnedContent(41, 40);
+
+        selection.resolve();
+
+        assertTrue(selection.isSpaceSelected(100L));
+        assertFalse(selection.isSpaceSelected(200L));
+        assertFalse(selection.isSpaceSelected(null));
+
+        assertTrue(selection.isContentSelected(1L));
+        assertTrue(selection.isContentSelected(2L));
+        assertTrue(selection.isContentSelected(3L));
+        assertFalse(selection.isContentSelected(4L));
+        assertFalse(selection.isContentSelected(5L));
+
+        assertTrue(selection.isContentSelected(30L));
+        assertTrue(selection.isContentSelected(31L));
+        assertFalse(selection.isContentSelected(40L));
+        assertFalse(selection.isContentSelected(41L));
+
+        // Contents which are not known to belong to a page are kept
+        assertTrue(selection.isContentSelected(1000L));
+        assertTrue(selection.isContentSelected(null));
+    }
+
+    @Test
+    void ownerCycle()
+    {
+        IndexingSelection selection = new IndexingSelection(Arrays.asList(1L));
+
+        selection.addPage(1, 100, null);
+        selection.addOwnedContent(10, 11);
+        selection.addOwnedContent(11, 10);
+
+        selection.resolve();
+
+        assertFalse(selection.isContentSelected(10L));
+    }
+}
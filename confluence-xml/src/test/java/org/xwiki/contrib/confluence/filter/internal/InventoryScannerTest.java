@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceInventory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Validate {@link InventoryScanner}.
+ *
+ * @version $Id$
+ */
+class InventoryScannerTest
+{
+    private static final String ENTITIES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<hibernate-generic datetime=\"2024-01-01 00:00:00\">\n"
+        + "<object class=\"Space\" package=\"com.atlassian.confluence.spaces\">\n"
+        + "<id name=\"id\">1</id>\n"
+        + "<property name=\"name\"><![CDATA[Space]]></property>\n"
+        + "<property name=\"key\"><![CDATA[SP]]></property>\n"
+        + "</object>\n"
+        + "<object class=\"Page\" package=\"com.atlassian.confluence.pages\">\n"
+        + "<id name=\"id\">10</id>\n"
+        + "<property name=\"title\"><![CDATA[Page]]></property>\n"
+        + "<property name=\"space\" class=\"Space\" package=\"com.atlassian.confluence.spaces\">"
+        + "<id name=\"id\">1</id></property>\n"
+        + "<collection name=\"bodyContents\" class=\"java.util.Collection\"><element class=\"BodyContent\">"
+        + "<id name=\"id\">100</id></element></collection>\n"
+        + "</object>\n"
+        + "<object class=\"Page\" package=\"com.atlassian.confluence.pages\">\n"
+        + "<id name=\"id\">11</id>\n"
+        + "<property name=\"space\" class=\"Space\" package=\"com.atlassian.confluence.spaces\">"
+        + "<id name=\"id\">1</id></property>\n"
+        + "<property name=\"originalVersion\" class=\"Page\" package=\"com.atlassian.confluence.pages\">"
+        + "<id name=\"id\">10</id></property>\n"
+        + "</object>\n"
+        + "<object class=\"BlogPost\" package=\"com.atlassian.confluence.pages\">\n"
+        + "<id name=\"id\">12</id>\n"
+        + "<property name=\"space\" class=\"Space\" package=\"com.atlassian.confluence.spaces\">"
+        + "<id name=\"id\">2</id></property>\n"
+        + "</object>\n"
+        + "<object class=\"BodyContent\" package=\"com.atlassian.confluence.core\">\n"
+        + "<id name=\"id\">100</id>\n"
+        + "<property name=\"body\"><![CDATA[<p><ac:structured-macro ac:name=\"info\" ac:schema-version=\"1\">"
+        + "</ac:structured-macro><ac:structured-macro ac:name=\"code\"></ac:structured-macro>"
+        + "<ac:macro ac:name=\"info\"></ac:macro></p>]]></property>\n"
+        + "<property name=\"content\" class=\"Page\" package=\"com.atlassian.confluence.pages\">"
+        + "<id name=\"id\">10</id></property>\n"
+        + "</object>\n"
+        + "<object class=\"BodyContent\" package=\"com.atlassian.confluence.core\">\n"
+        + "<id name=\"id\">101</id>\n"
+        + "<property name=\"body\"><![CDATA[short]]></property>\n"
+        + "<property name=\"content\" class=\"Comment\" package=\"com.atlassian.confluence.pages\">"
+        + "<id name=\"id\">20</id></property>\n"
+        + "</object>\n"
+        + "<object class=\"Attachment\" package=\"com.atlassian.confluence.pages\">\n"
+        + "<id name=\"id\">30</id>\n"
+        + "</object>\n"
+        + "</hibernate-generic>\n";
+
+    @Test
+    void scan() throws XMLStreamException
+    {
+        InventoryScanner scanner = new InventoryScanner();
+        scanner.scanEntities(new ByteArrayInputStream(ENTITIES.getBytes(StandardCharsets.UTF_8)));
+        scanner.addFile("attachments/10/30/1", 100);
+        scanner.addFile("attachments/10/30/2", 50);
+        scanner.addFile("attachments/99/31/1", 7);
+        scanner.addFile("entities.xml", 1000);
+
+        ConfluenceInventory inventory = scanner.getInventory();
+
+        assertEquals(Map.of("Space", 1L, "Page", 2L, "BlogPost", 1L, "BodyContent", 2L, "Attachment", 1L),
+            inventory.getObjects());
+
+        ConfluenceInventory.Space space = inventory.getSpaces().get("SP");
+        assertEquals(1, space.getPages());
+        assertEquals(0, space.getBlogPosts());
+        assertEquals(1, space.getRevisions());
+        assertEquals(2, space.getAttachmentCount());
+        assertEquals(150, space.getAttachmentSize());
+        // Space not found in the package
+        assertEquals(1, inventory.getSpaces().get("2").getBlogPosts());
+
+        assertEquals(3, inventory.getAttachmentCount());
+        assertEquals(157, inventory.getAttachmentSize());
+
+        List<ConfluenceInventory.Body> bodies = inventory.getLargestBodies();
+        assertEquals(2, bodies.size());
+        assertEquals(10, bodies.get(0).getContentId());
+        assertEquals("SP", bodies.get(0).getSpace());
+        assertEquals(20, bodies.get(1).getContentId());
+        assertNull(bodies.get(1).getSpace());
+        assertEquals(5, bodies.get(1).getSize());
+
+        assertEquals(List.of("info", "code"), List.copyOf(inventory.getMacros().keySet()));
+        assertEquals(2L, (long) inventory.getMacros().get("info"));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link LongListMultimap}.
+ *
+ * @version $Id$
+ */
+class LongListMultimapTest
+{
+    @Test
+    void addAndRemove()
+    {
+        LongListMultimap multimap = new LongListMultimap();
+
+        multimap.add(3, 30);
+        multimap.putKey(1);
+        multimap.add(3, 31);
+        multimap.add(3, 30);
+        multimap.add(2, 20);
+
+        assertEquals(Arrays.asList(30L, 31L, 30L), multimap.get(3));
+        assertEquals(Collections.emptyList(), multimap.get(1));
+        assertNull(multimap.get(4));
+        assertTrue(multimap.contains(3, 31));
+        assertFalse(multimap.addIfAbsent(3, 31));
+        assertTrue(multimap.addIfAbsent(1, 10));
+
+        assertTrue(multimap.remove(3, 30));
+        assertFalse(multimap.remove(2, 30));
+        assertEquals(Arrays.asList(31L, 30L), multimap.get(3));
+
+        assertEquals(Arrays.asList(3L, 1L, 2L), Arrays.asList(multimap.asMap().keySet().toArray()));
+    }
+
+    @Test
+    void mapView()
+    {
+        LongListMultimap multimap = new LongListMultimap();
+        for (long key = 0; key < 1000; key++) {
+            multimap.add(key, key * 2);
+        }
+
+        Map<Long, List<Long>> map = multimap.asMap();
+        assertEquals(1000, map.size());
+        assertEquals(Arrays.asList(20L), map.get(10L));
+        assertEquals(Arrays.asList(20L), map.remove(10L));
+        assertFalse(map.containsKey(10L));
+
+        for (Iterator<Long> it = map.keySet().iterator(); it.hasNext();) {
+            if (it.next() % 2 == 1) {
+                it.remove();
+            }
+        }
+        assertEquals(499, multimap.size());
+        assertNull(multimap.get(11));
+
+        // A removed key is added back at the end
+        multimap.add(11, 1);
+        assertEquals(Long.valueOf(11), Arrays.asList(map.keySet().toArray()).get(499));
+
+        assertThrows(UnsupportedOperationException.class, () -> map.get(0L).add(1L));
+    }
+}
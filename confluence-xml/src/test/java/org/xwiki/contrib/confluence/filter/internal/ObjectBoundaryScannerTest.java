@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link ObjectBoundaryScanner}.
+ *
+ * @version $Id$
+ */
+class ObjectBoundaryScannerTest
+{
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<hibernate-generic>\n";
+
+    private static final String FOOTER = "</hibernate-generic>\n";
+
+    private static final String PAGE = "<object class=\"Page\" package=\"com.atlassian.confluence.pages\">"
+        + "<id name=\"id\">%d</id><property name=\"title\"><![CDATA[Page %1$d]]></property></object>\n";
+
+    // A body containing something looking like an object and an end tag
+    private static final String BODY = "<object class=\"BodyContent\">"
+        + "<id name=\"id\">%d</id><property name=\"body\"><![CDATA[<p>An <object type=\"x\"> tag</p>"
+        + "<objectives/></objects>]]></property></object>\n";
+
+    private static File write(String content) throws IOException
+    {
+        File file = new File(XWikiTempDirUtil.createTemporaryDirectory(), "entities.xml");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+        return file;
+    }
+
+    private static String createEntities(int count)
+    {
+        StringBuilder content = new StringBuilder(HEADER);
+        for (int i = 1; i <= count; i++) {
+            content.append(String.format(i % 2 == 0 ? BODY : PAGE, i));
+        }
+        content.append(FOOTER);
+
+        return content.toString();
+    }
+
+    @Test
+    void findObjectSkipsCDATA() throws IOException
+    {
+        String content = createEntities(3);
+        File file = write(content);
+
+        try (ObjectBoundaryScanner scanner = new ObjectBoundaryScanner(file)) {
+            long first = content.indexOf("<object class=\"Page\"");
+            long body = content.indexOf("<object class=\"BodyContent\"");
+            long third = content.indexOf("<object class=\"Page\"", (int) body);
+
+            assertEquals(first, scanner.findObject(0));
+            assertEquals(body, scanner.findObject(first + 1));
+            // The object tag in the body is inside a CDATA section
+            assertEquals(third, scanner.findObject(body + 1));
+            assertEquals(third, scanner.findObject(content.indexOf("<object type=")));
+            assertEquals(-1, scanner.findObject(third + 1));
+        }
+    }
+
+    @Test
+    void splitInParsableChunks() throws IOException, XMLStreamException
+    {
+        String content = createEntities(20);
+        File file = write(content);
+
+        List<Long> boundaries;
+        try (ObjectBoundaryScanner scanner = new ObjectBoundaryScanner(file)) {
+            boundaries = scanner.split(200);
+        }
+
+        assertTrue(boundaries.size() > 3);
+        assertEquals(content.indexOf("<object"), boundaries.get(0).longValue());
+        assertEquals(content.indexOf(FOOTER), boundaries.get(boundaries.size() - 1).longValue());
+
+        // Each chunk wrapped in an objects element, without an XML declaration, is a valid document
+        List<String> ids = new ArrayList<>();
+        for (int i = 1; i < boundaries.size(); i++) {
+            String chunk = content.substring(boundaries.get(i - 1).intValue(), boundaries.get(i).intValue());
+            assertTrue(chunk.startsWith("<object class="));
+            ids.addAll(parseIds("<objects>" + chunk + "</objects>"));
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            expected.add(String.valueOf(i));
+        }
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    void splitTailWithoutCDATA() throws IOException, XMLStreamException
+    {
+        // A few bodies followed by many objects without any CDATA section, like the users and groups
+        StringBuilder content = new StringBuilder(HEADER);
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 2000; i++) {
+            if (i <= 10) {
+                content.append(String.format(BODY, i));
+            } else {
+                content.append(String.format("<object class=\"ConfluenceUserImpl\"><id name=\"id\">%d</id>"
+                    + "<property name=\"name\">user%1$d</property></object>\n", i));
+            }
+            expected.add(String.valueOf(i));
+        }
+        content.append(FOOTER);
+        File file = write(content.toString());
+
+        List<Long> boundaries;
+        try (ObjectBoundaryScanner scanner = new ObjectBoundaryScanner(file)) {
+            boundaries = scanner.split(1000);
+        }
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 1; i < boundaries.size(); i++) {
+            String chunk = content.substring(boundaries.get(i - 1).intValue(), boundaries.get(i).intValue());
+            assertTrue(chunk.startsWith("<object class="));
+            ids.addAll(parseIds("<objects>" + chunk + "</objects>"));
+        }
+        assertTrue(boundaries.size() > 50);
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    void splitWithoutObjects() throws IOException
+    {
+        try (ObjectBoundaryScanner scanner = new ObjectBoundaryScanner(write(HEADER + FOOTER))) {
+            assertEquals(Arrays.asList(), scanner.split(200));
+        }
+    }
+
+    private static List<String> parseIds(String document) throws XMLStreamException
+    {
+        List<String> ids = new ArrayList<>();
+
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(document));
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("id")) {
+                ids.add(reader.getElementText());
+            }
+        }
+
+        return ids;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Validate {@link ObjectFingerprints}.
+ *
+ * @version $Id$
+ */
+class ObjectFingerprintsTest
+{
+    private static final String CONTENT = ObjectFingerprints.CONTENT;
+
+    private static final String BODY = "BodyContent";
+
+    private static final String PERMISSION_SET = "ContentPermissionSet";
+
+    private static final String PERMISSION = "ContentPermission";
+
+    private static ObjectFingerprints createPrevious()
+    {
+        ObjectFingerprints fingerprints = new ObjectFingerprints();
+        fingerprints.put(CONTENT, 1, 1, null, 0);
+        fingerprints.put(CONTENT, 2, 2, null, 0);
+        // Historical version and comment of page 1
+        fingerprints.put(CONTENT, 3, 3, CONTENT, 1);
+        fingerprints.put(CONTENT, 4, 4, CONTENT, 1);
+        // Body of the comment
+        fingerprints.put(BODY, 100, 100, CONTENT, 4);
+        // Attachment of page 2
+        fingerprints.put(CONTENT, 5, 5, CONTENT, 2);
+        fingerprints.put(CONTENT, 6, 6, null, 0);
+        fingerprints.put(PERMISSION_SET, 50, 50, CONTENT, 6);
+        fingerprints.put(PERMISSION, 60, 60, PERMISSION_SET, 50);
+        fingerprints.put(CONTENT, 8, 8, null, 0);
+        fingerprints.putLocation(1, 10);
+        fingerprints.putLocation(2, 20);
+
+        return fingerprints;
+    }
+
+    @Test
+    void compare()
+    {
+        ObjectFingerprints current = new ObjectFingerprints();
+        current.put(CONTENT, 1, 1, null, 0);
+        current.put(CONTENT, 2, 2, null, 0);
+        current.put(CONTENT, 3, 3, CONTENT, 1);
+        current.put(CONTENT, 4, 4, CONTENT, 1);
+        // Modified comment body
+        current.put(BODY, 100, 101, CONTENT, 4);
+        // Attachment of page 2 removed
+        current.put(CONTENT, 6, 6, null, 0);
+        current.put(PERMISSION_SET, 50, 50, CONTENT, 6);
+        // Modified permission
+        current.put(PERMISSION, 60, 61, PERMISSION_SET, 50);
+        // New page, page 8 removed
+        current.put(CONTENT, 7, 7, null, 0);
+
+        Set<Long> changedPages = new HashSet<>();
+        Set<Long> deletedPages = new HashSet<>();
+        current.compare(createPrevious(), changedPages, deletedPages);
+
+        assertEquals(Set.of(1L, 2L, 6L, 7L), changedPages);
+        assertEquals(Set.of(8L), deletedPages);
+    }
+
+    @Test
+    void writeAndRead() throws IOException
+    {
+        File file = new File(XWikiTempDirUtil.createTemporaryDirectory(), "fingerprints.bin");
+
+        ObjectFingerprints previous = createPrevious();
+        previous.write(file);
+        ObjectFingerprints read = ObjectFingerprints.read(file);
+
+        assertEquals(previous.size(), read.size());
+        assertEquals(Set.of(), read.getMovedPages(previous));
+
+        Set<Long> changedPages = new HashSet<>();
+        Set<Long> deletedPages = new HashSet<>();
+        read.compare(previous, changedPages, deletedPages);
+        assertEquals(Set.of(), changedPages);
+        assertEquals(Set.of(), deletedPages);
+    }
+
+    @Test
+    void getMovedPages()
+    {
+        ObjectFingerprints current = new ObjectFingerprints();
+        current.putLocation(1, 10);
+        // Renamed or moved page
+        current.putLocation(2, 21);
+        // New page
+        current.putLocation(7, 70);
+
+        assertEquals(Set.of(2L), current.getMovedPages(createPrevious()));
+    }
+
+    @Test
+    void fingerprint()
+    {
+        assertEquals(ObjectFingerprints.fingerprint(List.of("title", "Page")),
+            ObjectFingerprints.fingerprint(List.of("title", "Page")));
+        assertNotEquals(ObjectFingerprints.fingerprint(List.of("title", "Page")),
+            ObjectFingerprints.fingerprint(List.of("titl", "ePage")));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link PackageStateWriter} and {@link PackageStateReader}.
+ *
+ * @version $Id$
+ */
+class PackageStateWriterTest
+{
+    private static Map<Long, List<Long>> createMultimap()
+    {
+        Map<Long, List<Long>> multimap = new LinkedHashMap<>();
+        multimap.put(1L, Arrays.asList(11L, 12L, 13L));
+        multimap.put(2L, Collections.emptyList());
+        multimap.put(3L, Arrays.asList(Long.MAX_VALUE, Long.MIN_VALUE));
+
+        return multimap;
+    }
+
+    private static Map<Long, Long> createLongMap()
+    {
+        Map<Long, Long> map = new LinkedHashMap<>();
+        map.put(1L, 10L);
+        map.put(null, 20L);
+        map.put(-3L, 30L);
+
+        return map;
+    }
+
+    private static Map<String, Long> createStringMap()
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("SPACE", 1L);
+        map.put("", 2L);
+        map.put(null, 3L);
+        map.put("Espace été ☃", 4L);
+
+        return map;
+    }
+
+    private static Map<Long, Map<String, Long>> createTitles()
+    {
+        Map<Long, Map<String, Long>> titles = new LinkedHashMap<>();
+        titles.put(1L, createStringMap());
+        titles.put(2L, Collections.singletonMap("Home", 5L));
+        titles.put(3L, Collections.emptyMap());
+
+        return titles;
+    }
+
+    private static File write(File folder) throws IOException
+    {
+        File file = new File(folder, "state.bin");
+        try (PackageStateWriter writer = new PackageStateWriter(file)) {
+            writer.writeLongCollectionMap(createMultimap());
+            writer.writeLongMap(createLongMap());
+            writer.writeStringLongMap(createStringMap());
+            writer.writeLongStringLongMap(createTitles());
+            writer.commit();
+        }
+
+        return file;
+    }
+
+    @Test
+    void roundTrip() throws IOException
+    {
+        File file = write(XWikiTempDirUtil.createTemporaryDirectory());
+
+        PackageStateReader reader = new PackageStateReader(file);
+
+        LongListMultimap multimap = new LongListMultimap();
+        reader.readLongListMultimap(multimap);
+        assertEquals(createMultimap(), new LinkedHashMap<>(multimap.asMap()));
+
+        Map<Long, Long> longMap = new LinkedHashMap<>();
+        reader.readLongMap(longMap);
+        assertEquals(createLongMap(), longMap);
+
+        Map<String, Long> stringMap = new LinkedHashMap<>();
+        reader.readStringLongMap(stringMap);
+        assertEquals(createStringMap(), stringMap);
+
+        Map<Long, Map<String, Long>> titles = new LinkedHashMap<>();
+        reader.readLongStringLongMap(titles, HashMap::new);
+        assertEquals(createTitles(), titles);
+    }
+
+    @Test
+    void notCommitted() throws IOException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        File file = new File(folder, "state.bin");
+        try (PackageStateWriter writer = new PackageStateWriter(file)) {
+            writer.writeLongMap(createLongMap());
+        }
+
+        assertFalse(file.exists());
+        assertEquals(0, folder.list().length);
+    }
+
+    @Test
+    void corrupted() throws IOException
+    {
+        File file = write(XWikiTempDirUtil.createTemporaryDirectory());
+
+        // Flip a byte of the content
+        try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+            long position = PackageStateWriter.HEADER_SIZE + 10;
+            content.seek(position);
+            int value = content.read();
+            content.seek(position);
+            content.write(value ^ 0xFF);
+        }
+
+        IOException exception = assertThrows(IOException.class, () -> new PackageStateReader(file));
+        assertTrue(exception.getMessage().contains("corrupted"));
+    }
+
+    @Test
+    void truncated() throws IOException
+    {
+        File file = write(XWikiTempDirUtil.createTemporaryDirectory());
+
+        try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+            content.setLength(content.length() - 1);
+        }
+
+        IOException exception = assertThrows(IOException.class, () -> new PackageStateReader(file));
+        assertTrue(exception.getMessage().contains("truncated"));
+
+        try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+            content.setLength(PackageStateWriter.HEADER_SIZE - 1);
+        }
+        assertThrows(IOException.class, () -> new PackageStateReader(file));
+    }
+}
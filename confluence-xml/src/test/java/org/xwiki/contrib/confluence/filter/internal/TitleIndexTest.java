@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link TitleIndex}.
+ *
+ * @version $Id$
+ */
+class TitleIndexTest
+{
+    @Test
+    void inMemory()
+    {
+        TitleIndex index = new TitleIndex();
+        index.put(1, "Title", 10);
+        index.put(2, "Title", 20);
+        index.put(1, "Title", 11);
+
+        assertEquals(11L, index.get(1, "Title"));
+        assertEquals(20L, index.get(2, "Title"));
+        assertNull(index.get(3, "Title"));
+        assertFalse(index.isSpilled());
+    }
+
+    @Test
+    void spillAndReopen() throws IOException
+    {
+        File folder = new File(XWikiTempDirUtil.createTemporaryDirectory(), "titles");
+
+        TitleIndex index = new TitleIndex();
+        // Spill almost every entry
+        index.setSpillFolder(folder, 1000);
+        for (int i = 0; i < 1000; i++) {
+            index.put(i % 7, "Page é中 " + i, i);
+        }
+        // Replace entries which were spilled
+        index.put(0, "Page é中 0", 1000);
+        index.put(6, "Page é中 999", 1001);
+
+        assertTrue(index.isSpilled());
+        assertEquals(1000L, index.get(0, "Page é中 0"));
+        assertEquals(500L, index.get(500 % 7, "Page é中 500"));
+        assertNull(index.get(1, "Page é中 0"));
+
+        index.put(2, "Page é中 2", 1002);
+        index.finish();
+
+        assertTrue(index.getHeap().isEmpty());
+        assertEquals(1002L, index.get(2, "Page é中 2"));
+
+        TitleIndex reopened = new TitleIndex();
+        reopened.open(folder);
+
+        assertEquals(1000L, reopened.get(0, "Page é中 0"));
+        assertEquals(1001L, reopened.get(6, "Page é中 999"));
+        assertEquals(1002L, reopened.get(2, "Page é中 2"));
+        assertEquals(998L, reopened.get(998 % 7, "Page é中 998"));
+        assertNull(reopened.get(0, "Missing"));
+    }
+}
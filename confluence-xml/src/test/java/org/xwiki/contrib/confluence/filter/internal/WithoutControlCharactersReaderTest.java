@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Validate {@link WithoutControlCharactersReader}.
+ *
+ * @version $Id$
+ */
+class WithoutControlCharactersReaderTest
+{
+    private static final byte[] INPUT = { 'a', 1, '\n', 8, 8, 'b', '\r', '\t', 0, 31, (byte) 0xC3, (byte) 0xA9, 32 };
+
+    private static final byte[] EXPECTED = { 'a', '\n', 'b', '\r', 0, (byte) 0xC3, (byte) 0xA9, 32 };
+
+    @Test
+    void readBuffer() throws IOException
+    {
+        try (InputStream stream = new WithoutControlCharactersReader(new ByteArrayInputStream(INPUT))) {
+            assertArrayEquals(EXPECTED, IOUtils.toByteArray(stream));
+        }
+    }
+
+    @Test
+    void readByte() throws IOException
+    {
+        try (InputStream stream = new WithoutControlCharactersReader(new ByteArrayInputStream(INPUT))) {
+            for (byte expected : EXPECTED) {
+                assertEquals(expected & 0xFF, stream.read());
+            }
+            assertEquals(-1, stream.read());
+        }
+    }
+
+    @Test
+    void readOnlyControlCharacters() throws IOException
+    {
+        byte[] input = { 'a', 1, 2, 3, 4, 'b' };
+        byte[] buffer = new byte[2];
+
+        try (InputStream stream = new WithoutControlCharactersReader(new ByteArrayInputStream(input))) {
+            assertEquals(1, stream.read(buffer, 0, 2));
+            assertEquals('a', buffer[0]);
+            // The second chunk contains only control characters so the next one must be read
+            assertEquals(1, stream.read(buffer, 0, 2));
+            assertEquals('b', buffer[0]);
+            assertEquals(-1, stream.read(buffer, 0, 2));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link ZipExtractor}.
+ *
+ * @version $Id$
+ */
+class ZipExtractorTest
+{
+    private static File createZip(File folder, String... names) throws IOException
+    {
+        File file = new File(folder, "package.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            for (String name : names) {
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(name.getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+
+        return file;
+    }
+
+    @Test
+    void extract() throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        File zip = createZip(folder, "entities.xml", "attachments/1/2/1", "attachments/1/3/1");
+        File directory = new File(folder, "extracted");
+
+        try (ZipExtractor extractor = new ZipExtractor(zip, directory, 2)) {
+            extractor.start("entities.xml");
+            assertTrue(new File(directory, "entities.xml").exists());
+            extractor.join();
+        }
+
+        assertEquals("attachments/1/2/1",
+            FileUtils.readFileToString(new File(directory, "attachments/1/2/1"), StandardCharsets.UTF_8));
+        assertTrue(new File(directory, "attachments/1/3/1").exists());
+    }
+
+    @Test
+    void rejectEntriesOutsideOfTheDirectory() throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        File zip = createZip(folder, "entities.xml", "attachments/../../evil.txt");
+        File directory = new File(folder, "extracted");
+
+        try (ZipExtractor extractor = new ZipExtractor(zip, directory, 2)) {
+            IOException exception = assertThrows(IOException.class, () -> extractor.start("entities.xml"));
+            assertTrue(exception.getMessage().contains("attachments/../../evil.txt"));
+        }
+
+        // Nothing is extracted
+        assertFalse(new File(folder, "evil.txt").exists());
+        assertFalse(directory.exists());
+    }
+
+    @Test
+    void getEntryFile() throws IOException
+    {
+        File directory = XWikiTempDirUtil.createTemporaryDirectory();
+
+        assertEquals(new File(directory, "attachments/1/2/1").getAbsoluteFile(),
+            ZipExtractor.getEntryFile(directory, "attachments/./1/2/1"));
+        assertThrows(IOException.class, () -> ZipExtractor.getEntryFile(directory, "../evil.txt"));
+        assertThrows(IOException.class, () -> ZipExtractor.getEntryFile(directory, "/tmp/evil.txt"));
+    }
+}
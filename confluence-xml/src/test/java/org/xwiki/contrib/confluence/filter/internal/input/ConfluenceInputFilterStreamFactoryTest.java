@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceInputProperties;
+import org.xwiki.environment.Environment;
+import org.xwiki.filter.FilterEventParameters;
+import org.xwiki.filter.event.model.WikiDocumentFilter;
+import org.xwiki.filter.event.model.WikiSpaceFilter;
+import org.xwiki.filter.input.DefaultFileInputSource;
+import org.xwiki.filter.input.InputFilterStream;
+import org.xwiki.filter.input.InputFilterStreamFactory;
+import org.xwiki.model.validation.EntityNameValidation;
+import org.xwiki.model.validation.EntityNameValidationManager;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.XWikiTempDirUtil;
+import org.xwiki.test.annotation.AllComponents;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ConfluenceInputFilterStreamFactory}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@AllComponents
+class ConfluenceInputFilterStreamFactoryTest
+{
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private EntityNameValidationManager validationManager;
+
+    @MockComponent
+    private EntityNameValidation validation;
+
+    @MockComponent
+    private ObservationManager observationManager;
+
+    @MockComponent
+    @Named("xwiki+instance")
+    private InputFilterStreamFactory instanceInputFilterStreamFactory;
+
+    /**
+     * Record the full name of the documents it receives.
+     */
+    public static class DocumentRecorder implements WikiSpaceFilter, WikiDocumentFilter
+    {
+        private final Deque<String> spaces = new ArrayDeque<>();
+
+        private final List<String> documents = new ArrayList<>();
+
+        @Override
+        public void beginWikiSpace(String name, FilterEventParameters parameters)
+        {
+            this.spaces.addLast(name);
+        }
+
+        @Override
+        public void endWikiSpace(String name, FilterEventParameters parameters)
+        {
+            this.spaces.removeLast();
+        }
+
+        @Override
+        public void beginWikiDocument(String name, FilterEventParameters parameters)
+        {
+            this.documents.add(String.join(".", this.spaces) + '.' + name);
+        }
+
+        @Override
+        public void endWikiDocument(String name, FilterEventParameters parameters)
+        {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Count the number of times the source is closed.
+     */
+    private static class CountingInputSource extends DefaultFileInputSource
+    {
+        private final AtomicInteger closed = new AtomicInteger();
+
+        CountingInputSource(File file)
+        {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.closed.incrementAndGet();
+            super.close();
+        }
+    }
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.environment.getTemporaryDirectory()).thenReturn(XWikiTempDirUtil.createTemporaryDirectory());
+        when(this.validationManager.getEntityReferenceNameStrategy()).thenReturn(this.validation);
+        when(this.validation.transform(anyString()))
+            .thenAnswer((Answer<String>) invocation -> invocation.getArgument(0));
+    }
+
+    private File getPackage()
+    {
+        return new File(getClass().getClassLoader().getResource("confluencexml/pages").getFile());
+    }
+
+    private ConfluenceInputFilterStreamFactory getFactory() throws Exception
+    {
+        return this.componentManager.getInstance(InputFilterStreamFactory.class,
+            ConfluenceInputFilterStreamFactory.ROLEHINT);
+    }
+
+    @Test
+    void readSpaces() throws Exception
+    {
+        ConfluenceInputFilterStreamFactory factory = getFactory();
+
+        ConfluenceInputProperties serialProperties = new ConfluenceInputProperties();
+        serialProperties.setSource(new DefaultFileInputSource(getPackage()));
+        DocumentRecorder serial = new DocumentRecorder();
+        try (InputFilterStream stream = factory.createInputFilterStream(serialProperties)) {
+            stream.read(serial);
+        }
+
+        ConfluenceInputProperties properties = new ConfluenceInputProperties();
+        CountingInputSource source = new CountingInputSource(getPackage());
+        properties.setSource(source);
+        DocumentRecorder spaceA = new DocumentRecorder();
+        DocumentRecorder spaceB = new DocumentRecorder();
+        factory.readSpaces(properties, Map.of("SpaceA", spaceA, "SpaceB", spaceB), 2);
+
+        assertFalse(spaceA.documents.isEmpty());
+        assertFalse(spaceB.documents.isEmpty());
+        assertEquals(getDocuments(serial, "SpaceA."), spaceA.documents);
+        assertEquals(getDocuments(serial, "SpaceB."), spaceB.documents);
+
+        // Only the factory closes the shared source, once all the spaces are sent
+        assertEquals(1, source.closed.get());
+    }
+
+    private List<String> getDocuments(DocumentRecorder recorder, String prefix)
+    {
+        return recorder.documents.stream().filter(document -> document.startsWith(prefix))
+            .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.input;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceInputProperties;
+import org.xwiki.environment.Environment;
+import org.xwiki.filter.FilterEventParameters;
+import org.xwiki.filter.event.model.WikiAttachmentFilter;
+import org.xwiki.filter.event.model.WikiDocumentFilter;
+import org.xwiki.filter.input.DefaultFileInputSource;
+import org.xwiki.filter.input.InputFilterStream;
+import org.xwiki.filter.input.InputFilterStreamFactory;
+import org.xwiki.model.validation.EntityNameValidation;
+import org.xwiki.model.validation.EntityNameValidationManager;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.XWikiTempDirUtil;
+import org.xwiki.test.annotation.AllComponents;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ConfluenceInputFilterStream}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@AllComponents
+class ConfluenceInputFilterStreamTest
+{
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private EntityNameValidationManager validationManager;
+
+    @MockComponent
+    private EntityNameValidation validation;
+
+    @MockComponent
+    private ObservationManager observationManager;
+
+    @MockComponent
+    @Named("xwiki+instance")
+    private InputFilterStreamFactory instanceInputFilterStreamFactory;
+
+    /**
+     * Record the attachments it receives with the revision of the document containing them.
+     */
+    public static class AttachmentRecorder implements WikiDocumentFilter, WikiAttachmentFilter
+    {
+        private final List<String> attachments = new ArrayList<>();
+
+        private String revision;
+
+        @Override
+        public void beginWikiDocument(String name, FilterEventParameters parameters)
+        {
+            // Nothing to do
+        }
+
+        @Override
+        public void endWikiDocument(String name, FilterEventParameters parameters)
+        {
+            // Nothing to do
+        }
+
+        @Override
+        public void beginWikiDocumentRevision(String revision, FilterEventParameters parameters)
+        {
+            this.revision = revision;
+        }
+
+        @Override
+        public void endWikiDocumentRevision(String revision, FilterEventParameters parameters)
+        {
+            this.revision = null;
+        }
+
+        @Override
+        public void onWikiAttachment(String name, InputStream content, Long size, FilterEventParameters parameters)
+        {
+            this.attachments.add(
+                this.revision + ':' + name + ':' + parameters.get(WikiAttachmentFilter.PARAMETER_REVISION));
+        }
+    }
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.environment.getTemporaryDirectory()).thenReturn(XWikiTempDirUtil.createTemporaryDirectory());
+        when(this.validationManager.getEntityReferenceNameStrategy()).thenReturn(this.validation);
+        when(this.validation.transform(anyString()))
+            .thenAnswer((Answer<String>) invocation -> invocation.getArgument(0));
+    }
+
+    private List<String> readAttachments(boolean attachmentHistoryEnabled) throws Exception
+    {
+        ConfluenceInputProperties properties = new ConfluenceInputProperties();
+        properties.setSource(new DefaultFileInputSource(new File(
+            getClass().getClassLoader().getResource("confluencexml/attachmenthistory").getFile())));
+        properties.setAttachmentHistoryEnabled(attachmentHistoryEnabled);
+
+        InputFilterStreamFactory factory = this.componentManager.getInstance(InputFilterStreamFactory.class,
+            ConfluenceInputFilterStreamFactory.ROLEHINT);
+        AttachmentRecorder recorder = new AttachmentRecorder();
+        try (InputFilterStream stream = factory.createInputFilterStream(properties)) {
+            stream.read(recorder);
+        }
+
+        Collections.sort(recorder.attachments);
+
+        return recorder.attachments;
+    }
+
+    @Test
+    void attachmentHistory() throws Exception
+    {
+        // Each version is sent once, and the current revision contains all the current attachments
+        assertEquals(Arrays.asList("1:a.txt:1", "1:b.txt:1", "2:a.txt:2", "3:a.txt:3", "3:b.txt:1"),
+            readAttachments(true));
+    }
+
+    @Test
+    void attachmentHistoryDisabled() throws Exception
+    {
+        assertEquals(Arrays.asList("3:a.txt:3", "3:b.txt:1"), readAttachments(false));
+    }
+}
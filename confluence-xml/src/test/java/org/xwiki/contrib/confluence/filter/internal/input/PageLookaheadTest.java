@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.input;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Validate {@link PageLookahead}.
+ *
+ * @version $Id$
+ */
+class PageLookaheadTest
+{
+    private static final String SPACE = "SPACE";
+
+    private static class TestPages implements PageLookahead.Pages<String>
+    {
+        private final Map<Long, List<Long>> children = new HashMap<>();
+
+        private final Set<Long> skipped = ConcurrentHashMap.newKeySet();
+
+        private final Set<Long> unchanged = ConcurrentHashMap.newKeySet();
+
+        private final Set<Long> computed = ConcurrentHashMap.newKeySet();
+
+        private final Set<Long> failed = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public boolean isTraversed(long pageId)
+        {
+            return !this.skipped.contains(pageId);
+        }
+
+        @Override
+        public boolean isComputed(long pageId)
+        {
+            return !this.unchanged.contains(pageId);
+        }
+
+        @Override
+        public Collection<Long> getChildren(long pageId)
+        {
+            return this.children.getOrDefault(pageId, Collections.emptyList());
+        }
+
+        @Override
+        public String compute(String spaceKey, long pageId, boolean blog)
+        {
+            this.computed.add(pageId);
+            if (pageId == 13) {
+                throw new IllegalStateException("Failed to compute the value");
+            }
+
+            return spaceKey + '/' + pageId + (blog ? "/blog" : "");
+        }
+
+        @Override
+        public void failed(long pageId, Throwable cause)
+        {
+            this.failed.add(pageId);
+        }
+    }
+
+    @Test
+    void takeInTraversalOrder() throws InterruptedException
+    {
+        TestPages pages = new TestPages();
+        pages.children.put(1L, Arrays.asList(11L, 12L));
+        pages.children.put(11L, Arrays.asList(111L));
+        pages.children.put(2L, Arrays.asList(21L));
+
+        try (PageLookahead<String> lookahead = new PageLookahead<>("test", 2, pages)) {
+            lookahead.add(SPACE, Arrays.asList(1L, 2L), false);
+            lookahead.add(SPACE, Arrays.asList(3L), true);
+
+            for (long pageId : Arrays.asList(1L, 11L, 111L, 12L, 2L, 21L)) {
+                assertEquals(SPACE + '/' + pageId, lookahead.take(pageId));
+            }
+            assertEquals(SPACE + "/3/blog", lookahead.take(3L));
+
+            // Pages which were not added
+            assertNull(lookahead.take(4L));
+        }
+    }
+
+    @Test
+    void skippedPages() throws InterruptedException
+    {
+        TestPages pages = new TestPages();
+        pages.children.put(1L, Arrays.asList(11L, 12L, 13L));
+        pages.children.put(2L, Arrays.asList(21L));
+        pages.skipped.add(2L);
+
+        try (PageLookahead<String> lookahead = new PageLookahead<>("test", 1, pages)) {
+            lookahead.add(SPACE, Arrays.asList(1L, 2L, 3L), false);
+
+            assertEquals(SPACE + "/1", lookahead.take(1L));
+            // The caller does not send 11, its value is discarded when taking the next page
+            assertEquals(SPACE + "/12", lookahead.take(12L));
+            assertNull(lookahead.take(11L));
+            // The value failed to be computed
+            assertNull(lookahead.take(13L));
+            assertEquals(Collections.singleton(13L), pages.failed);
+            assertEquals(SPACE + "/3", lookahead.take(3L));
+        }
+
+        // The children of the skipped page are not reached
+        assertFalse(pages.computed.contains(2L));
+        assertFalse(pages.computed.contains(21L));
+    }
+
+    @Test
+    void unchangedPages() throws InterruptedException
+    {
+        TestPages pages = new TestPages();
+        pages.children.put(1L, Arrays.asList(11L, 12L));
+        pages.unchanged.add(1L);
+        pages.unchanged.add(11L);
+
+        try (PageLookahead<String> lookahead = new PageLookahead<>("test", 1, pages)) {
+            lookahead.add(SPACE, Arrays.asList(1L, 2L), false);
+
+            assertNull(lookahead.take(1L));
+            assertNull(lookahead.take(11L));
+            // The children of the unchanged page are still reached
+            assertEquals(SPACE + "/12", lookahead.take(12L));
+            assertEquals(SPACE + "/2", lookahead.take(2L));
+        }
+
+        assertFalse(pages.computed.contains(1L));
+        assertFalse(pages.computed.contains(11L));
+    }
+
+    @Test
+    void clear() throws InterruptedException
+    {
+        TestPages pages = new TestPages();
+
+        try (PageLookahead<String> lookahead = new PageLookahead<>("test", 1, pages)) {
+            lookahead.add(SPACE, Arrays.asList(1L, 2L), false);
+            assertEquals(SPACE + "/1", lookahead.take(1L));
+
+            lookahead.clear();
+            lookahead.add("OTHER", Arrays.asList(3L), false);
+            assertNull(lookahead.take(2L));
+            assertEquals("OTHER/3", lookahead.take(3L));
+        }
+    }
+}
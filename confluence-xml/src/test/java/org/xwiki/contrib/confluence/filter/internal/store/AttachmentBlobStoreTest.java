@@ -0,0 +1,163 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link AttachmentBlobStore}.
+ *
+ * @version $Id$
+ */
+class AttachmentBlobStoreTest
+{
+    private static File write(File folder, String path, String content) throws IOException
+    {
+        File file = new File(folder, path);
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+
+        return file;
+    }
+
+    @Test
+    void deduplicateFiles() throws IOException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        File logo1 = write(folder, "attachments/1/10/1", "logo");
+        File logo2 = write(folder, "attachments/2/20/1", "logo");
+        File other = write(folder, "attachments/2/21/1", "other");
+
+        AttachmentBlobStore store = new AttachmentBlobStore(new File(folder, "blobs"));
+        String logoDigest = store.add("attachments/1/10/1", logo1);
+        assertEquals(logoDigest, store.add("attachments/2/20/1", logo2));
+        assertNotEquals(logoDigest, store.add("attachments/2/21/1", other));
+
+        // Known SHA-256 digest of "logo"
+        assertEquals("3598ce6f965b2481fe26316c06b30950c46ac7f8e7229f104aa78f579997668d", logoDigest);
+
+        File blob = store.getFile("attachments/1/10/1");
+        assertEquals(blob, store.getFile("attachments/2/20/1"));
+        assertEquals("logo", FileUtils.readFileToString(blob, StandardCharsets.UTF_8));
+        assertEquals(logoDigest, blob.getName());
+        assertFalse(logo1.exists());
+        assertFalse(logo2.exists());
+
+        assertEquals(3, store.getCount());
+        assertEquals(1, store.getDuplicates());
+        assertEquals(4, store.getDuplicateSize());
+        assertNull(store.getFile("attachments/3/30/1"));
+    }
+
+    @Test
+    void digestOnly() throws IOException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        File logo1 = write(folder, "attachments/1/10/1", "logo");
+        File logo2 = write(folder, "attachments/2/20/1", "logo");
+
+        AttachmentBlobStore store = new AttachmentBlobStore(null);
+        store.add("attachments/1/10/1", logo1);
+        store.add("attachments/2/20/1", logo2);
+        String streamDigest = store.add("attachments/3/30/1",
+            new ByteArrayInputStream("logo".getBytes(StandardCharsets.UTF_8)), 4);
+
+        // The files are left untouched
+        assertEquals(logo1, store.getFile("attachments/1/10/1"));
+        assertEquals(logo1, store.getFile("attachments/2/20/1"));
+        assertEquals(store.getDigest("attachments/1/10/1"), streamDigest);
+        // The same content is available in a file
+        assertEquals(logo1, store.getFile("attachments/3/30/1"));
+        assertNull(store.getFile("attachments/4/40/1"));
+        assertEquals(1, store.getDuplicates());
+    }
+
+    @Test
+    void concurrentDuplicates() throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            files.add(write(folder, "attachments/" + i + "/1/1", "content" + (i % 10)));
+        }
+
+        AttachmentBlobStore store = new AttachmentBlobStore(new File(folder, "blobs"));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                String path = "attachments/" + i + "/1/1";
+                File file = files.get(i);
+                futures.add(executor.submit(() -> store.add(path, file)));
+            }
+            for (Future<String> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(200, store.getCount());
+        assertEquals(190, store.getDuplicates());
+        for (int i = 0; i < files.size(); i++) {
+            File blob = store.getFile("attachments/" + i + "/1/1");
+            assertEquals("content" + (i % 10), FileUtils.readFileToString(blob, StandardCharsets.UTF_8));
+            assertFalse(files.get(i).exists());
+        }
+    }
+
+    @Test
+    void moveFailure() throws IOException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        File logo1 = write(folder, "attachments/1/10/1", "logo");
+        File logo2 = write(folder, "attachments/2/20/1", "logo");
+
+        // The blobs cannot be moved in a file
+        File blobs = write(folder, "blobs", "");
+        AttachmentBlobStore store = new AttachmentBlobStore(blobs);
+        assertThrows(IOException.class, () -> store.add("attachments/1/10/1", logo1));
+
+        // The content stays where it was for all the attachments having it
+        store.add("attachments/2/20/1", logo2);
+        assertTrue(logo1.exists());
+        assertFalse(logo2.exists());
+        assertEquals(logo1, store.getFile("attachments/1/10/1"));
+        assertEquals(logo1, store.getFile("attachments/2/20/1"));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Validate {@link BodyStore}.
+ *
+ * @version $Id$
+ */
+class BodyStoreTest
+{
+    private static String read(BodyStore store, long reference) throws IOException
+    {
+        try (Reader reader = store.open(reference)) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    @Test
+    void appendAndReopen() throws IOException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        String body = "<p>Some <strong>content</strong> with non ASCII characters: é中</p>";
+
+        long deflated;
+        long empty;
+        try (BodyStore store = new BodyStore(folder, BodyStore.COMPRESSION_DEFLATE)) {
+            deflated = store.append(body);
+            empty = store.append("");
+
+            // Not flushed yet
+            assertEquals(body, read(store, deflated));
+        }
+
+        long raw;
+        try (BodyStore store = new BodyStore(folder, BodyStore.COMPRESSION_NONE)) {
+            raw = store.append(body);
+
+            assertEquals(body, read(store, raw));
+        }
+
+        try (BodyStore store = new BodyStore(folder, BodyStore.COMPRESSION_DEFLATE)) {
+            assertEquals(body, read(store, deflated));
+            assertEquals("", read(store, empty));
+            assertEquals(body, read(store, raw));
+        }
+    }
+}
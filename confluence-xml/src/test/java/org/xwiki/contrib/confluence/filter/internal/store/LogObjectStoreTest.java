@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link LogObjectStore}.
+ *
+ * @version $Id$
+ */
+class LogObjectStoreTest
+{
+    private static void put(ConfluenceObjectStore store, String path, String key, Object value)
+        throws ConfigurationException
+    {
+        ConfluenceProperties properties = store.get(path, true);
+        properties.setProperty(key, value);
+        properties.save();
+    }
+
+    @Test
+    void saveAndList() throws IOException, ConfigurationException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        try (LogObjectStore store = new LogObjectStore(folder)) {
+            assertNull(store.get("pages/1", false));
+
+            put(store, "pages/1", "title", "first");
+            put(store, "pages/1/attachments/3", "name", "file.txt");
+            put(store, "pages/2", "title", "second");
+            put(store, "pages/1", "title", "updated");
+
+            assertEquals("updated", store.get("pages/1", false).getString("title"));
+            assertEquals("file.txt", store.get("pages/1/attachments/3", false).getString("name"));
+            assertEquals(new HashSet<>(Arrays.asList("1", "2")), new HashSet<>(store.list("pages")));
+            assertEquals(Arrays.asList("3"), store.list("pages/1/attachments"));
+            assertEquals(Arrays.asList("pages"), store.list(""));
+            assertTrue(store.list("spaces").isEmpty());
+        }
+    }
+
+    @Test
+    void reopen() throws IOException, ConfigurationException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        try (LogObjectStore store = new LogObjectStore(folder)) {
+            put(store, "pages/1", "title", "first");
+            store.flush();
+            // Not covered by the index
+            put(store, "pages/2", "title", "second");
+        }
+
+        // Simulate a crash after the first flush and while writing a record
+        new File(folder, LogObjectStore.INDEX_FILENAME).delete();
+        try (RandomAccessFile data = new RandomAccessFile(new File(folder, LogObjectStore.DATA_FILENAME), "rw")) {
+            data.seek(data.length());
+            data.writeInt(42);
+        }
+
+        assertTrue(LogObjectStore.exists(folder));
+        try (LogObjectStore store = new LogObjectStore(folder)) {
+            assertEquals("first", store.get("pages/1", false).getString("title"));
+            assertEquals("second", store.get("pages/2", false).getString("title"));
+
+            put(store, "pages/3", "title", "third");
+        }
+
+        try (LogObjectStore store = new LogObjectStore(folder)) {
+            assertEquals(new HashSet<>(Arrays.asList("1", "2", "3")), new HashSet<>(store.list("pages")));
+            assertEquals("third", store.get("pages/3", false).getString("title"));
+        }
+    }
+}
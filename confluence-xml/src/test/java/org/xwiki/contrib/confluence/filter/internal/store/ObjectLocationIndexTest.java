@@ -0,0 +1,224 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceXMLPackage;
+import org.xwiki.environment.Environment;
+import org.xwiki.filter.input.DefaultFileInputSource;
+import org.xwiki.job.JobContext;
+import org.xwiki.job.event.status.JobProgressManager;
+import org.xwiki.test.XWikiTempDirUtil;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ObjectLocationIndex}.
+ *
+ * @version $Id$
+ */
+@ComponentList({
+    ConfluenceXMLPackage.class
+})
+@ComponentTest
+class ObjectLocationIndexTest
+{
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private JobProgressManager jobProgressManager;
+
+    @MockComponent
+    private JobContext jobContext;
+
+    /**
+     * A store which only lists folders, in the order in which they were added.
+     */
+    private static class FolderStore implements ConfluenceObjectStore
+    {
+        private final Map<String, List<String>> children = new LinkedHashMap<>();
+
+        void add(String path)
+        {
+            String parent = "";
+            for (String name : path.split("/")) {
+                List<String> siblings = this.children.computeIfAbsent(parent, k -> new ArrayList<>());
+                if (!siblings.contains(name)) {
+                    siblings.add(name);
+                }
+                parent = parent.isEmpty() ? name : parent + '/' + name;
+            }
+        }
+
+        @Override
+        public ConfluenceProperties get(String path, boolean create)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void save(String path, ConfluenceProperties properties)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<String> list(String path)
+        {
+            return this.children.getOrDefault(path, Collections.emptyList());
+        }
+
+        @Override
+        public void flush()
+        {
+            // Nothing to flush
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to close
+        }
+    }
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.environment.getTemporaryDirectory()).thenReturn(XWikiTempDirUtil.createTemporaryDirectory());
+    }
+
+    /**
+     * The recursive search used before the index.
+     */
+    private static String search(ConfluenceObjectStore store, String folder, String id)
+    {
+        Collection<String> list = store.list(folder);
+        if (list.isEmpty()) {
+            return null;
+        }
+
+        char firstChar = list.iterator().next().charAt(0);
+        if (firstChar >= '0' && firstChar <= '9') {
+            for (String child : list) {
+                if (id.equals(child)) {
+                    return folder;
+                }
+            }
+        }
+
+        for (String child : list) {
+            String found = search(store, folder.isEmpty() ? child : folder + '/' + child, id);
+            if (found != null) {
+                return found;
+            }
+        }
+
+        return null;
+    }
+
+    private static void collectIds(ConfluenceObjectStore store, String folder, Set<Long> ids)
+    {
+        for (String child : store.list(folder)) {
+            if (child.chars().allMatch(Character::isDigit)) {
+                ids.add(Long.parseLong(child));
+            }
+            collectIds(store, folder.isEmpty() ? child : folder + '/' + child, ids);
+        }
+    }
+
+    private static void assertSameAsSearch(ConfluenceObjectStore store)
+    {
+        ObjectLocationIndex index = ObjectLocationIndex.create(store);
+
+        Set<Long> ids = new TreeSet<>();
+        collectIds(store, "", ids);
+        assertFalse(ids.isEmpty());
+        for (Long id : ids) {
+            assertEquals(search(store, "", id.toString()), index.get(id), "Wrong folder for object " + id);
+        }
+    }
+
+    @Test
+    void depthFirst()
+    {
+        FolderStore store = new FolderStore();
+        // 7 is found deeper in the first folder than in the second one
+        store.add("pages/5/attachments/7");
+        // Not in a folder of objects since its first child is not an object
+        store.add("spaces/home");
+        store.add("spaces/9");
+        store.add("objects/7");
+        store.add("objects/8");
+        store.add("objects/9");
+
+        ObjectLocationIndex index = ObjectLocationIndex.create(store);
+
+        assertEquals("pages/5/attachments", index.get(7));
+        assertEquals("objects", index.get(8));
+        assertEquals("objects", index.get(9));
+        assertEquals("pages", index.get(5));
+        assertNull(index.get(10));
+
+        assertSameAsSearch(store);
+    }
+
+    @Test
+    void sameAsSearchOnFixtures() throws Exception
+    {
+        for (String fixture : new String[] { "nested", "permissions", "blogs" }) {
+            ConfluenceXMLPackage confluencePackage = this.componentManager.getInstance(ConfluenceXMLPackage.class);
+            try {
+                confluencePackage.read(new DefaultFileInputSource(
+                    new File(getClass().getClassLoader().getResource("confluencexml/" + fixture).getFile())));
+
+                Field storeField = ConfluenceXMLPackage.class.getDeclaredField("store");
+                storeField.setAccessible(true);
+                assertSameAsSearch((ConfluenceObjectStore) storeField.get(confluencePackage));
+            } finally {
+                confluencePackage.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link ReadAheadObjectStore}.
+ *
+ * @version $Id$
+ */
+class ReadAheadObjectStoreTest
+{
+    private static final String TITLE = "title";
+
+    private static void put(ConfluenceObjectStore store, String path, String value) throws ConfigurationException
+    {
+        ConfluenceProperties properties = store.get(path, true);
+        properties.setProperty(TITLE, value);
+        properties.save();
+    }
+
+    @Test
+    void loadAndGet() throws IOException, ConfigurationException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        try (ReadAheadObjectStore store = new ReadAheadObjectStore(new LogObjectStore(folder), 2)) {
+            put(store, "pages/1", "first");
+            put(store, "pages/2", "second");
+            put(store, "pages/3", "third");
+
+            store.load("pages/4");
+            assertFalse(store.isLoaded("pages/4"));
+            assertNull(store.get("pages/4", false));
+
+            store.load("pages/1");
+            assertTrue(store.isLoaded("pages/1"));
+            ConfluenceProperties first = store.get("pages/1", false);
+            assertEquals("first", first.getString(TITLE));
+
+            // A loaded object is only handed to one reader
+            assertFalse(store.isLoaded("pages/1"));
+            assertNotSame(first, store.get("pages/1", false));
+
+            // Not loaded
+            assertNotSame(store.get("pages/2", false), store.get("pages/2", false));
+
+            // Forget the least recently loaded object
+            store.load("pages/1");
+            store.load("pages/2");
+            store.load("pages/3");
+            assertFalse(store.isLoaded("pages/1"));
+            assertTrue(store.isLoaded("pages/2"));
+            assertTrue(store.isLoaded("pages/3"));
+
+            // An object read before being kept
+            ConfluenceProperties read = store.read("pages/1");
+            assertFalse(store.isLoaded("pages/1"));
+            store.keep("pages/1", read);
+            assertSame(read, store.get("pages/1", false));
+
+            // Saving through the store forgets the outdated loaded object
+            store.load("pages/2");
+            assertTrue(store.isLoaded("pages/2"));
+            ConfluenceProperties updated = store.getStore().get("pages/2", false);
+            updated.setProperty(TITLE, "updated");
+            store.save("pages/2", updated);
+            assertFalse(store.isLoaded("pages/2"));
+            assertEquals("updated", store.get("pages/2", false).getString(TITLE));
+        }
+    }
+}
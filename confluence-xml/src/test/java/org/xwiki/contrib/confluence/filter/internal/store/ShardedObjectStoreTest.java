@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link ShardedObjectStore}.
+ *
+ * @version $Id$
+ */
+class ShardedObjectStoreTest
+{
+    private static void put(ConfluenceObjectStore store, String path, String key, Object value)
+        throws ConfigurationException
+    {
+        ConfluenceProperties properties = store.get(path, true);
+        properties.setProperty(key, value);
+        properties.save();
+    }
+
+    @Test
+    void saveListAndReopen() throws IOException, ConfigurationException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        try (ShardedObjectStore store = new ShardedObjectStore(folder)) {
+            assertNull(store.get("pages/1", false));
+
+            put(store, "pages/1", "title", "first");
+            put(store, "pages/1/attachments/3", "name", "file.txt");
+            put(store, "pages/2", "title", "second");
+            put(store, "userimpls/some/key", "name", "user");
+
+            assertEquals(new HashSet<>(Arrays.asList("1", "2")), new HashSet<>(store.list("pages")));
+            assertEquals(Arrays.asList("3"), store.list("pages/1/attachments"));
+            assertTrue(store.list("spaces").isEmpty());
+        }
+
+        try (ShardedObjectStore store = new ShardedObjectStore(folder)) {
+            assertEquals("first", store.get("pages/1", false).getString("title"));
+            assertEquals("file.txt", store.get("pages/1/attachments/3", false).getString("name"));
+            assertEquals(new HashSet<>(Arrays.asList("1", "2")), new HashSet<>(store.list("pages")));
+            assertEquals(new HashSet<>(Arrays.asList("pages", "userimpls")), new HashSet<>(store.list("")));
+            assertEquals("user", store.get("userimpls/some/key", false).getString("name"));
+        }
+    }
+}
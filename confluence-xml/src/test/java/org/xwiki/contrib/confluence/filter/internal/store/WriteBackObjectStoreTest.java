@@ -0,0 +1,403 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.confluence.filter.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.confluence.filter.input.ConfluenceProperties;
+import org.xwiki.contrib.confluence.filter.internal.PartitionedExecutor;
+import org.xwiki.test.XWikiTempDirUtil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link WriteBackObjectStore}.
+ *
+ * @version $Id$
+ */
+class WriteBackObjectStoreTest
+{
+    private static final String TITLE = "title";
+
+    /**
+     * Block the loading or the writing of one object until released.
+     */
+    private static final class BlockingObjectStore implements ConfluenceObjectStore
+    {
+        private final ConfluenceObjectStore store;
+
+        private final String blockedGet;
+
+        private final String blockedSave;
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private final AtomicInteger accesses = new AtomicInteger();
+
+        private BlockingObjectStore(ConfluenceObjectStore store, String blockedGet, String blockedSave)
+        {
+            this.store = store;
+            this.blockedGet = blockedGet;
+            this.blockedSave = blockedSave;
+        }
+
+        private void block(String path, String blockedPath) throws ConfigurationException
+        {
+            if (path.equals(blockedPath)) {
+                this.accesses.incrementAndGet();
+                this.blocked.countDown();
+                try {
+                    this.released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ConfigurationException(e);
+                }
+            }
+        }
+
+        @Override
+        public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+        {
+            block(path, this.blockedGet);
+
+            return this.store.get(path, create);
+        }
+
+        @Override
+        public void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException
+        {
+            block(path, this.blockedSave);
+
+            this.store.save(path, properties);
+        }
+
+        @Override
+        public Collection<String> list(String path)
+        {
+            return this.store.list(path);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            this.store.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.store.close();
+        }
+    }
+
+    private static ConfluenceProperties put(ConfluenceObjectStore store, String path, String value)
+        throws ConfigurationException
+    {
+        ConfluenceProperties properties = store.get(path, true);
+        properties.setProperty(TITLE, value);
+        properties.save();
+
+        return properties;
+    }
+
+    /**
+     * Simulate the latency of a disk.
+     */
+    private static final class SlowObjectStore implements ConfluenceObjectStore
+    {
+        private final ConfluenceObjectStore store;
+
+        private SlowObjectStore(ConfluenceObjectStore store)
+        {
+            this.store = store;
+        }
+
+        private static void sleep() throws ConfigurationException
+        {
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConfigurationException(e);
+            }
+        }
+
+        @Override
+        public ConfluenceProperties get(String path, boolean create) throws ConfigurationException
+        {
+            sleep();
+
+            return this.store.get(path, create);
+        }
+
+        @Override
+        public void save(String path, ConfluenceProperties properties) throws IOException, ConfigurationException
+        {
+            sleep();
+
+            this.store.save(path, properties);
+        }
+
+        @Override
+        public Collection<String> list(String path)
+        {
+            return this.store.list(path);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            this.store.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.store.close();
+        }
+    }
+
+    /**
+     * Index objects the way the package does, with the given number of threads.
+     *
+     * @return the time it took, in nanoseconds
+     */
+    private static long index(int threads) throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        long start = System.nanoTime();
+        try (WriteBackObjectStore store =
+            new WriteBackObjectStore(new SlowObjectStore(new LogObjectStore(folder)), 4096)) {
+            try (PartitionedExecutor executor = new PartitionedExecutor("indexing", threads, 16)) {
+                for (int i = 0; i < 400; i++) {
+                    int id = i % 200;
+                    executor.execute(id, () -> {
+                        ConfluenceProperties properties = store.get("pages/" + id, true);
+                        properties.addProperty(TITLE, "page" + id);
+                        properties.save();
+                    });
+                }
+                executor.join();
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    void writeBack() throws IOException, ConfigurationException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        try (WriteBackObjectStore store = new WriteBackObjectStore(new LogObjectStore(folder), Long.MAX_VALUE)) {
+            ConfluenceProperties first = put(store, "pages/1", "first");
+            first.setProperty(TITLE, "updated");
+            first.save();
+
+            // Only written when flushing
+            assertSame(first, store.get("pages/1", false));
+            assertNull(store.getStore().get("pages/1", false));
+
+            store.flush();
+            assertEquals("updated", store.getStore().get("pages/1", false).getString(TITLE));
+        }
+
+        // Closing the store writes the cached objects
+        try (WriteBackObjectStore store = new WriteBackObjectStore(new LogObjectStore(folder), Long.MAX_VALUE)) {
+            put(store, "pages/2", "second");
+        }
+        try (LogObjectStore store = new LogObjectStore(folder)) {
+            assertEquals("second", store.get("pages/2", false).getString(TITLE));
+        }
+    }
+
+    @Test
+    void evict() throws IOException, ConfigurationException
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+
+        try (WriteBackObjectStore store = new WriteBackObjectStore(new LogObjectStore(folder), 1)) {
+            ConfluenceProperties first = put(store, "pages/1", "first");
+
+            // The last object is always kept
+            assertNull(store.getStore().get("pages/1", false));
+
+            // Saving another object evicts and writes the first one
+            put(store, "pages/2", "second");
+            assertEquals("first", store.getStore().get("pages/1", false).getString(TITLE));
+            assertNull(store.getStore().get("pages/2", false));
+
+            // Saving an evicted object caches it again
+            first.setProperty(TITLE, "updated");
+            first.save();
+            assertSame(first, store.get("pages/1", false));
+            assertEquals("second", store.getStore().get("pages/2", false).getString(TITLE));
+            assertEquals("first", store.getStore().get("pages/1", false).getString(TITLE));
+
+            store.flush();
+            assertEquals("updated", store.getStore().get("pages/1", false).getString(TITLE));
+        }
+    }
+
+    @Test
+    void weight() throws ConfigurationException
+    {
+        ConfluenceProperties properties = ConfluenceProperties.create(null, "pages/1", null);
+        long empty = properties.getWeight();
+
+        properties.setProperty(TITLE, "title");
+        long oneProperty = properties.getWeight();
+        assertTrue(oneProperty > empty);
+
+        properties.addProperty(TITLE, "other");
+        assertTrue(properties.getWeight() > oneProperty);
+
+        properties.setProperty(TITLE, "title");
+        assertEquals(oneProperty, properties.getWeight());
+
+        properties.clearProperty(TITLE);
+        assertEquals(empty, properties.getWeight());
+
+        properties.setProperty(TITLE, "title");
+        properties.clear();
+        assertEquals(empty, properties.getWeight());
+    }
+
+    @Test
+    void concurrentWrites() throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try (WriteBackObjectStore store = new WriteBackObjectStore(new LogObjectStore(folder), 4096)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int first = thread * 100;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < first + 100; i++) {
+                        put(store, "pages/" + i, "page" + i);
+                        // Modify a shared object while other threads evict it
+                        store.get("spaces/1", true).addProperty("pages", i);
+                    }
+
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            store.get("spaces/1", true).save();
+            store.flush();
+
+            for (int i = 0; i < 400; i++) {
+                ConfluenceProperties properties = store.getStore().get("pages/" + i, false);
+                assertNotNull(properties);
+                assertEquals("page" + i, properties.getString(TITLE));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void loadOutsideOfTheMonitor() throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        BlockingObjectStore blocking = new BlockingObjectStore(new LogObjectStore(folder), "pages/2", null);
+
+        try (WriteBackObjectStore store = new WriteBackObjectStore(blocking, Long.MAX_VALUE)) {
+            put(store, "pages/1", "first");
+
+            Future<ConfluenceProperties> first = executor.submit(() -> store.get("pages/2", true));
+            blocking.blocked.await();
+            Future<ConfluenceProperties> second = executor.submit(() -> store.get("pages/2", true));
+
+            // The other objects are still available while one is loading
+            assertEquals("first", store.get("pages/1", false).getString(TITLE));
+            put(store, "pages/3", "third");
+
+            blocking.released.countDown();
+
+            // The object is loaded only once
+            assertSame(first.get(), second.get());
+            assertEquals(1, blocking.accesses.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void evictOutsideOfTheMonitor() throws Exception
+    {
+        File folder = XWikiTempDirUtil.createTemporaryDirectory();
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        BlockingObjectStore blocking = new BlockingObjectStore(new LogObjectStore(folder), null, "pages/1");
+
+        try (WriteBackObjectStore store = new WriteBackObjectStore(blocking, 1)) {
+            ConfluenceProperties first = put(store, "pages/1", "first");
+
+            // Saving another object evicts the first one, which is written by the same thread
+            Future<?> second = executor.submit(() -> put(store, "pages/2", "second"));
+            blocking.blocked.await();
+
+            // The object being written is still available from the cache
+            assertSame(first, store.get("pages/1", false));
+
+            blocking.released.countDown();
+            second.get();
+
+            store.flush();
+            assertEquals("first", blocking.store.get("pages/1", false).getString(TITLE));
+            assertEquals("second", blocking.store.get("pages/2", false).getString(TITLE));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void scaleWithThreads() throws Exception
+    {
+        // Loading and writing objects does not prevent the other threads from using the cache
+        long single = index(1);
+        long multiple = index(4);
+
+        assertTrue(multiple * 2 < single,
+            "4 threads took " + multiple / 1000000 + "ms, 1 thread took " + single / 1000000 + "ms");
+    }
+}